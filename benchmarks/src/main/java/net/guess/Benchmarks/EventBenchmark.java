@@ -0,0 +1,78 @@
+package net.guess.Benchmarks;
+
+import net.guess.ClientUtil.ClientEventManager;
+import net.guess.ServerUtil.ServerEventManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost to the triggering thread of raising an event, with and without a listener. Listeners run on the
+ * event bus's dispatcher, so this is the price paid by the I/O thread; when the listener cannot keep up
+ * the ring fills and the extra events are dropped rather than waited for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBenchmark {
+	@Param({"false", "true"})
+	private boolean subscribed;
+	
+	private final IOException error = new IOException("benchmark");
+	private ServerEventManager serverEvents;
+	private ClientEventManager clientEvents;
+	
+	@Setup
+	public void setUp() {
+		serverEvents = new ServerEventManager();
+		clientEvents = new ClientEventManager();
+		serverEvents.setOnClientMessage(subscribed ? EventBenchmark::ignore : null);
+		serverEvents.setOnServerError(subscribed ? EventBenchmark::ignore : null);
+		clientEvents.setOnServerMessage(subscribed ? EventBenchmark::ignore : null);
+	}
+	
+	// Stops the dispatcher threads, so one trial's do not keep running into the next
+	@TearDown
+	public void tearDown() {
+		serverEvents.close();
+		clientEvents.close();
+	}
+	
+	// The listeners do nothing: what is measured is handing the event over, not handling it
+	private static void ignore(String message) {
+	}
+	
+	private static void ignore(String message, Exception e) {
+	}
+	
+	@Benchmark
+	public void serverClientMessage() {
+		serverEvents.triggerClientMessage("PING");
+	}
+	
+	@Benchmark
+	public void serverError() {
+		serverEvents.triggerServerError("Error reading from client", error);
+	}
+	
+	@Benchmark
+	public void clientServerMessage() {
+		clientEvents.triggerServerMessage("PING");
+	}
+}
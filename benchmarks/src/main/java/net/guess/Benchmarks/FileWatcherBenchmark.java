@@ -0,0 +1,82 @@
+package net.guess.Benchmarks;
+
+import net.guess.ServerUtil.FileWatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from writing a watched file to its change handler running: the watch service's own delay, the
+ * debounce window and the handoff to the change thread. Every write has new content so none is
+ * suppressed as unchanged, and replaces the file atomically so it raises a single event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileWatcherBenchmark {
+	private static final long CHANGE_TIMEOUT_SECONDS = 30;
+	
+	// Debounce time in milliseconds
+	@Param({"0", "50"})
+	private long debounce;
+	
+	private final BlockingQueue<Path> changes = new LinkedBlockingQueue<>();
+	private Path directory;
+	private Path file;
+	private Path staging;
+	private FileWatcher watcher;
+	private long writes;
+	
+	@Setup
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("watch-benchmark");
+		file = directory.resolve("watched.txt");
+		staging = directory.resolve("watched.txt.tmp");
+		Files.writeString(file, "initial");
+		watcher = new FileWatcher(file.toString(), debounce, changes::add, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+		watcher.startWatching();
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		watcher.stopWatching();
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(staging);
+		Files.deleteIfExists(directory);
+	}
+	
+	@Benchmark
+	public Path writeToCallback() throws Exception {
+		changes.clear();
+		Files.write(staging, ("change " + ++writes).getBytes(StandardCharsets.UTF_8));
+		Files.move(staging, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		Path changed = changes.poll(CHANGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		if (changed == null) {
+			throw new IllegalStateException("No change delivered for write " + writes);
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,133 @@
+package net.guess.Benchmarks;
+
+import java.util.Arrays;
+
+// Just enough JSON for the load test report: nested objects and arrays of strings and numbers.
+final class JsonWriter {
+	private final StringBuilder out = new StringBuilder();
+	// Whether the innermost open object or array already has an element, so the next one needs a comma
+	private boolean[] hasElement = new boolean[16];
+	private int depth;
+	
+	JsonWriter beginObject() {
+		element();
+		out.append('{');
+		push();
+		return this;
+	}
+	
+	JsonWriter endObject() {
+		depth--;
+		out.append('}');
+		return this;
+	}
+	
+	JsonWriter beginArray() {
+		element();
+		out.append('[');
+		push();
+		return this;
+	}
+	
+	JsonWriter endArray() {
+		depth--;
+		out.append(']');
+		return this;
+	}
+	
+	// Names the next value, object or array.
+	JsonWriter name(String name) {
+		element();
+		string(name);
+		out.append(':');
+		// The value that follows belongs to this name
+		hasElement[depth] = false;
+		return this;
+	}
+	
+	JsonWriter value(String value) {
+		element();
+		if (value == null) {
+			out.append("null");
+		} else {
+			string(value);
+		}
+		return this;
+	}
+	
+	JsonWriter value(long value) {
+		element();
+		out.append(value);
+		return this;
+	}
+	
+	JsonWriter value(double value) {
+		element();
+		out.append(Double.isFinite(value) ? Double.toString(value) : "null");
+		return this;
+	}
+	
+	JsonWriter value(boolean value) {
+		element();
+		out.append(value);
+		return this;
+	}
+	
+	JsonWriter field(String name, String value) {
+		return name(name).value(value);
+	}
+	
+	JsonWriter field(String name, long value) {
+		return name(name).value(value);
+	}
+	
+	JsonWriter field(String name, double value) {
+		return name(name).value(value);
+	}
+	
+	JsonWriter field(String name, boolean value) {
+		return name(name).value(value);
+	}
+	
+	private void element() {
+		if (depth > 0 && hasElement[depth]) {
+			out.append(',');
+		}
+		hasElement[depth] = true;
+	}
+	
+	private void push() {
+		depth++;
+		if (depth == hasElement.length) {
+			hasElement = Arrays.copyOf(hasElement, depth * 2);
+		}
+		hasElement[depth] = false;
+	}
+	
+	private void string(String value) {
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"' -> out.append("\\\"");
+				case '\\' -> out.append("\\\\");
+				case '\n' -> out.append("\\n");
+				case '\r' -> out.append("\\r");
+				case '\t' -> out.append("\\t");
+				default -> {
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int) c));
+					} else {
+						out.append(c);
+					}
+				}
+			}
+		}
+		out.append('"');
+	}
+	
+	@Override
+	public String toString() {
+		return out.toString();
+	}
+}
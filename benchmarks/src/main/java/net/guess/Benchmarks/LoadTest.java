@@ -0,0 +1,596 @@
+package net.guess.Benchmarks;
+
+import net.guess.ClientUtil.Client;
+import net.guess.ClientUtil.ClientEventManager;
+import net.guess.ServerUtil.ClientSession;
+import net.guess.ServerUtil.Server;
+import net.guess.ServerUtil.ServerEventManager;
+import net.guess.SharedUtil.ExecutionMode;
+import net.guess.SharedUtil.HeartbeatSettings;
+import net.guess.SharedUtil.Histogram;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Soak test: one loopback Server and any number of simulated Clients in this JVM, driven through scripted
+ * phases of server broadcasts, client messages and file churn. Broadcasts carry their send time, so their
+ * delivery latency is measured on the same clock; files are timed from the offer until each client has
+ * committed its copy. Prints one JSON report with per-phase throughput and latency percentiles, heartbeat
+ * round trips, memory, threads, errors and periodic samples, so runs can be compared.
+ */
+public final class LoadTest {
+	private static final String USAGE = """
+			Usage: LoadTest [--clients=N] [--server=selector|blocking] [--selector-threads=N]
+			                [--client-threads=virtual|platform] [--heartbeat=5s] [--sample=5s] [--drain=5s] [--out=report.json]
+			                [--duration=60s] [--broadcasts=N] [--messages=N] [--files=N] [--file-size=BYTES]
+			                [--phase=[name:]duration[,broadcasts=N][,messages=N][,files=N][,file-size=BYTES]]...
+			Rates are per second; messages is per client. Each --phase runs in order and replaces the single
+			phase described by --duration and the rate flags.""";
+	private static final int CONNECT_BATCH = 50;
+	private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+	private static final long TICK_MILLIS = 10;
+	private static final String LOAD = "LOAD";
+	private static final List<String> PHASE_SETTINGS = List.of("broadcasts", "messages", "files", "file-size");
+	
+	record Phase(String name, Duration duration, double broadcasts, double messages, double files, int fileSize) {
+	}
+	
+	record Options(int clients, boolean selector, int selectorThreads, ExecutionMode clientThreads, Duration heartbeat, Duration sample, Duration drain, List<Phase> phases, Path out) {
+		static Options parse(String[] args) {
+			Map<String, String> flags = new LinkedHashMap<>();
+			List<String> phaseSpecs = new ArrayList<>();
+			for (String arg : args) {
+				if (!arg.startsWith("--")) {
+					throw new IllegalArgumentException("Unexpected argument " + arg);
+				}
+				int equals = arg.indexOf('=');
+				String key = equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+				String value = equals < 0 ? "true" : arg.substring(equals + 1);
+				if (key.equals("phase")) {
+					phaseSpecs.add(value);
+				} else {
+					flags.put(key, value);
+				}
+			}
+			
+			List<Phase> phases = new ArrayList<>();
+			if (phaseSpecs.isEmpty()) {
+				Map<String, String> settings = new LinkedHashMap<>(flags);
+				settings.keySet().retainAll(PHASE_SETTINGS);
+				phases.add(phase("steady", flags.getOrDefault("duration", "60s"), settings));
+			}
+			for (String spec : phaseSpecs) {
+				String[] parts = spec.split(",");
+				Map<String, String> settings = new LinkedHashMap<>();
+				for (int i = 1; i < parts.length; i++) {
+					String[] setting = parts[i].split("=", 2);
+					if (setting.length != 2) {
+						throw new IllegalArgumentException("Expected key=value in phase " + spec);
+					}
+					settings.put(setting[0], setting[1]);
+				}
+				int colon = parts[0].indexOf(':');
+				String name = colon < 0 ? "phase-" + (phases.size() + 1) : parts[0].substring(0, colon);
+				phases.add(phase(name, parts[0].substring(colon + 1), settings));
+			}
+			
+			String server = flags.remove("server");
+			String clientThreads = flags.remove("client-threads");
+			String out = flags.remove("out");
+			Options options = new Options(Integer.parseInt(flags.getOrDefault("clients", "100")),
+					server == null || server.equals("selector"),
+					Integer.parseInt(flags.getOrDefault("selector-threads", "2")),
+					clientThreads == null || clientThreads.equals("virtual") ? ExecutionMode.VIRTUAL_THREADS : ExecutionMode.PLATFORM_THREADS,
+					duration(flags.getOrDefault("heartbeat", "5s")),
+					duration(flags.getOrDefault("sample", "5s")),
+					duration(flags.getOrDefault("drain", "5s")),
+					phases,
+					out == null ? null : Path.of(out));
+			flags.keySet().removeAll(List.of("clients", "selector-threads", "heartbeat", "sample", "drain", "duration"));
+			flags.keySet().removeAll(PHASE_SETTINGS);
+			if (!flags.isEmpty()) {
+				throw new IllegalArgumentException("Unknown option --" + flags.keySet().iterator().next());
+			}
+			if (server != null && !server.equals("selector") && !server.equals("blocking")) {
+				throw new IllegalArgumentException("--server must be selector or blocking");
+			}
+			return options;
+		}
+		
+		private static Phase phase(String name, String duration, Map<String, String> settings) {
+			for (String key : settings.keySet()) {
+				if (!PHASE_SETTINGS.contains(key)) {
+					throw new IllegalArgumentException("Unknown phase setting " + key);
+				}
+			}
+			return new Phase(name, duration(duration),
+					Double.parseDouble(settings.getOrDefault("broadcasts", "10")),
+					Double.parseDouble(settings.getOrDefault("messages", "1")),
+					Double.parseDouble(settings.getOrDefault("files", "0.2")),
+					Integer.parseInt(settings.getOrDefault("file-size", "65536")));
+		}
+		
+		// 500ms, 30s, 10m, 2h
+		static Duration duration(String text) {
+			String number = text.replaceAll("[a-z]+$", "");
+			long value = Long.parseLong(number);
+			return switch (text.substring(number.length())) {
+				case "ms" -> Duration.ofMillis(value);
+				case "s", "" -> Duration.ofSeconds(value);
+				case "m" -> Duration.ofMinutes(value);
+				case "h" -> Duration.ofHours(value);
+				default -> throw new IllegalArgumentException("Bad duration " + text);
+			};
+		}
+	}
+	
+	// Counts for one phase. Deliveries that arrive after the phase ended still count towards it.
+	private static final class PhaseStats {
+		final Phase phase;
+		final Histogram broadcastLatency = new Histogram();
+		final Histogram fileLatency = new Histogram();
+		final LongAdder broadcastsSent = new LongAdder();
+		final LongAdder messagesSent = new LongAdder();
+		final LongAdder sendFailures = new LongAdder();
+		final LongAdder filesSent = new LongAdder();
+		final LongAdder filesReceived = new LongAdder();
+		final LongAdder fileFailures = new LongAdder();
+		long serverMessagesBefore;
+		long serverMessagesAfter;
+		long errorsBefore;
+		long errorsAfter;
+		// Driver thread only: fractional sends owed at the configured rates
+		double broadcastCredit;
+		double messageCredit;
+		double fileCredit;
+		
+		PhaseStats(Phase phase) {
+			this.phase = phase;
+		}
+	}
+	
+	private record Sample(long elapsedMillis, String phase, long heapUsed, int threads, int sessions, long broadcastsDelivered, long errors) {
+	}
+	
+	private final Options options;
+	private final Server server = new Server();
+	private final List<Client> clients = new ArrayList<>();
+	private final List<PhaseStats> finished = new ArrayList<>();
+	private final List<Sample> samples = new CopyOnWriteArrayList<>();
+	private final ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("load-driver").daemon().factory());
+	private final ExecutorService fileChurn = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("load-files").daemon().factory());
+	private final AtomicInteger fileSequence = new AtomicInteger();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final long startedAt = System.nanoTime();
+	private volatile PhaseStats current;
+	private Path directory;
+	private int nextClient;
+	private long lastTick;
+	private long connectNanos;
+	
+	LoadTest(Options options) {
+		this.options = options;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (List.of(args).contains("--help")) {
+			System.out.println(USAGE);
+			return;
+		}
+		Options options;
+		try {
+			options = Options.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+		String report = new LoadTest(options).run();
+		if (options.out() != null) {
+			Files.writeString(options.out(), report);
+		} else {
+			System.out.println(report);
+		}
+		System.exit(0);
+	}
+	
+	String run() throws Exception {
+		directory = Files.createTempDirectory("load-test");
+		try {
+			int port = startServer();
+			connectClients(port);
+			driver.scheduleAtFixedRate(this::sample, 0, options.sample().toMillis(), TimeUnit.MILLISECONDS);
+			lastTick = System.nanoTime();
+			driver.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+			for (Phase phase : options.phases()) {
+				PhaseStats stats = new PhaseStats(phase);
+				stats.serverMessagesBefore = serverCounter("messages_received_total");
+				stats.errorsBefore = errorCount();
+				current = stats;
+				Thread.sleep(phase.duration().toMillis());
+				stats.serverMessagesAfter = serverCounter("messages_received_total");
+				stats.errorsAfter = errorCount();
+				finished.add(stats);
+			}
+			current = null;
+			// Lets in-flight broadcasts and files land before anything is counted
+			Thread.sleep(options.drain().toMillis());
+			sample();
+			return report();
+		} finally {
+			driver.shutdownNow();
+			fileChurn.shutdownNow();
+			for (Client client : clients) {
+				client.disconnectFromServer();
+			}
+			server.stopServer();
+			deleteTree(directory);
+		}
+	}
+	
+	private int startServer() throws IOException, InterruptedException {
+		int port;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		quiet(server.getServerEventManager());
+		CountDownLatch started = new CountDownLatch(1);
+		server.getServerEventManager().setOnServerStart(listening -> started.countDown());
+		server.setHeartbeatSettings(new HeartbeatSettings(options.heartbeat(), HeartbeatSettings.DEFAULT.maxMissed()));
+		if (options.selector()) {
+			server.startSelectorServer(port, options.selectorThreads());
+		} else {
+			server.setExecutionMode(ExecutionMode.VIRTUAL_THREADS);
+			server.startServerAsync(port);
+		}
+		if (!started.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Server did not start on port " + port);
+		}
+		return port;
+	}
+	
+	// Connects in batches and waits for each batch to be accepted, so the accept backlog never overflows.
+	private void connectClients(int port) throws InterruptedException {
+		long started = System.nanoTime();
+		for (int i = 0; i < options.clients(); i++) {
+			Client client = new Client();
+			quiet(client.getClientEventManager());
+			client.setExecutionMode(options.clientThreads());
+			client.setHeartbeatSettings(new HeartbeatSettings(options.heartbeat(), HeartbeatSettings.DEFAULT.maxMissed()));
+			client.registerCommandHandler(LOAD, command -> {
+				PhaseStats stats = current;
+				if (stats != null) {
+					stats.broadcastLatency.record(System.nanoTime() - command.longArg(0));
+				}
+			});
+			clients.add(client);
+			try {
+				client.connectToServer("127.0.0.1", port);
+			} catch (IOException e) {
+				continue;
+			}
+			if ((i + 1) % CONNECT_BATCH == 0 || i + 1 == options.clients()) {
+				long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+				while (server.getSessions().size() < i + 1 && System.nanoTime() < deadline) {
+					Thread.sleep(5);
+				}
+			}
+		}
+		connectNanos = System.nanoTime() - started;
+	}
+	
+	// Sends whatever the phase's rates have accrued since the last tick.
+	private void tick() {
+		long now = System.nanoTime();
+		double seconds = (now - lastTick) / 1e9;
+		lastTick = now;
+		PhaseStats stats = current;
+		if (stats == null) {
+			return;
+		}
+		Phase phase = stats.phase;
+		
+		stats.broadcastCredit += phase.broadcasts() * seconds;
+		for (; stats.broadcastCredit >= 1; stats.broadcastCredit--) {
+			server.sendMessage(LOAD + " " + System.nanoTime());
+			stats.broadcastsSent.increment();
+		}
+		
+		stats.messageCredit += phase.messages() * clients.size() * seconds;
+		for (; stats.messageCredit >= 1; stats.messageCredit--) {
+			Client client = clients.get(nextClient++ % clients.size());
+			try {
+				client.sendMessage(LOAD + " " + System.nanoTime());
+				stats.messagesSent.increment();
+			} catch (IOException e) {
+				stats.sendFailures.increment();
+			}
+		}
+		
+		stats.fileCredit += phase.files() * seconds;
+		for (; stats.fileCredit >= 1; stats.fileCredit--) {
+			fileChurn.execute(() -> churnFile(stats));
+		}
+	}
+	
+	// Writes a new file and offers it to every client. Each connected client gets its own target, deleted
+	// again once received, so concurrent offers never share a partial file and the disk does not fill up.
+	private void churnFile(PhaseStats stats) {
+		int sequence = fileSequence.incrementAndGet();
+		Path file = directory.resolve("churn-" + sequence + ".bin");
+		try {
+			byte[] content = new byte[stats.phase.fileSize()];
+			ThreadLocalRandom.current().nextBytes(content);
+			Files.write(file, content);
+			long offeredAt = System.nanoTime();
+			for (int i = 0; i < clients.size(); i++) {
+				Client client = clients.get(i);
+				if (!client.isConnected()) {
+					continue;
+				}
+				Path target = directory.resolve("client-" + i + "-" + sequence + ".bin");
+				client.receiveFileFromServer(target.toString()).whenComplete((size, e) -> {
+					if (e == null) {
+						stats.fileLatency.recordSince(offeredAt);
+						stats.filesReceived.increment();
+					} else {
+						stats.fileFailures.increment();
+					}
+					try {
+						Files.deleteIfExists(target);
+					} catch (IOException ignored) {
+					}
+				});
+			}
+			server.sendFileToClient(file.toString());
+			stats.filesSent.increment();
+		} catch (IOException e) {
+			stats.fileFailures.increment();
+		}
+	}
+	
+	private void sample() {
+		PhaseStats stats = current;
+		long delivered = 0;
+		for (PhaseStats phase : finished) {
+			delivered += phase.broadcastLatency.getCount();
+		}
+		if (stats != null) {
+			delivered += stats.broadcastLatency.getCount();
+		}
+		samples.add(new Sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), stats != null ? stats.phase.name() : null, memory.getHeapMemoryUsage().getUsed(), threads.getThreadCount(), server.getSessions().size(), delivered, errorCount()));
+	}
+	
+	private long errorCount() {
+		long errors = server.getServerEventManager().getErrorCount();
+		for (Client client : clients) {
+			errors += client.getClientEventManager().getErrorCount();
+		}
+		return errors;
+	}
+	
+	// A server-wide counter, read back from the metrics registry.
+	private long serverCounter(String name) {
+		StringBuilder text = new StringBuilder();
+		try {
+			server.getMetrics().writePrometheus(text);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		String prefix = server.getMetrics().getPrefix() + "_" + name + " ";
+		return text.toString().lines().filter(line -> line.startsWith(prefix)).mapToLong(line -> (long) Double.parseDouble(line.substring(prefix.length()))).findFirst().orElse(0);
+	}
+	
+	private String report() {
+		JsonWriter json = new JsonWriter().beginObject();
+		json.name("config").beginObject()
+				.field("clients", options.clients())
+				.field("server", options.selector() ? "selector" : "blocking")
+				.field("selector_threads", options.selectorThreads())
+				.field("client_threads", options.clientThreads().name())
+				.field("heartbeat_ms", options.heartbeat().toMillis())
+				.field("cpus", Runtime.getRuntime().availableProcessors())
+				.field("java", Runtime.version().toString())
+				.endObject();
+		
+		int connected = 0;
+		for (Client client : clients) {
+			connected += client.isConnected() ? 1 : 0;
+		}
+		json.name("connect").beginObject()
+				.field("requested", options.clients())
+				.field("connected_at_end", connected)
+				.field("seconds", connectNanos / 1e9)
+				.endObject();
+		
+		json.name("phases").beginArray();
+		for (PhaseStats stats : finished) {
+			Phase phase = stats.phase;
+			double seconds = phase.duration().toNanos() / 1e9;
+			long delivered = stats.broadcastLatency.getCount();
+			json.beginObject()
+					.field("name", phase.name())
+					.field("seconds", seconds);
+			json.name("broadcasts").beginObject()
+					.field("target_per_second", phase.broadcasts())
+					.field("sent", stats.broadcastsSent.sum())
+					.field("delivered", delivered)
+					.field("deliveries_per_second", delivered / seconds);
+			latency(json.name("latency_ms"), stats.broadcastLatency.snapshot());
+			json.endObject();
+			// Every message frame the server read, heartbeat echoes included
+			long received = stats.serverMessagesAfter - stats.serverMessagesBefore;
+			json.name("client_messages").beginObject()
+					.field("target_per_second", phase.messages() * options.clients())
+					.field("sent", stats.messagesSent.sum())
+					.field("send_failures", stats.sendFailures.sum())
+					.field("server_messages_received", received)
+					.field("server_messages_per_second", received / seconds)
+					.endObject();
+			json.name("files").beginObject()
+					.field("target_per_second", phase.files())
+					.field("size_bytes", phase.fileSize())
+					.field("offered", stats.filesSent.sum())
+					.field("received", stats.filesReceived.sum())
+					.field("failures", stats.fileFailures.sum())
+					.field("received_bytes_per_second", stats.filesReceived.sum() * phase.fileSize() / seconds);
+			latency(json.name("latency_ms"), stats.fileLatency.snapshot());
+			json.endObject();
+			json.field("errors", stats.errorsAfter - stats.errorsBefore);
+			json.endObject();
+		}
+		json.endArray();
+		
+		// Smoothed round trip per session, as the server measures it from heartbeat echoes
+		List<Long> rtts = new ArrayList<>();
+		for (ClientSession session : server.getSessions()) {
+			if (!session.isDataChannel() && session.getRtt().getSampleCount() > 0) {
+				rtts.add(session.getRtt().getSmoothed());
+			}
+		}
+		rtts.sort(Comparator.naturalOrder());
+		json.name("heartbeat_rtt_ms").beginObject()
+				.field("sessions", rtts.size())
+				.field("p50", percentile(rtts, 0.5) / 1e6)
+				.field("p99", percentile(rtts, 0.99) / 1e6)
+				.field("max", rtts.isEmpty() ? 0 : rtts.getLast() / 1e6)
+				.endObject();
+		
+		long gcCount = 0;
+		long gcMillis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, collector.getCollectionCount());
+			gcMillis += Math.max(0, collector.getCollectionTime());
+		}
+		long peakHeap = 0;
+		for (Sample sample : samples) {
+			peakHeap = Math.max(peakHeap, sample.heapUsed());
+		}
+		json.name("memory").beginObject()
+				.field("heap_used_peak_bytes", peakHeap)
+				.field("heap_used_end_bytes", memory.getHeapMemoryUsage().getUsed())
+				.field("heap_max_bytes", memory.getHeapMemoryUsage().getMax())
+				.field("non_heap_used_bytes", memory.getNonHeapMemoryUsage().getUsed())
+				.field("gc_count", gcCount)
+				.field("gc_millis", gcMillis)
+				.endObject();
+		json.name("threads").beginObject()
+				.field("platform_live", threads.getThreadCount())
+				.field("platform_peak", threads.getPeakThreadCount())
+				.field("daemon", threads.getDaemonThreadCount())
+				.endObject();
+		
+		long clientErrors = 0;
+		long droppedEvents = server.getServerEventManager().getDroppedEventCount();
+		for (Client client : clients) {
+			clientErrors += client.getClientEventManager().getErrorCount();
+			droppedEvents += client.getClientEventManager().getDroppedEventCount();
+		}
+		json.name("errors").beginObject()
+				.field("server", server.getServerEventManager().getErrorCount())
+				.field("client", clientErrors)
+				.field("dropped_events", droppedEvents)
+				.field("slow_consumer_disconnects", serverCounter("slow_consumer_disconnects_total"))
+				.field("messages_dropped", serverCounter("messages_dropped_total"))
+				.endObject();
+		
+		json.name("samples").beginArray();
+		for (Sample sample : samples) {
+			json.beginObject()
+					.field("elapsed_ms", sample.elapsedMillis())
+					.field("phase", sample.phase())
+					.field("heap_used_bytes", sample.heapUsed())
+					.field("platform_threads", sample.threads())
+					.field("sessions", sample.sessions())
+					.field("broadcasts_delivered", sample.broadcastsDelivered())
+					.field("errors", sample.errors())
+					.endObject();
+		}
+		json.endArray();
+		return json.endObject().toString();
+	}
+	
+	private static void latency(JsonWriter json, Histogram.Snapshot snapshot) {
+		json.beginObject()
+				.field("count", snapshot.count())
+				.field("mean", snapshot.mean() / 1e6)
+				.field("p50", snapshot.p50() / 1e6)
+				.field("p99", snapshot.p99() / 1e6)
+				.field("p999", snapshot.p999() / 1e6)
+				.field("max", snapshot.max() / 1e6)
+				.endObject();
+	}
+	
+	private static long percentile(List<Long> sorted, double quantile) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(quantile * sorted.size()) - 1));
+	}
+	
+	// The default listeners print every connect, file and message; thousands of clients would drown the report.
+	private static void quiet(ServerEventManager events) {
+		events.setOnServerInit(null);
+		events.setOnBroadcastStopped(null);
+		events.setOnClientConnect(null);
+		events.setOnClientDisconnect(null);
+		events.setOnServerError(null);
+		events.setOnServerStart(null);
+		events.setOnServerStop(null);
+		events.setOnBroadcast(null);
+		events.setOnHeartbeatLost(null);
+		events.setOnFileSending(null);
+		events.setOnFileSent(null);
+		events.setOnFileDeltaSent(null);
+	}
+	
+	private static void quiet(ClientEventManager events) {
+		events.setOnClientInit(null);
+		events.setOnClientConnect(null);
+		events.setOnClientDisconnect(null);
+		events.setOnClientError(null);
+		events.setOnServerMessage(null);
+		events.setOnFileReceived(null);
+		events.setOnClientConnectAttempt(null);
+		events.setOnSocketTimeoutSet(null);
+		events.setOnClientAlreadyConnected(null);
+		events.setOnServerDiscovery(null);
+		events.setOnBroadcastPortUsed(null);
+		events.setOnShutdownReceived(null);
+		events.setOnFileUpdateHandler(null);
+	}
+	
+	private static void deleteTree(Path root) throws IOException {
+		try (Stream<Path> files = Files.walk(root)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package net.guess.Benchmarks;
+
+import net.guess.ClientUtil.Client;
+import net.guess.SharedUtil.Command;
+import net.guess.SharedUtil.FrameDecoder;
+import net.guess.SharedUtil.Frames;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message frames on the client's receive path: encoding a message, and decoding a batch of frames and
+ * dispatching each to its command handler exactly as Client.receiveMessages does for a live connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+	private static final int BATCH = 1024;
+	
+	// A bare command, a typical command with arguments, and one long enough to span several reads
+	@Param({"PING", "FILE_UPDATE reports/2024/summary.csv 1048576", "LONG"})
+	private String message;
+	
+	private String text;
+	private ByteBuffer frames;
+	private Client client;
+	private final Command command = new Command();
+	private long handled;
+	
+	@Setup
+	public void setUp() {
+		text = message.equals("LONG") ? "LONG " + "x".repeat(4096) : message;
+		ByteBuffer frame = Frames.message(text);
+		frames = ByteBuffer.allocate(frame.remaining() * BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			frames.put(frame.duplicate());
+		}
+		frames.flip();
+		
+		client = new Client();
+		String name = text.substring(0, text.indexOf(' ') < 0 ? text.length() : text.indexOf(' '));
+		client.registerCommandHandler(name, command -> handled++);
+	}
+	
+	@Benchmark
+	public ByteBuffer encode() {
+		return Frames.message(text);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long decodeAndDispatch() {
+		client.receiveMessages(new BufferChannel(frames.duplicate()));
+		return handled;
+	}
+	
+	// The same frames parsed into commands without any handler lookup, to separate parsing from dispatch
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void decode(Blackhole blackhole) throws IOException {
+		BufferChannel in = new BufferChannel(frames.duplicate());
+		FrameDecoder decoder = new FrameDecoder();
+		while (decoder.readFrom(in, (type, flags, streamId, payload) -> {
+			command.reset(payload);
+			blackhole.consume(command.name());
+		}) != -1) {
+			// Frames are handled inside readFrom
+		}
+	}
+	
+	// Hands out the prepared frames in socket-sized reads, then reports end of stream.
+	private static final class BufferChannel implements ReadableByteChannel {
+		private static final int READ_SIZE = 8 * 1024;
+		private final ByteBuffer source;
+		
+		BufferChannel(ByteBuffer source) {
+			this.source = source;
+		}
+		
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!source.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(Math.min(dst.remaining(), source.remaining()), READ_SIZE);
+			dst.put(dst.position(), source, source.position(), count);
+			dst.position(dst.position() + count);
+			source.position(source.position() + count);
+			return count;
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package net.guess.Benchmarks;
+
+import net.guess.ClientUtil.Client;
+import net.guess.ServerUtil.Server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * One file sent over loopback with sendFileToClient and received with receiveFileFromServer, end to end:
+ * offer, accept, chunks, commit. The bytes counter turns the per-file time into a throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+	private static final long CONNECT_TIMEOUT_MILLIS = 10_000;
+	
+	@Param({"65536", "1048576", "16777216", "134217728"})
+	private int size;
+	
+	@Param({"blocking", "selector"})
+	private String server;
+	
+	private Path directory;
+	private Path source;
+	private Path target;
+	private Server fileServer;
+	private Client client;
+	
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Bytes {
+		public long bytes;
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+	
+	@Setup
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("transfer-benchmark");
+		source = directory.resolve("source.bin");
+		target = directory.resolve("target.bin");
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		Files.write(source, content);
+		
+		int port;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		fileServer = new Server();
+		fileServer.getServerEventManager().setOnFileSending(null);
+		fileServer.getServerEventManager().setOnFileSent(null);
+		CountDownLatch started = new CountDownLatch(1);
+		fileServer.getServerEventManager().setOnServerStart(listening -> started.countDown());
+		if (server.equals("selector")) {
+			fileServer.startSelectorServer(port, 1);
+		} else {
+			fileServer.startServerAsync(port);
+		}
+		
+		if (!started.await(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			throw new IllegalStateException("Server never started");
+		}
+		
+		client = new Client();
+		client.getClientEventManager().setOnFileReceived(null);
+		client.connectToServer("127.0.0.1", port);
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+		while (fileServer.getSessions().isEmpty()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Client never connected");
+			}
+			Thread.sleep(10);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		client.disconnectFromServer();
+		fileServer.stopServer();
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+	
+	@Benchmark
+	public long sendFile(Bytes counter) throws Exception {
+		var received = client.receiveFileFromServer(target.toString());
+		fileServer.sendFileToClient(source.toString());
+		long length = received.get(1, TimeUnit.MINUTES);
+		counter.bytes += length;
+		return length;
+	}
+}
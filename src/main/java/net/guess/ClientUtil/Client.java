@@ -1,117 +1,889 @@
 package net.guess.ClientUtil;
 
+import net.guess.SharedUtil.*;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 public class Client {
-	private final Map<String, EventHandler> messageHandlers = new HashMap<>();
-	private boolean isConnected = false;
+	// Idle handler pool threads exit after this long
+	private static final long HANDLER_KEEP_ALIVE_SECONDS = 30;
+	// How long connectToDiscoveredServer collects answers when the last known server does not answer first
+	private static final Duration DISCOVERY_WINDOW = Duration.ofMillis(300);
+	private static final SecureRandom NONCES = new SecureRandom();
+	
+	private final CommandTrie<CommandHandler> commandHandlers = new CommandTrie<>();
+	private final Map<Integer, IncomingTransfer> transfers = new ConcurrentHashMap<>();
+	private final Queue<PendingReceive> pendingReceives = new ConcurrentLinkedQueue<>();
+	// By the name the server offers the file under; guarded by itself
+	private final Map<String, ArrayDeque<PendingReceive>> namedReceives = new HashMap<>();
+	// Interrupted transfers to ask for again, by the version id of the content they hold part of
+	private final Map<Long, PendingReceive> resumes = new ConcurrentHashMap<>();
+	// Topic patterns to subscribe to again on every new connection
+	private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+	private final RequestChannel requests = new RequestChannel(this::writeFrame);
+	private final Map<String, RequestHandler> requestHandlers = new ConcurrentHashMap<>();
+	// Files asked for with fetchFile, by the stream the server said it will offer them on
+	private final Map<Integer, PendingReceive> requestedFiles = new ConcurrentHashMap<>();
+	private final OfferBarrier offers = new OfferBarrier();
+	private volatile Duration requestTimeout = Duration.ofSeconds(30);
+	// The last server a connection succeeded to, asked first on the next discovery
+	private volatile InetSocketAddress lastServer;
+	private volatile Path serverCacheFile;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final List<Compression> compressions = new CopyOnWriteArrayList<>();
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+	private ExecutorService transferExecutor;
+	private volatile HandlerPolicy handlerPolicy = HandlerPolicy.INLINE;
+	private final ReentrantLock handlerLock = new ReentrantLock();
+	private volatile ExecutorService handlerPool;
+	private volatile ExecutorService handlerThreads;
+	private volatile Compression compression;
+	private Function<String, String> fileTargetResolver;
+	private volatile boolean isConnected = false;
 	private Socket socket;
-	private PrintWriter writer;
+	private volatile OutputStream out;
 	private String serverHost;
 	private int serverPort;
+	private volatile String sessionId;
+	private volatile String sessionToken;
+	private ParallelTransfers parallelTransfers = ParallelTransfers.DISABLED;
+	private final List<Socket> dataSockets = new CopyOnWriteArrayList<>();
+	private boolean deltaSync = false;
 	private ClientEventManager clientEventManager = new ClientEventManager();
+	private final Metrics metrics = new Metrics("guess_client");
+	private final ClientMetrics clientMetrics = new ClientMetrics(metrics);
+	// Reader thread only
+	private long lastHeartbeatAt;
+	private HeartbeatSettings heartbeatSettings = HeartbeatSettings.DEFAULT;
+	// System.nanoTime() of the last frame from the server, and how long it may stay silent
+	private volatile long lastReadAt;
+	private volatile long peerTimeoutNanos;
+	private volatile TimingWheel.Timeout livenessTimer;
+	private volatile ReconnectPolicy reconnectPolicy = ReconnectPolicy.DISABLED;
+	// Set by disconnectFromServer, so a connection closed on purpose is not reconnected
+	private volatile boolean disconnectRequested;
+	private volatile int reconnectAttempts;
+	private volatile TimingWheel.Timeout reconnectTimer;
+	// The server the current session belongs to, and the highest message sequence seen from it (reader thread only)
+	private String sessionServer;
+	private int lastSequence;
 	
 	public ClientEventManager getClientEventManager() {
 		return clientEventManager;
 	}
 	
+	public boolean isConnected() {
+		return isConnected;
+	}
+	
+	// Message, byte, heartbeat and file transfer metrics. See MetricsEndpoint for scraping.
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+	
+	public void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+	}
+	
+	public boolean isDeltaSync() {
+		return deltaSync;
+	}
+	
+	// When enabled, file updates only transfer the blocks that differ from the local copy.
+	public void setDeltaSync(boolean deltaSync) {
+		this.deltaSync = deltaSync;
+	}
+	
+	public ParallelTransfers getParallelTransfers() {
+		return parallelTransfers;
+	}
+	
+	// Data connections are opened when the server announces the session, so this must be set before connecting.
+	public void setParallelTransfers(ParallelTransfers parallelTransfers) {
+		this.parallelTransfers = parallelTransfers;
+	}
+	
+	// Built-in handlers are registered through private methods; QueuedHandler only keeps the client, and
+	// nothing calls back into it until a message arrives
+	@SuppressWarnings("this-escape")
 	public Client() {
-		registerMessageHandler("SHUTDOWN", this::handleShutdown);
-		registerMessageHandler("HEARTBEAT", msg -> {
-			clientEventManager.triggerHeartbeatReceived(msg);
-			writer.println("HEARTBEAT");
+		register("SHUTDOWN", command -> handleShutdown(command.text()));
+		metrics.gauge("connected", "1 while connected to a server", () -> isConnected ? 1 : 0);
+		metrics.gauge("requests_pending", "Requests sent to the server and waiting for a reply", requests::getPendingCount);
+		metrics.gauge("requests_serving", "Requests from the server not yet answered", requests::getServingCount);
+		metrics.counter("errors_total", "Errors reported through the event manager", clientEventManager::getErrorCount);
+		register("HEARTBEAT", command -> {
+			long now = System.nanoTime();
+			if (lastHeartbeatAt != 0) {
+				clientMetrics.heartbeatInterval.record(now - lastHeartbeatAt);
+			}
+			lastHeartbeatAt = now;
+			clientMetrics.heartbeatsReceived.increment();
+			// HEARTBEAT <sequence> <sent at> <interval millis>; the server times its own clock, so echo it unchanged
+			if (command.argCount() >= 3) {
+				peerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(command.longArg(2)) * heartbeatSettings.maxMissed();
+			}
+			clientEventManager.triggerHeartbeatReceived(command.name());
+			sendMessage(command.text());
 		});
+		register("SESSION", command -> {
+			String server = serverHost + ":" + serverPort;
+			// Back on the same server: ask for whatever the previous session missed while we were away
+			if (sessionToken != null && server.equals(sessionServer)) {
+				sendMessage("REPLAY " + sessionId + " " + sessionToken + " " + lastSequence);
+			} else {
+				lastSequence = 0;
+			}
+			sessionServer = server;
+			sessionId = command.arg(0);
+			sessionToken = command.argCount() >= 2 ? command.arg(1) : null;
+			reconnectAttempts = 0;
+			if (sessionToken != null) {
+				openDataConnections(sessionId, sessionToken);
+			}
+			for (Long version : resumes.keySet()) {
+				sendMessage("RESUME " + Long.toHexString(version));
+			}
+			for (String pattern : subscriptions) {
+				sendMessage("SUBSCRIBE " + pattern);
+			}
+		});
+		register("REPLAY_DONE", command -> clientEventManager.triggerSessionResumed(command.intArg(0)));
+		register("REPLAY_FAILED", command -> clientEventManager.triggerResyncRequired(command.rest()));
+		register("SUBSCRIBE_FAILED", command -> {
+			subscriptions.remove(command.arg(0));
+			clientEventManager.triggerClientError("Server rejected subscription to " + command.arg(0), new IOException("Too many subscriptions"));
+		});
+		register("RESUME_FAILED", command -> {
+			PendingReceive resume = resumes.remove(Long.parseUnsignedLong(command.arg(0), 16));
+			if (resume != null) {
+				discardPartial(Path.of(resume.name()));
+				resume.result().completeExceptionally(new IOException("The server no longer has that version of " + resume.name()));
+			}
+		});
+		register("COMPRESS", command -> compression = findCompression(command.arg(0)));
+		// Inline, so a reply is matched before the reader moves on to the file offer that may follow it
+		for (String kind : List.of("REQUEST", "RESPONSE", "REQUEST_FAILED", "CANCEL")) {
+			register(kind, command -> requests.onMessage(command.text(), this::dispatchRequest), HandlerPolicy.INLINE);
+		}
 	}
 	
-	public synchronized void receiveFileFromServer(String name) {
-		try (Socket sock = new Socket(serverHost, serverPort); InputStream is = sock.getInputStream(); DataInputStream dataIn = new DataInputStream(is);  // To read the file size
-		     FileOutputStream fos = new FileOutputStream(name); BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-			
-			// Read the file size first
-			int fileSize = dataIn.readInt();  // Read the file size
-			
-			byte[] fileByteArray = new byte[fileSize];
-			int bytesRead;
-			
-			// Read the file data
-			while ((bytesRead = is.read(fileByteArray)) != -1) {
-				bos.write(fileByteArray, 0, bytesRead);
-			}
-			
-			bos.flush();
-			clientEventManager.triggerFileReceived(name, fileSize);
-		} catch (IOException e) {
-			clientEventManager.triggerClientError("Error receiving file", e);
+	// Registers where the next file the server offers should be written. Returns at once; the future
+	// completes with the file size once the file has been committed, or exceptionally if the transfer fails.
+	// Offers for which receiveFileFromServer(fileName, name) was called go there instead.
+	public CompletableFuture<Long> receiveFileFromServer(String name) {
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		pendingReceives.add(new PendingReceive(name, result));
+		return result;
+	}
+	
+	// As above, but only for the next offer of the server's file fileName (its name without directories), so
+	// the right file is taken even when several are offered at once, as after a resync.
+	public CompletableFuture<Long> receiveFileFromServer(String fileName, String name) {
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		synchronized (namedReceives) {
+			namedReceives.computeIfAbsent(fileName, key -> new ArrayDeque<>()).add(new PendingReceive(name, result));
+		}
+		return result;
+	}
+	
+	private PendingReceive takeNamedReceive(String fileName) {
+		synchronized (namedReceives) {
+			ArrayDeque<PendingReceive> waiting = namedReceives.get(fileName);
+			if (waiting == null) {
+				return null;
+			}
+			PendingReceive pending = waiting.poll();
+			if (waiting.isEmpty()) {
+				namedReceives.remove(fileName);
+			}
+			return pending;
+		}
+	}
+	
+	// Continues a transfer into name that was cut off, here or in an earlier run, using the checkpoint kept
+	// next to its partial file. The server re-offers the file only if its content is still the same version;
+	// otherwise the partial file is discarded and the future fails. Transfers interrupted while this client
+	// runs are resumed on reconnect without being asked.
+	public CompletableFuture<Long> resumeFileFromServer(String name) {
+		TransferCheckpoint checkpoint = TransferCheckpoint.read(Path.of(name));
+		if (checkpoint == null) {
+			return CompletableFuture.failedFuture(new NoSuchFileException(name, null, "No resumable transfer"));
+		}
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		resumes.put(checkpoint.version(), new PendingReceive(name, result));
+		if (isConnected && sessionId != null) {
+			try {
+				sendMessage("RESUME " + Long.toHexString(checkpoint.version()));
+			} catch (IOException e) {
+				// Asked for again once the next connection announces its session
+			}
+		}
+		return result;
+	}
+	
+	private static void discardPartial(Path target) {
+		TransferCheckpoint.delete(target);
+		try {
+			Files.deleteIfExists(FileTransfers.partialFile(target));
+		} catch (IOException ignored) {
+		}
+	}
+	
+	// Asks the server for publish() updates on topics matching the pattern: an exact topic such as "alerts",
+	// or a '/'-separated glob where "*" matches one segment and "**" any number, e.g. "reports/**/*.csv".
+	// Kept across reconnects until unsubscribed.
+	public void subscribe(String pattern) {
+		checkPattern(pattern);
+		if (subscriptions.add(pattern)) {
+			sendWhileConnected("SUBSCRIBE " + pattern);
+		}
+	}
+	
+	public void unsubscribe(String pattern) {
+		checkPattern(pattern);
+		if (subscriptions.remove(pattern)) {
+			sendWhileConnected("UNSUBSCRIBE " + pattern);
+		}
+	}
+	
+	public Set<String> getSubscriptions() {
+		return Set.copyOf(subscriptions);
+	}
+	
+	private static void checkPattern(String pattern) {
+		if (pattern.isBlank() || pattern.chars().anyMatch(Character::isWhitespace)) {
+			throw new IllegalArgumentException("Topic patterns cannot be blank or contain whitespace: " + pattern);
+		}
+	}
+	
+	private void sendWhileConnected(String message) {
+		if (isConnected && sessionId != null) {
+			try {
+				sendMessage(message);
+			} catch (IOException e) {
+				// Sent again once the next connection announces its session
+			}
+		}
+	}
+	
+	// Asks the server something, without waiting; see RequestChannel for how the future completes.
+	// Any number of requests may be in flight at once.
+	public CompletableFuture<String> request(String request) {
+		return request(request, requestTimeout);
+	}
+	
+	public CompletableFuture<String> request(String request, Duration timeout) {
+		return requests.request(request, timeout);
+	}
+	
+	// Asks the server for a file by name and writes it to target, instead of waiting for the server to push
+	// one. The future completes with the file size once it has been committed. The request timeout covers
+	// only the server's answer, not the transfer.
+	public CompletableFuture<Long> fetchFile(String name, String target) {
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		reply.whenComplete((streamId, e) -> {
+			if (e != null) {
+				result.completeExceptionally(e);
+			} else {
+				requestedFiles.put(Integer.parseInt(streamId), new PendingReceive(target, result));
+			}
+		});
+		requests.request("FILE " + name, requestTimeout, reply);
+		return result;
+	}
+	
+	// Answers server requests whose first word is method, replacing any earlier handler for it.
+	public void registerRequestHandler(String method, RequestHandler handler) {
+		requestHandlers.put(method, handler);
+	}
+	
+	public void unregisterRequestHandler(String method) {
+		requestHandlers.remove(method);
+	}
+	
+	private void dispatchRequest(Request request) {
+		String method = request.command().name();
+		RequestHandler handler = requestHandlers.get(method);
+		if (handler == null) {
+			request.fail("Unknown request " + method);
+			return;
+		}
+		try {
+			handler.handle(request);
+		} catch (IOException | RuntimeException e) {
+			request.fail(e.getMessage() != null ? e.getMessage() : e.toString());
+			clientEventManager.triggerClientError("Error handling request " + method, e);
+		}
+	}
+	
+	public Duration getRequestTimeout() {
+		return requestTimeout;
+	}
+	
+	// For requests sent without a timeout of their own.
+	public void setRequestTimeout(Duration requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+	
+	// Used for offers that arrive without a pending receiveFileFromServer call; maps the server's file name
+	// to a local path, or returns null to decline the file.
+	public void setFileTargetResolver(Function<String, String> fileTargetResolver) {
+		this.fileTargetResolver = fileTargetResolver;
+	}
+	
+	public void sendMessage(String message) throws IOException {
+		writeFrame(Frames.message(message));
+	}
+	
+	private void writeFrame(ByteBuffer frame) throws IOException {
+		OutputStream stream = out;
+		if (stream == null) {
+			throw new IOException("Not connected");
+		}
+		Compression current = compression;
+		if (current != null) {
+			frame = current.compressFrame(frame);
+		}
+		int length = frame.remaining();
+		boolean message = frame.get(frame.position() + 4) == Frames.MESSAGE;
+		writeLock.lock();
+		try {
+			stream.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+			frame.position(frame.limit());
+		} finally {
+			writeLock.unlock();
+		}
+		clientMetrics.bytesSent.add(length);
+		if (message) {
+			clientMetrics.messagesSent.increment();
 		}
 	}
 	
 	public void connectToServer(String address, int port) throws IOException {
+		disconnectRequested = false;
+		reconnectAttempts = 0;
+		cancelReconnect();
+		connect(address, port);
+	}
+	
+	private void connect(String address, int port) throws IOException {
 		if (socket != null && !socket.isClosed()) {
 			clientEventManager.triggerClientError("Closing existing socket before reconnecting.", null);
 			socket.close();
 		}
 		
-		new Thread(() -> {
+		// One thread per connection: it connects, then becomes the reader loop
+		executionMode.start("client-connection", () -> {
+			ReadableByteChannel in;
+			Socket connection = new Socket();
 			try {
 				clientEventManager.triggerClientInit(port);
-				socket = new Socket();
+				socket = connection;
 				clientEventManager.triggerClientConnectAttempt(address, port);
-				socket.connect(new InetSocketAddress(address, port), 10000);
-				
-				socket.setSoTimeout(10000);
-				clientEventManager.triggerSocketTimeoutSet();
+				connection.connect(new InetSocketAddress(address, port), 10000);
+				connection.setTcpNoDelay(true);
 				
 				isConnected = true;
 				serverHost = address;
 				serverPort = port;
+				rememberServer(address, port);
 				
-				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				new Thread(() -> receiveMessages(in)).start();
-				
-				writer = new PrintWriter(socket.getOutputStream(), true);
+				in = new SocketInput(connection.getInputStream());
+				out = connection.getOutputStream();
+				compression = null;
+				lastHeartbeatAt = 0;
+				lastReadAt = System.nanoTime();
+				peerTimeoutNanos = heartbeatSettings.timeout().toNanos();
+				scheduleLivenessCheck(connection, peerTimeoutNanos);
+				clientMetrics.connects.increment();
 				clientEventManager.triggerClientConnect(address, port);
 				
+				if (!compressions.isEmpty()) {
+					StringBuilder offer = new StringBuilder("COMPRESS");
+					for (Compression supported : compressions) {
+						offer.append(' ').append(supported.id());
+					}
+					sendMessage(offer.toString());
+				}
+				
 			} catch (IOException e) {
 				isConnected = false;
 				clientEventManager.triggerClientError("Failed to connect", e);
-				disconnectFromServer();
+				connectionEnded(connection, address, port);
+				return;
 			}
-		}).start();
+			receiveMessages(in);
+			connectionEnded(connection, address, port);
+		});
 	}
 	
-	public void receiveMessages(BufferedReader in) {
-		new Thread(() -> {
+	// The connection failed or its reader stopped. Unless it was closed on purpose or already replaced, it
+	// is closed properly and, under the reconnect policy, tried again later.
+	private void connectionEnded(Socket connection, String address, int port) {
+		if (connection != socket) {
+			return;
+		}
+		closeConnection();
+		ReconnectPolicy policy = reconnectPolicy;
+		if (disconnectRequested || !policy.isEnabled()) {
+			return;
+		}
+		int attempt = reconnectAttempts++;
+		if (attempt >= policy.maxAttempts()) {
+			clientEventManager.triggerClientError("Gave up reconnecting to " + address + ":" + port, new IOException(attempt + " attempts failed"));
+			return;
+		}
+		long delayNanos = policy.delayNanos(attempt, ThreadLocalRandom.current().nextDouble());
+		clientEventManager.triggerReconnectScheduled(attempt + 1, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+		// Connecting blocks, so the wheel thread only hands it on
+		reconnectTimer = TimingWheel.shared().schedule(() -> getTransferExecutor().execute(() -> {
+			if (disconnectRequested) {
+				return;
+			}
 			try {
-				String fromServer;
-				while ((fromServer = in.readLine()) != null) {
-					String command = fromServer.split(" ")[0];
-					EventHandler handler = messageHandlers.get(command);
-					if (handler != null) {
-						handler.handle(fromServer);
-					} else {
-						clientEventManager.triggerServerMessage(fromServer);
-					}
-				}
-			} catch (SocketTimeoutException e) {
-				isConnected = false;
-				clientEventManager.triggerClientError("Read timed out", e);
-				disconnectFromServer();
+				connect(address, port);
 			} catch (IOException e) {
-				isConnected = false;
+				clientEventManager.triggerClientError("Failed to reconnect", e);
+			}
+		}), delayNanos, TimeUnit.NANOSECONDS, clientEventManager::triggerClientError);
+	}
+	
+	private void cancelReconnect() {
+		TimingWheel.Timeout timer = reconnectTimer;
+		if (timer != null) {
+			timer.cancel();
+		}
+	}
+	
+	public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+	
+	// Applies to the next connection lost; DISABLED (the default) leaves reconnecting to the application.
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+	
+	// Blocks the calling thread until the connection closes.
+	public void receiveMessages(ReadableByteChannel in) {
+		FrameDecoder decoder = new FrameDecoder();
+		Command command = new Command();
+		RangeReceiver ranges = new RangeReceiver();
+		try {
+			while (decoder.readFrom(in, (type, flags, streamId, payload) -> handleFrame(command, ranges, type, flags, streamId, payload)) != -1) {
+				// Frames are dispatched from inside readFrom
+			}
+			failTransfers("Connection closed");
+		} catch (SocketTimeoutException e) {
+			isConnected = false;
+			clientEventManager.triggerClientError("Read timed out", e);
+			closeConnection();
+		} catch (IOException e) {
+			isConnected = false;
+			// A socket we closed ourselves, e.g. on SHUTDOWN, is not a read error
+			if (socket != null && !socket.isClosed()) {
 				clientEventManager.triggerClientError("Error reading from server", e);
-				disconnectFromServer();
 			}
-		}).start();
+			closeConnection();
+			failTransfers("Disconnected from server");
+		}
+	}
+	
+	private void handleFrame(Command command, RangeReceiver ranges, byte type, byte flags, int streamId, ByteBuffer payload) throws IOException {
+		lastReadAt = System.nanoTime();
+		clientMetrics.bytesReceived.add(Frames.HEADER_LENGTH + payload.remaining());
+		if ((flags & Frames.FLAG_COMPRESSED) != 0) {
+			// The server only compresses after answering our COMPRESS offer, which set the codec on this thread
+			Compression current = compression;
+			if (current == null) {
+				throw new IOException("Compressed frame before a codec was negotiated");
+			}
+			payload = current.decompress(payload);
+		}
+		switch (type) {
+			case Frames.MESSAGE -> {
+				clientMetrics.messagesReceived.increment();
+				// Sequenced messages carry their number in the stream id; compared so that wrapping is harmless
+				if (streamId != 0 && streamId - lastSequence > 0) {
+					lastSequence = streamId;
+				}
+				command.reset(payload);
+				CommandHandler handler = commandHandlers.match(command);
+				if (handler instanceof QueuedHandler) {
+					// Only copies and queues the message
+					handler.handle(command);
+				} else if (handler != null) {
+					runHandler(handler, command);
+				} else {
+					clientEventManager.triggerServerMessage(command.text());
+				}
+			}
+			case Frames.FILE_OFFER -> {
+				long length = payload.getLong();
+				long version = payload.getLong();
+				String fileName = Frames.text(payload);
+				// Behind any queued handler that may be about to ask for this file; the server sends nothing more for the stream until we answer
+				offers.offer(() -> acceptFileOffer(streamId, length, version, fileName));
+			}
+			case Frames.STREAM_DATA -> {
+				IncomingTransfer transfer = transfers.get(streamId);
+				if (transfer != null) {
+					transfer.onData(payload);
+				}
+			}
+			case Frames.STREAM_END -> {
+				IncomingTransfer transfer = transfers.get(streamId);
+				if (transfer == null) {
+					return;
+				}
+				if (transfer.isDelta()) {
+					transfer.finishDelta();
+					return;
+				}
+				if (transfer.isParallel()) {
+					if (transfer.onParallelEnd(payload.getLong(), payload.getInt())) {
+						finishParallel(transfer);
+					}
+					return;
+				}
+				transfers.remove(streamId);
+				try {
+					long fileSize = transfer.finishFull(payload.getLong(), payload.getInt());
+					transfer.getResult().complete(fileSize);
+					clientEventManager.triggerFileReceived(transfer.getName(), fileSize);
+				} catch (IOException e) {
+					transfer.fail(e.getMessage());
+					clientEventManager.triggerClientError("Error receiving file", e);
+				}
+			}
+			case Frames.RANGE_DATA, Frames.RANGE_END -> handleRangeFrame(ranges, type, streamId, payload);
+			case Frames.STREAM_CANCEL -> {
+				IncomingTransfer transfer = transfers.remove(streamId);
+				if (transfer != null) {
+					String reason = Frames.text(payload);
+					transfer.fail(reason);
+					clientEventManager.triggerClientError("Error receiving file", new IOException(reason));
+				}
+			}
+			default -> clientEventManager.triggerClientError("Error reading from server", new IOException("Unexpected frame type " + type));
+		}
 	}
 	
+	private void acceptFileOffer(int streamId, long length, long version, String fileName) {
+		try {
+			handleFileOffer(streamId, length, version, fileName);
+		} catch (IOException | RuntimeException e) {
+			clientEventManager.triggerClientError("Error receiving file", e);
+		}
+	}
+	
+	private void handleFileOffer(int streamId, long length, long version, String fileName) throws IOException {
+		PendingReceive pending = requestedFiles.remove(streamId);
+		if (pending == null) {
+			pending = resumes.remove(version);
+		}
+		if (pending == null) {
+			pending = takeNamedReceive(fileName);
+		}
+		if (pending == null) {
+			pending = pendingReceives.poll();
+		}
+		String name = pending != null ? pending.name() : null;
+		if (name == null && fileTargetResolver != null) {
+			name = fileTargetResolver.apply(fileName);
+		}
+		if (name == null) {
+			writeFrame(Frames.streamCancel(streamId, "No receiver for " + fileName));
+			return;
+		}
+		
+		CompletableFuture<Long> result = pending != null ? pending.result() : new CompletableFuture<>();
+		long offeredAt = System.nanoTime();
+		result.whenComplete((fileSize, e) -> {
+			if (e == null) {
+				clientMetrics.fileReceiveDuration.recordSince(offeredAt);
+				clientMetrics.filesReceived.increment();
+				clientMetrics.fileBytesReceived.add(fileSize);
+			} else {
+				clientMetrics.fileFailures.increment();
+			}
+		});
+		IncomingTransfer transfer = new IncomingTransfer(streamId, name, fileName, length, version, result);
+		transfers.put(streamId, transfer);
+		try {
+			TransferCheckpoint checkpoint = TransferCheckpoint.read(transfer.getTarget());
+			if (checkpoint != null && !(checkpoint.matches(version, length) && transfer.openResume(checkpoint))) {
+				// Part of some other version, or no longer what the checkpoint recorded; no use to anyone now
+				discardPartial(transfer.getTarget());
+				checkpoint = null;
+			}
+			if (checkpoint != null) {
+				writeFrame(Frames.fileResume(streamId, checkpoint.committed()));
+			} else if (parallelTransfers.appliesTo(length) && !(deltaSync && Files.exists(transfer.getTarget()))) {
+				transfer.openParallel();
+				writeFrame(Frames.fileAccept(streamId, Frames.MODE_PARALLEL));
+			} else if (deltaSync) {
+				StreamInputChannel deltaInput = transfer.openDelta();
+				writeFrame(Frames.fileAccept(streamId, Frames.MODE_DELTA));
+				ExecutorService executor = getTransferExecutor();
+				executor.execute(() -> sendSignature(transfer));
+				executor.execute(() -> applyDelta(transfer, deltaInput));
+			} else {
+				transfer.openFull();
+				writeFrame(Frames.fileAccept(streamId, Frames.MODE_FULL));
+			}
+		} catch (IOException e) {
+			transfers.remove(streamId);
+			transfer.fail(e.getMessage());
+			clientEventManager.triggerClientError("Error receiving file", e);
+			writeFrame(Frames.streamCancel(streamId, String.valueOf(e.getMessage())));
+		}
+	}
+	
+	// Called by the reader of whichever connection the range arrived on. A bad range fails the whole
+	// transfer; ranges still in flight for it are then ignored.
+	private void handleRangeFrame(RangeReceiver ranges, byte type, int streamId, ByteBuffer payload) throws IOException {
+		IncomingTransfer transfer = transfers.get(streamId);
+		if (transfer == null || !transfer.isParallel()) {
+			ranges.forget(streamId);
+			return;
+		}
+		try {
+			if (type == Frames.RANGE_DATA) {
+				ranges.onData(transfer, payload);
+			} else if (transfer.onRangeVerified(ranges.onEnd(transfer, payload))) {
+				finishParallel(transfer);
+			}
+		} catch (IOException e) {
+			ranges.forget(streamId);
+			if (transfers.remove(streamId, transfer)) {
+				transfer.fail(e.getMessage());
+				clientEventManager.triggerClientError("Error receiving file", e);
+				writeFrame(Frames.streamCancel(streamId, String.valueOf(e.getMessage())));
+			}
+		}
+	}
+	
+	private void finishParallel(IncomingTransfer transfer) {
+		if (!transfers.remove(transfer.getStreamId(), transfer)) {
+			return;
+		}
+		try {
+			long fileSize = transfer.finishParallel();
+			transfer.getResult().complete(fileSize);
+			clientEventManager.triggerFileReceived(transfer.getName(), fileSize);
+		} catch (IOException e) {
+			transfer.fail(e.getMessage());
+			clientEventManager.triggerClientError("Error receiving file", e);
+		}
+	}
+	
+	private void openDataConnections(String session, String token) {
+		for (int i = 0; i < parallelTransfers.dataConnections(); i++) {
+			executionMode.start("client-data-" + i, () -> runDataConnection(session, token));
+		}
+	}
+	
+	// An extra connection joined to our session with DATA <id> <token>. The server sends it nothing but
+	// ranges and heartbeats, so it needs no compression and answers only the heartbeats itself.
+	private void runDataConnection(String session, String token) {
+		Socket dataSocket = new Socket();
+		dataSockets.add(dataSocket);
+		try {
+			dataSocket.connect(new InetSocketAddress(serverHost, serverPort), 10000);
+			dataSocket.setTcpNoDelay(true);
+			OutputStream dataOut = dataSocket.getOutputStream();
+			writeTo(dataOut, Frames.message("DATA " + session + " " + token));
+			if (!isConnected || !session.equals(sessionId)) {
+				// Disconnected or reconnected while this connection was being set up
+				return;
+			}
+			RangeReceiver ranges = new RangeReceiver();
+			FrameDecoder decoder = new FrameDecoder();
+			ReadableByteChannel in = new SocketInput(dataSocket.getInputStream());
+			while (decoder.readFrom(in, (type, flags, streamId, payload) -> {
+				clientMetrics.bytesReceived.add(Frames.HEADER_LENGTH + payload.remaining());
+				if (type == Frames.MESSAGE) {
+					String text = Frames.text(payload);
+					if (text.startsWith("HEARTBEAT")) {
+						writeTo(dataOut, Frames.message(text));
+					}
+				} else {
+					handleRangeFrame(ranges, type, streamId, payload);
+				}
+			}) != -1) {
+				// Frames are dispatched from inside readFrom
+			}
+		} catch (IOException e) {
+			if (!dataSocket.isClosed()) {
+				clientEventManager.triggerClientError("Data connection lost", e);
+			}
+		} finally {
+			dataSockets.remove(dataSocket);
+			try {
+				dataSocket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+	
+	// Data connections have a single writer, their own reader thread, so they need no lock.
+	private void writeTo(OutputStream stream, ByteBuffer frame) throws IOException {
+		stream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		clientMetrics.bytesSent.add(frame.remaining());
+	}
+	
+	private void sendSignature(IncomingTransfer transfer) {
+		try (StreamOutputChannel signature = new StreamOutputChannel(this::writeFrame, transfer.getStreamId())) {
+			DeltaSync.writeSignature(transfer.getTarget(), transfer.getOfferedLength(), signature);
+			signature.flush();
+			writeFrame(Frames.streamEnd(transfer.getStreamId(), 0, 0));
+		} catch (IOException e) {
+			clientEventManager.triggerClientError("Error sending file signature", e);
+		}
+	}
+	
+	private void applyDelta(IncomingTransfer transfer, StreamInputChannel deltaInput) {
+		try {
+			long fileSize = DeltaSync.applyDelta(transfer.getTarget(), deltaInput, transfer.getTarget());
+			transfer.getResult().complete(fileSize);
+			clientEventManager.triggerFileReceived(transfer.getName(), fileSize);
+		} catch (IOException e) {
+			transfer.getResult().completeExceptionally(e);
+			clientEventManager.triggerClientError("Error receiving file", e);
+		} finally {
+			transfers.remove(transfer.getStreamId());
+		}
+	}
+	
+	// Codecs offered to the server on connect, most preferred first. Must be added before connecting.
+	public void addCompression(Compression compression) {
+		compressions.add(compression);
+		compression.registerMetrics(metrics);
+	}
+	
+	// The codec the server picked for this connection, or null when nothing is compressed.
+	public Compression getCompression() {
+		return compression;
+	}
+	
+	private Compression findCompression(String id) {
+		for (Compression supported : compressions) {
+			if (supported.id().equals(id)) {
+				return supported;
+			}
+		}
+		return null;
+	}
+	
+	// Sequential transfers keep their partial file and are asked for again after reconnecting.
+	private void failTransfers(String reason) {
+		for (IncomingTransfer transfer : transfers.values()) {
+			if (transfer.interrupt(reason)) {
+				resumes.putIfAbsent(transfer.getVersion(), new PendingReceive(transfer.getName(), new CompletableFuture<>()));
+			}
+		}
+		transfers.clear();
+		// Replies can only come back on the connection the request went out on
+		requests.failAll(reason);
+		for (Integer streamId : requestedFiles.keySet()) {
+			PendingReceive requested = requestedFiles.remove(streamId);
+			if (requested != null) {
+				requested.result().completeExceptionally(new IOException(reason));
+			}
+		}
+	}
+	
+	private synchronized ExecutorService getTransferExecutor() {
+		if (transferExecutor == null) {
+			transferExecutor = executionMode.newExecutor("client-transfer");
+		}
+		return transferExecutor;
+	}
+	
+	public HeartbeatSettings getHeartbeatSettings() {
+		return heartbeatSettings;
+	}
+	
+	// maxMissed sets how many of the server's heartbeat intervals may pass without any data before the
+	// connection is dropped; interval only applies until the first heartbeat announces the server's own.
+	public void setHeartbeatSettings(HeartbeatSettings heartbeatSettings) {
+		this.heartbeatSettings = heartbeatSettings;
+	}
+	
+	// Stands in for a socket read timeout. Any frame counts as a sign of life, and rather than being
+	// re-armed on every read the timer checks when data last arrived and sleeps for whatever is left.
+	private void scheduleLivenessCheck(Socket connection, long delayNanos) {
+		livenessTimer = TimingWheel.shared().schedule(() -> checkLiveness(connection), delayNanos, TimeUnit.NANOSECONDS, clientEventManager::triggerClientError);
+	}
+	
+	private void checkLiveness(Socket connection) {
+		if (connection != socket || connection.isClosed()) {
+			return;
+		}
+		long silent = System.nanoTime() - lastReadAt;
+		long timeout = peerTimeoutNanos;
+		if (silent < timeout) {
+			scheduleLivenessCheck(connection, timeout - silent);
+			return;
+		}
+		isConnected = false;
+		clientEventManager.triggerClientError("Heartbeat lost", new SocketTimeoutException("Nothing received from the server for " + TimeUnit.NANOSECONDS.toMillis(silent) + " ms"));
+		// Runs on the wheel thread, and closing checkpoints interrupted transfers to disk
+		getTransferExecutor().execute(() -> {
+			if (connection == socket) {
+				closeConnection();
+			}
+		});
+	}
+	
+	// Closes the connection for good: nothing is reconnected, whatever the reconnect policy.
 	public void disconnectFromServer() {
+		disconnectRequested = true;
+		cancelReconnect();
+		closeConnection();
+		clientEventManager.close();
+	}
+	
+	private void closeConnection() {
+		TimingWheel.Timeout timer = livenessTimer;
+		if (timer != null) {
+			timer.cancel();
+		}
 		try {
 			isConnected = false;
+			for (Socket dataSocket : dataSockets) {
+				dataSocket.close();
+			}
 			if (socket != null && !socket.isClosed()) {
 				socket.close();
+				failTransfers("Disconnected from server");
 				clientEventManager.triggerClientDisconnect("");
 			}
 		} catch (IOException e) {
@@ -119,6 +891,131 @@ public class Client {
 		}
 	}
 	
+	// Asks every server listening on the discovery port to answer and connects to the one with the fewest
+	// clients. The last server connected to is asked directly as well, and taken the moment it answers, so
+	// reconnecting to a known server costs one round trip rather than the whole window.
+	public DiscoveredServer connectToDiscoveredServer(int discoveryPort) throws IOException {
+		List<DiscoveredServer> servers = discover(discoveryPort, DISCOVERY_WINDOW, true);
+		if (servers.isEmpty()) {
+			throw new IOException("No server answered discovery on port " + discoveryPort);
+		}
+		DiscoveredServer server = servers.getFirst();
+		clientEventManager.triggerServerDiscovery(server.host(), server.port());
+		connectToServer(server.host(), server.port());
+		return server;
+	}
+	
+	// Every server that answered within the window, least loaded first. Blocks for the whole window.
+	public List<DiscoveredServer> discoverServers(int discoveryPort, Duration window) throws IOException {
+		return discover(discoveryPort, window, false);
+	}
+	
+	private List<DiscoveredServer> discover(int discoveryPort, Duration window, boolean takeKnown) throws IOException {
+		InetSocketAddress known = getLastServer();
+		InetAddress knownAddress = null;
+		if (known != null) {
+			try {
+				knownAddress = InetAddress.getByName(known.getHostString());
+			} catch (UnknownHostException e) {
+				// Found again through multicast or broadcast if it still exists
+			}
+		}
+		long nonce = NONCES.nextLong() & Long.MAX_VALUE;
+		Map<String, DiscoveredServer> found = new LinkedHashMap<>();
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setBroadcast(true);
+			byte[] query = Discovery.query(nonce);
+			long sentAt = System.nanoTime();
+			List<InetSocketAddress> targets = new ArrayList<>();
+			if (knownAddress != null) {
+				targets.add(new InetSocketAddress(knownAddress, discoveryPort));
+			}
+			targets.add(new InetSocketAddress(Discovery.group(), discoveryPort));
+			targets.add(new InetSocketAddress(InetAddress.getByName("255.255.255.255"), discoveryPort));
+			sendQuery(socket, query, targets);
+			long deadline = sentAt + window.toNanos();
+			byte[] buffer = new byte[Discovery.MAX_DATAGRAM];
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > 0) {
+				socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				Discovery.Answer answer = Discovery.parseAnswer(packet, nonce);
+				if (answer == null) {
+					continue;
+				}
+				DiscoveredServer server = new DiscoveredServer(packet.getAddress().getHostAddress(), answer.port(), answer.load(), answer.capabilities(), Duration.ofNanos(System.nanoTime() - sentAt));
+				// One server answers each copy of the query it receives
+				found.putIfAbsent(server.host() + ":" + server.port(), server);
+				if (takeKnown && packet.getAddress().equals(knownAddress) && answer.port() == known.getPort()) {
+					return List.of(server);
+				}
+			}
+		}
+		List<DiscoveredServer> servers = new ArrayList<>(found.values());
+		servers.sort(Comparator.comparingInt(DiscoveredServer::load).thenComparing(DiscoveredServer::latency));
+		return servers;
+	}
+	
+	// Multicast or broadcast may be unavailable on this host; only fails if the query could not go anywhere.
+	private static void sendQuery(DatagramSocket socket, byte[] query, List<InetSocketAddress> targets) throws IOException {
+		IOException failure = null;
+		boolean sent = false;
+		for (InetSocketAddress target : targets) {
+			try {
+				socket.send(new DatagramPacket(query, query.length, target));
+				sent = true;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (!sent) {
+			throw failure;
+		}
+	}
+	
+	public InetSocketAddress getLastServer() {
+		InetSocketAddress server = lastServer;
+		Path file = serverCacheFile;
+		if (server == null && file != null) {
+			try {
+				String[] parts = Files.readString(file).trim().split(" ");
+				if (parts.length == 2) {
+					server = InetSocketAddress.createUnresolved(parts[0], Integer.parseInt(parts[1]));
+					lastServer = server;
+				}
+			} catch (IOException | NumberFormatException e) {
+				// No usable cache yet; discovery falls back to multicast and broadcast
+			}
+		}
+		return server;
+	}
+	
+	// Keeps the last server connected to in this file, so the next run can try it first too.
+	public void setServerCacheFile(Path serverCacheFile) {
+		this.serverCacheFile = serverCacheFile;
+	}
+	
+	private void rememberServer(String address, int port) {
+		InetSocketAddress server = InetSocketAddress.createUnresolved(address, port);
+		if (server.equals(lastServer)) {
+			return;
+		}
+		lastServer = server;
+		Path file = serverCacheFile;
+		if (file != null) {
+			try {
+				Files.writeString(file, address + " " + port + System.lineSeparator());
+			} catch (IOException e) {
+				clientEventManager.triggerClientError("Error caching server address", e);
+			}
+		}
+	}
+	
 	public void listenForServerBroadcasts(int broadcastPort) {
 		clientEventManager.triggerBroadcastPortUsed(broadcastPort);
 		
@@ -153,15 +1050,133 @@ public class Client {
 		}
 	}
 	
-	/* TODO:
-	 *  Add support for arguments, so have arguments as a string
-	 */
+	// Handlers receiving the whole message as a string; the string is only decoded for these.
 	public void registerMessageHandler(String command, EventHandler handler) {
-		messageHandlers.put(command, handler);
+		registerMessageHandler(command, handler, handlerPolicy);
+	}
+	
+	public void registerMessageHandler(String command, EventHandler handler, HandlerPolicy policy) {
+		registerCommandHandler(command, message -> handler.handle(message.text()), policy);
+	}
+	
+	// Safe to call from any thread, including while messages are being dispatched.
+	public void registerCommandHandler(String command, CommandHandler handler) {
+		registerCommandHandler(command, handler, handlerPolicy);
+	}
+	
+	public void registerCommandHandler(String command, CommandHandler handler, HandlerPolicy policy) {
+		register(command, handler, policy);
+	}
+	
+	// The constructor registers the built-in handlers here, as a subclass may override the public methods
+	private void register(String command, CommandHandler handler) {
+		register(command, handler, handlerPolicy);
+	}
+	
+	private void register(String command, CommandHandler handler, HandlerPolicy policy) {
+		if (policy.execution() == HandlerExecution.INLINE) {
+			commandHandlers.register(command, handler);
+		} else {
+			commandHandlers.register(command, new QueuedHandler(command, handler, policy, task -> handlerExecutor(policy.execution()).execute(task), this));
+		}
+	}
+	
+	// The policy for handlers registered from now on without one of their own. Defaults to INLINE.
+	public HandlerPolicy getHandlerPolicy() {
+		return handlerPolicy;
+	}
+	
+	public void setHandlerPolicy(HandlerPolicy handlerPolicy) {
+		this.handlerPolicy = handlerPolicy;
+	}
+	
+	void runHandler(CommandHandler handler, Command command) throws IOException {
+		long started = System.nanoTime();
+		handler.handle(command);
+		clientMetrics.handlerDuration.recordSince(started);
+	}
+	
+	void onHandlerOverflow(String command) {
+		clientMetrics.handlerDropped.increment();
+		clientEventManager.triggerClientError("Message dropped", new IOException("Handler queue for " + command + " is full"));
+	}
+	
+	// A file offer that arrives after the message waits until it is done; see OfferBarrier.
+	long onHandlerQueued() {
+		return offers.enter();
+	}
+	
+	void onHandlerDone(long arrival) {
+		offers.exit(arrival);
+	}
+	
+	void onHandlerError(String command, Exception e) {
+		clientEventManager.triggerClientError("Error in handler for " + command, e);
+	}
+	
+	// Created on first use; pool threads exit when idle, so an unused client holds none.
+	private ExecutorService handlerExecutor(HandlerExecution execution) {
+		ExecutorService executor = execution == HandlerExecution.POOL ? handlerPool : handlerThreads;
+		if (executor != null) {
+			return executor;
+		}
+		handlerLock.lock();
+		try {
+			if (execution == HandlerExecution.POOL) {
+				if (handlerPool == null) {
+					int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, HANDLER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), Thread.ofPlatform().name("client-handler-", 0).daemon(true).factory());
+					pool.allowCoreThreadTimeOut(true);
+					handlerPool = pool;
+				}
+				return handlerPool;
+			}
+			if (handlerThreads == null) {
+				handlerThreads = ExecutionMode.VIRTUAL_THREADS.newExecutor("client-handler");
+			}
+			return handlerThreads;
+		} finally {
+			handlerLock.unlock();
+		}
+	}
+	
+	public void unregisterMessageHandler(String command) {
+		commandHandlers.unregister(command);
 	}
 	
 	private void handleShutdown(String message) {
 		clientEventManager.triggerShutdownReceived(message);
 		disconnectFromServer();
 	}
+	
+	// Channels.newChannel synchronizes every read, which would pin a virtual reader thread to its carrier
+	private static final class SocketInput implements ReadableByteChannel {
+		private final InputStream stream;
+		
+		SocketInput(InputStream stream) {
+			this.stream = stream;
+		}
+		
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int read = stream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (read > 0) {
+				dst.position(dst.position() + read);
+			}
+			return read;
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			stream.close();
+		}
+	}
+	
+	private record PendingReceive(String name, CompletableFuture<Long> result) {
+	}
 }
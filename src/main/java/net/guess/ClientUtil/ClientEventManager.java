@@ -1,163 +1,328 @@
 package net.guess.ClientUtil;
 
+import net.guess.SharedUtil.EventBus;
+
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
+/**
+ * Client events. Triggers only publish to an {@link EventBus}, so listeners run on its dispatcher thread
+ * rather than on the reader thread that raised the event. setOnX replaces every listener of an event
+ * (null removes them); addOnX adds another one.
+ */
 public class ClientEventManager {
-	private Consumer<Integer> onClientInit = port -> {
-		System.out.println("Client initialized on port: " + port);
-	};
-	private BiConsumer<String, Integer> onClientConnectHandler = (String address, Integer port) -> {
-		System.out.println("Client connected: " + address + ":" + port);
-	};
-	private Consumer<String> onClientDisconnectHandler = message -> {
-		System.out.println("Client disconnected: " + message);
-	};
-	private BiConsumer<String, Exception> onClientErrorHandler = (message, exception) -> {
-		System.out.println(message + ": " + exception.getMessage());
-	};
-	private Consumer<String> onServerMessageHandler = message -> {
-		System.out.println("Received: " + message);
-	};
-	private Consumer<String> onHeartbeatReceivedHandler = message -> {
-		System.out.println("Heartbeat received: " + message);
-	};
-	private BiConsumer<String, Integer> onFileReceivedHandler = (String name, Integer size) -> {
-		System.out.println("File received: " + name + ":" + size);
-	};
-	private BiConsumer<String, Integer> onClientConnectAttemptHandler = (address, port) -> {
-		System.out.println("Attempting to connect to " + address + ":" + port);
-	};
-	private Runnable onSocketTimeoutSetHandler = () -> {
-		System.out.println("Socket timeout set.");
-	};
-	private Consumer<String> onClientAlreadyConnectedHandler = message -> {
-		System.out.println("Already connected");
-	};
-	private BiConsumer<String, Integer> onServerDiscoveryHandler = (serverAddress, serverPort) -> {
-		System.out.println("Discovered server at " + serverAddress + ":" + serverPort);
-	};
-	private Consumer<Integer> onBroadcastPortUsedHandler = port -> {
-		System.out.println("Using broadcastPort: " + port);
-	};
-	private Consumer<String> onShutdownReceivedHandler = message -> {
-		System.out.println("Received shutdown, Disconnecting...");
-	};
-	private BiConsumer<String, Integer> onFileUpdateHandler = (fileName, fileSize) -> {
-		System.out.println("File update received: " + fileName + " (" + fileSize + " bytes)");
-	};
+	private static final int EVENT_CAPACITY = 4096;
+	private static final int EVENT_BATCH = 256;
+	
+	private enum Event {
+		CLIENT_INIT,
+		CLIENT_CONNECT,
+		CLIENT_DISCONNECT,
+		CLIENT_ERROR,
+		SERVER_MESSAGE,
+		HEARTBEAT_RECEIVED,
+		FILE_RECEIVED,
+		CLIENT_CONNECT_ATTEMPT,
+		SOCKET_TIMEOUT_SET,
+		CLIENT_ALREADY_CONNECTED,
+		SERVER_DISCOVERY,
+		BROADCAST_PORT_USED,
+		SHUTDOWN_RECEIVED,
+		FILE_UPDATE,
+		RECONNECT_SCHEDULED,
+		SESSION_RESUMED,
+		RESYNC_REQUIRED
+	}
+	
+	private final EventBus bus = new EventBus("client", Event.values().length, EVENT_CAPACITY, EVENT_BATCH, Event.CLIENT_ERROR.ordinal(), this::reportError);
+	// Counted when triggered, so it stays exact even if listeners are replaced or events are dropped
+	private final LongAdder errorCount = new LongAdder();
+	
+	// Heartbeats have no default so they cost nothing unless subscribed
+	public ClientEventManager() {
+		listen(Event.CLIENT_INIT, EventBus.listener(port -> {
+			System.out.println("Client initialized on port: " + port);
+		}));
+		listen(Event.CLIENT_CONNECT, EventBus.listener((String address, Integer port) -> {
+			System.out.println("Client connected: " + address + ":" + port);
+		}));
+		listen(Event.CLIENT_DISCONNECT, EventBus.listener(message -> {
+			System.out.println("Client disconnected: " + message);
+		}));
+		listen(Event.CLIENT_ERROR, EventBus.listener((String message, Exception exception) -> {
+			System.out.println(message + ": " + exception.getMessage());
+		}));
+		listen(Event.SERVER_MESSAGE, EventBus.listener(message -> {
+			System.out.println("Received: " + message);
+		}));
+		listen(Event.FILE_RECEIVED, EventBus.listener((String name, Long size) -> {
+			System.out.println("File received: " + name + ":" + size);
+		}));
+		listen(Event.CLIENT_CONNECT_ATTEMPT, EventBus.listener((address, port) -> {
+			System.out.println("Attempting to connect to " + address + ":" + port);
+		}));
+		listen(Event.SOCKET_TIMEOUT_SET, EventBus.listener(() -> {
+			System.out.println("Socket timeout set.");
+		}));
+		listen(Event.CLIENT_ALREADY_CONNECTED, EventBus.listener(message -> {
+			System.out.println("Already connected");
+		}));
+		listen(Event.SERVER_DISCOVERY, EventBus.listener((serverAddress, serverPort) -> {
+			System.out.println("Discovered server at " + serverAddress + ":" + serverPort);
+		}));
+		listen(Event.BROADCAST_PORT_USED, EventBus.listener(port -> {
+			System.out.println("Using broadcastPort: " + port);
+		}));
+		listen(Event.SHUTDOWN_RECEIVED, EventBus.listener(message -> {
+			System.out.println("Received shutdown, Disconnecting...");
+		}));
+		listen(Event.FILE_UPDATE, EventBus.listener((fileName, fileSize) -> {
+			System.out.println("File update received: " + fileName + " (" + fileSize + " bytes)");
+		}));
+		listen(Event.RECONNECT_SCHEDULED, EventBus.listener((attempt, delayMillis) -> {
+			System.out.println("Reconnecting in " + delayMillis + " ms (attempt " + attempt + ")");
+		}));
+		listen(Event.SESSION_RESUMED, EventBus.listener(replayed -> {
+			System.out.println("Session resumed, " + replayed + " missed messages replayed");
+		}));
+		listen(Event.RESYNC_REQUIRED, EventBus.listener(reason -> {
+			System.out.println("Full resync required: " + reason);
+		}));
+	}
+	
+	// Events dropped because listeners fell too far behind
+	public long getDroppedEventCount() {
+		return bus.getDroppedCount();
+	}
+	
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+	
+	// Stops the listener thread once it has delivered pending events; the next event starts it again.
+	public void close() {
+		bus.close();
+	}
+	
+	// Used by the constructor and the bus, which must not call methods a subclass could override
+	private void listen(Event event, BiConsumer<Object, Object> listener) {
+		bus.set(event.ordinal(), listener);
+	}
+	
+	private void reportError(String message, Exception e) {
+		errorCount.increment();
+		bus.publish(Event.CLIENT_ERROR.ordinal(), message, e);
+	}
 	
 	// Setters
 	public void setOnFileUpdateHandler(BiConsumer<String, Integer> handler) {
-		this.onFileUpdateHandler = handler;
+		bus.set(Event.FILE_UPDATE.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientInit(Consumer<Integer> handler) {
-		this.onClientInit = handler;
+		bus.set(Event.CLIENT_INIT.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientConnect(BiConsumer<String, Integer> handler) {
-		this.onClientConnectHandler = handler;
+		bus.set(Event.CLIENT_CONNECT.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientDisconnect(Consumer<String> handler) {
-		this.onClientDisconnectHandler = handler;
+		bus.set(Event.CLIENT_DISCONNECT.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientError(BiConsumer<String, Exception> handler) {
-		this.onClientErrorHandler = handler;
+		bus.set(Event.CLIENT_ERROR.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnServerMessage(Consumer<String> handler) {
-		this.onServerMessageHandler = handler;
+		bus.set(Event.SERVER_MESSAGE.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnHeartbeatReceived(Consumer<String> handler) {
-		this.onHeartbeatReceivedHandler = handler;
+		bus.set(Event.HEARTBEAT_RECEIVED.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
-	public void setOnFileReceived(BiConsumer<String, Integer> handler) {
-		this.onFileReceivedHandler = handler;
+	public void setOnFileReceived(BiConsumer<String, Long> handler) {
+		bus.set(Event.FILE_RECEIVED.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientConnectAttempt(BiConsumer<String, Integer> handler) {
-		this.onClientConnectAttemptHandler = handler;
+		bus.set(Event.CLIENT_CONNECT_ATTEMPT.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnSocketTimeoutSet(Runnable handler) {
-		this.onSocketTimeoutSetHandler = handler;
+		bus.set(Event.SOCKET_TIMEOUT_SET.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientAlreadyConnected(Consumer<String> handler) {
-		this.onClientAlreadyConnectedHandler = handler;
+		bus.set(Event.CLIENT_ALREADY_CONNECTED.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnServerDiscovery(BiConsumer<String, Integer> handler) {
-		this.onServerDiscoveryHandler = handler;
+		bus.set(Event.SERVER_DISCOVERY.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnBroadcastPortUsed(Consumer<Integer> handler) {
-		this.onBroadcastPortUsedHandler = handler;
+		bus.set(Event.BROADCAST_PORT_USED.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnShutdownReceived(Consumer<String> handler) {
-		this.onShutdownReceivedHandler = handler;
+		bus.set(Event.SHUTDOWN_RECEIVED.ordinal(), handler == null ? null : EventBus.listener(handler));
+	}
+	
+	// Attempt number (from 1) and the delay before it.
+	public void setOnReconnectScheduled(BiConsumer<Integer, Long> handler) {
+		bus.set(Event.RECONNECT_SCHEDULED.ordinal(), handler == null ? null : EventBus.listener(handler));
+	}
+	
+	// A reconnect picked up the previous session; the count of missed messages that were sent again.
+	public void setOnSessionResumed(Consumer<Integer> handler) {
+		bus.set(Event.SESSION_RESUMED.ordinal(), handler == null ? null : EventBus.listener(handler));
+	}
+	
+	// A reconnect could not be caught up message by message, so application state should be fetched again.
+	// Recently broadcast files are offered again without being asked.
+	public void setOnResyncRequired(Consumer<String> handler) {
+		bus.set(Event.RESYNC_REQUIRED.ordinal(), handler == null ? null : EventBus.listener(handler));
+	}
+	
+	// Additional listeners
+	public void addOnFileUpdate(BiConsumer<String, Integer> handler) {
+		bus.add(Event.FILE_UPDATE.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnClientInit(Consumer<Integer> handler) {
+		bus.add(Event.CLIENT_INIT.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnClientConnect(BiConsumer<String, Integer> handler) {
+		bus.add(Event.CLIENT_CONNECT.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnClientDisconnect(Consumer<String> handler) {
+		bus.add(Event.CLIENT_DISCONNECT.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnClientError(BiConsumer<String, Exception> handler) {
+		bus.add(Event.CLIENT_ERROR.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnServerMessage(Consumer<String> handler) {
+		bus.add(Event.SERVER_MESSAGE.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnHeartbeatReceived(Consumer<String> handler) {
+		bus.add(Event.HEARTBEAT_RECEIVED.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnFileReceived(BiConsumer<String, Long> handler) {
+		bus.add(Event.FILE_RECEIVED.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnClientConnectAttempt(BiConsumer<String, Integer> handler) {
+		bus.add(Event.CLIENT_CONNECT_ATTEMPT.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnSocketTimeoutSet(Runnable handler) {
+		bus.add(Event.SOCKET_TIMEOUT_SET.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnClientAlreadyConnected(Consumer<String> handler) {
+		bus.add(Event.CLIENT_ALREADY_CONNECTED.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnServerDiscovery(BiConsumer<String, Integer> handler) {
+		bus.add(Event.SERVER_DISCOVERY.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnBroadcastPortUsed(Consumer<Integer> handler) {
+		bus.add(Event.BROADCAST_PORT_USED.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnShutdownReceived(Consumer<String> handler) {
+		bus.add(Event.SHUTDOWN_RECEIVED.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnReconnectScheduled(BiConsumer<Integer, Long> handler) {
+		bus.add(Event.RECONNECT_SCHEDULED.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnSessionResumed(Consumer<Integer> handler) {
+		bus.add(Event.SESSION_RESUMED.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnResyncRequired(Consumer<String> handler) {
+		bus.add(Event.RESYNC_REQUIRED.ordinal(), EventBus.listener(handler));
 	}
 	
 	// Triggers
 	public void triggerClientInit(Integer port) {
-		onClientInit.accept(port);
+		bus.publish(Event.CLIENT_INIT.ordinal(), port, null);
 	}
 	
 	public void triggerFileUpdate(String fileName, Integer fileSize) {
-		onFileUpdateHandler.accept(fileName, fileSize);
+		bus.publish(Event.FILE_UPDATE.ordinal(), fileName, fileSize);
 	}
 	
 	public void triggerClientConnect(String address, Integer port) {
-		onClientConnectHandler.accept(address, port);
+		bus.publish(Event.CLIENT_CONNECT.ordinal(), address, port);
 	}
 	
 	public void triggerClientDisconnect(String message) {
-		onClientDisconnectHandler.accept(message);
+		bus.publish(Event.CLIENT_DISCONNECT.ordinal(), message, null);
 	}
 	
 	public void triggerClientError(String message, Exception e) {
-		onClientErrorHandler.accept(message, e);
+		reportError(message, e);
 	}
 	
 	public void triggerServerMessage(String message) {
-		onServerMessageHandler.accept(message);
+		bus.publish(Event.SERVER_MESSAGE.ordinal(), message, null);
 	}
 	
 	public void triggerHeartbeatReceived(String message) {
-		onHeartbeatReceivedHandler.accept(message);
+		bus.publish(Event.HEARTBEAT_RECEIVED.ordinal(), message, null);
 	}
 	
-	public void triggerFileReceived(String name, Integer size) {
-		onFileReceivedHandler.accept(name, size);
+	public void triggerFileReceived(String name, Long size) {
+		bus.publish(Event.FILE_RECEIVED.ordinal(), name, size);
 	}
 	
 	public void triggerClientConnectAttempt(String address, Integer port) {
-		onClientConnectAttemptHandler.accept(address, port);
+		bus.publish(Event.CLIENT_CONNECT_ATTEMPT.ordinal(), address, port);
 	}
 	
 	public void triggerSocketTimeoutSet() {
-		onSocketTimeoutSetHandler.run();
+		bus.publish(Event.SOCKET_TIMEOUT_SET.ordinal(), null, null);
 	}
 	
 	public void triggerClientAlreadyConnected(String message) {
-		onClientAlreadyConnectedHandler.accept(message);
+		bus.publish(Event.CLIENT_ALREADY_CONNECTED.ordinal(), message, null);
 	}
 	
 	public void triggerServerDiscovery(String serverAddress, Integer serverPort) {
-		onServerDiscoveryHandler.accept(serverAddress, serverPort);
+		bus.publish(Event.SERVER_DISCOVERY.ordinal(), serverAddress, serverPort);
 	}
 	
 	public void triggerBroadcastPortUsed(Integer port) {
-		onBroadcastPortUsedHandler.accept(port);
+		bus.publish(Event.BROADCAST_PORT_USED.ordinal(), port, null);
 	}
 	
 	public void triggerShutdownReceived(String message) {
-		onShutdownReceivedHandler.accept(message);
+		bus.publish(Event.SHUTDOWN_RECEIVED.ordinal(), message, null);
+	}
+	
+	public void triggerReconnectScheduled(Integer attempt, Long delayMillis) {
+		bus.publish(Event.RECONNECT_SCHEDULED.ordinal(), attempt, delayMillis);
+	}
+	
+	public void triggerSessionResumed(Integer replayed) {
+		bus.publish(Event.SESSION_RESUMED.ordinal(), replayed, null);
+	}
+	
+	public void triggerResyncRequired(String reason) {
+		bus.publish(Event.RESYNC_REQUIRED.ordinal(), reason, null);
 	}
 }
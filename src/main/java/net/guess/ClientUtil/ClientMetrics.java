@@ -0,0 +1,40 @@
+package net.guess.ClientUtil;
+
+import net.guess.SharedUtil.Counter;
+import net.guess.SharedUtil.Histogram;
+import net.guess.SharedUtil.Metrics;
+
+// The client's instruments. A client has one connection, so there is no per-connection split.
+final class ClientMetrics {
+	final Metrics registry;
+	final Counter connects;
+	final Counter messagesSent;
+	final Counter messagesReceived;
+	final Counter bytesSent;
+	final Counter bytesReceived;
+	final Counter heartbeatsReceived;
+	final Counter filesReceived;
+	final Counter fileBytesReceived;
+	final Counter fileFailures;
+	final Histogram heartbeatInterval;
+	final Histogram handlerDuration;
+	final Counter handlerDropped;
+	final Histogram fileReceiveDuration;
+	
+	ClientMetrics(Metrics registry) {
+		this.registry = registry;
+		connects = registry.counter("connects_total", "Successful connections to a server");
+		messagesSent = registry.counter("messages_sent_total", "Message frames written to the server");
+		messagesReceived = registry.counter("messages_received_total", "Message frames read from the server");
+		bytesSent = registry.counter("bytes_sent_total", "Bytes written to the server");
+		bytesReceived = registry.counter("bytes_received_total", "Frame bytes read from the server, before decompression");
+		heartbeatsReceived = registry.counter("heartbeats_received_total", "Heartbeats received from the server");
+		filesReceived = registry.counter("files_received_total", "Files received and committed");
+		fileBytesReceived = registry.counter("file_bytes_received_total", "Length of files received and committed");
+		fileFailures = registry.counter("file_failures_total", "File transfers that failed or were cancelled");
+		heartbeatInterval = registry.histogram("heartbeat_interval_seconds", "Time between consecutive heartbeats from the server");
+		handlerDuration = registry.histogram("message_handler_seconds", "Time spent in registered command handlers");
+		handlerDropped = registry.counter("message_handler_dropped_total", "Messages dropped because their handler's queue was full");
+		fileReceiveDuration = registry.histogram("file_receive_seconds", "Time from a file offer until the file was committed");
+	}
+}
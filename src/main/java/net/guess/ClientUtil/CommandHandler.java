@@ -0,0 +1,11 @@
+package net.guess.ClientUtil;
+
+import net.guess.SharedUtil.Command;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface CommandHandler {
+	// The command is only valid for the duration of the call; copy out anything kept longer.
+	void handle(Command command) throws IOException;
+}
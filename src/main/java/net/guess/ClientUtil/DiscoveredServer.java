@@ -0,0 +1,12 @@
+package net.guess.ClientUtil;
+
+import java.time.Duration;
+import java.util.Set;
+
+// A server that answered a discovery query: where to connect, how many clients it already has, what it
+// supports, and how long its answer took.
+public record DiscoveredServer(String host, int port, int load, Set<String> capabilities, Duration latency) {
+	public boolean hasCapability(String capability) {
+		return capabilities.contains(capability);
+	}
+}
@@ -0,0 +1,10 @@
+package net.guess.ClientUtil;
+
+// Where command handlers run. INLINE runs them on the connection's reader thread, so nothing else is read
+// while one runs; POOL uses a small pool of platform threads shared by the client's handlers; VIRTUAL_THREADS
+// starts a virtual thread per message, for handlers that mostly block.
+public enum HandlerExecution {
+	INLINE,
+	POOL,
+	VIRTUAL_THREADS
+}
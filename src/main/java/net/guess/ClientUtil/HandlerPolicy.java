@@ -0,0 +1,47 @@
+package net.guess.ClientUtil;
+
+// How a command handler is run. Handlers off the reader thread get their own copy of the message. Messages
+// that share an ordering key run one at a time in arrival order; different keys run in parallel, up to
+// maxConcurrency at once. At most queueCapacity messages wait for the handler; further ones are dropped and
+// reported as client errors, so a stuck handler cannot hold up reading or grow without bound.
+public record HandlerPolicy(HandlerExecution execution, Ordering ordering, int keyArgument, int maxConcurrency, int queueCapacity) {
+	public enum Ordering {
+		// Any message may run alongside any other
+		NONE,
+		// One message of the command at a time, in arrival order
+		PER_COMMAND,
+		// One message at a time per value of argument keyArgument; a missing argument counts as its own key
+		PER_KEY
+	}
+	
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	// On the reader thread, in order with every other message. Cheapest, but a slow handler stalls the connection.
+	public static final HandlerPolicy INLINE = new HandlerPolicy(HandlerExecution.INLINE, Ordering.PER_COMMAND, 0, 1, 0);
+	
+	public HandlerPolicy {
+		if (execution == HandlerExecution.INLINE && ordering != Ordering.PER_COMMAND) {
+			throw new IllegalArgumentException("Inline handlers always run in arrival order");
+		}
+		if (maxConcurrency < 1 || queueCapacity < 0 || keyArgument < 0) {
+			throw new IllegalArgumentException("Concurrency must be positive; queue capacity and key argument must not be negative");
+		}
+	}
+	
+	// Each message of the command in turn, off the reader thread.
+	public static HandlerPolicy ordered(HandlerExecution execution) {
+		return new HandlerPolicy(execution, Ordering.PER_COMMAND, 0, 1, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	// In order per value of the given argument, e.g. a file name, with up to maxConcurrency keys at once.
+	public static HandlerPolicy orderedByKey(HandlerExecution execution, int keyArgument, int maxConcurrency) {
+		return new HandlerPolicy(execution, Ordering.PER_KEY, keyArgument, maxConcurrency, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	public static HandlerPolicy unordered(HandlerExecution execution, int maxConcurrency) {
+		return new HandlerPolicy(execution, Ordering.NONE, 0, maxConcurrency, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	public HandlerPolicy withQueueCapacity(int queueCapacity) {
+		return new HandlerPolicy(execution, ordering, keyArgument, maxConcurrency, queueCapacity);
+	}
+}
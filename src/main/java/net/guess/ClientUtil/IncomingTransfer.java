@@ -0,0 +1,250 @@
+package net.guess.ClientUtil;
+
+import net.guess.SharedUtil.FileTransfers;
+import net.guess.SharedUtil.Frames;
+import net.guess.SharedUtil.StreamInputChannel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+// One file stream from the server. Full transfers are written straight into <target>.part by the reader
+// thread; delta transfers are fed to a worker thread that rebuilds the file from the local copy; parallel
+// transfers are written into <target>.part at each range's offset by the readers of several connections.
+class IncomingTransfer {
+	// Chunks buffered ahead of the delta worker before the reader thread waits for it
+	private static final int DELTA_QUEUE_CAPACITY = 16;
+	// Full transfers force the partial file and record a checkpoint this often
+	private static final long CHECKPOINT_INTERVAL = 16L * 1024 * 1024;
+	
+	private final int streamId;
+	private final String name;
+	private final Path target;
+	private final String offeredName;
+	private final long offeredLength;
+	private final long version;
+	private final CompletableFuture<Long> result;
+	private FileChannel output;
+	private long received = 0;
+	private long checkpointed = 0;
+	// Sequential transfers: CRC32C of everything written so far, compared with the server's at STREAM_END,
+	// and its value at the last chunk boundary, which is as far as a checkpoint can claim
+	private final CRC32C checksum = new CRC32C();
+	private long aligned = 0;
+	private int alignedChecksum = 0;
+	private StreamInputChannel deltaInput;
+	private boolean parallel;
+	// Parallel transfers: bytes in ranges whose checksum matched, and the total from STREAM_END (-1 until then)
+	private long verified;
+	private long expectedTotal = -1;
+	private int expectedChecksum;
+	private boolean finishing;
+	// Set once the partial file has been kept for a resume; the reader may still fail on the closed channel
+	private boolean interrupted;
+	
+	IncomingTransfer(int streamId, String name, String offeredName, long offeredLength, long version, CompletableFuture<Long> result) {
+		this.streamId = streamId;
+		this.name = name;
+		this.target = Path.of(name);
+		this.offeredName = offeredName;
+		this.offeredLength = offeredLength;
+		this.version = version;
+		this.result = result;
+	}
+	
+	long getVersion() {
+		return version;
+	}
+	
+	int getStreamId() {
+		return streamId;
+	}
+	
+	String getName() {
+		return name;
+	}
+	
+	Path getTarget() {
+		return target;
+	}
+	
+	long getOfferedLength() {
+		return offeredLength;
+	}
+	
+	CompletableFuture<Long> getResult() {
+		return result;
+	}
+	
+	boolean isDelta() {
+		return deltaInput != null;
+	}
+	
+	void openFull() throws IOException {
+		TransferCheckpoint.delete(target);
+		output = FileTransfers.openPartial(target, offeredLength);
+	}
+	
+	// Continues a partial file from its checkpoint's committed offset. Returns false, with nothing opened,
+	// if the partial file no longer holds the bytes the checkpoint recorded; it cannot be resumed then.
+	boolean openResume(TransferCheckpoint checkpoint) throws IOException {
+		Path partialFile = FileTransfers.partialFile(target);
+		FileTransfers.requireSpace(partialFile, offeredLength - Files.size(partialFile));
+		FileChannel partial = FileChannel.open(partialFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long offset = checkpoint.committed();
+		if (FileTransfers.checksum(partial, offset, checksum) < offset || (int) checksum.getValue() != checkpoint.checksum()) {
+			partial.close();
+			checksum.reset();
+			return false;
+		}
+		output = partial;
+		received = offset;
+		checkpointed = offset;
+		aligned = offset;
+		alignedChecksum = checkpoint.checksum();
+		return true;
+	}
+	
+	void openParallel() throws IOException {
+		openFull();
+		parallel = true;
+	}
+	
+	boolean isParallel() {
+		return parallel;
+	}
+	
+	// The rebuilt file is written to a fresh partial file next to the old copy, so it needs the full length.
+	StreamInputChannel openDelta() throws IOException {
+		FileTransfers.requireSpace(FileTransfers.partialFile(target), offeredLength);
+		deltaInput = new StreamInputChannel(DELTA_QUEUE_CAPACITY);
+		return deltaInput;
+	}
+	
+	void onData(ByteBuffer payload) throws IOException {
+		if (deltaInput != null) {
+			deltaInput.offer(payload);
+			return;
+		}
+		checksum.update(payload.duplicate());
+		while (payload.hasRemaining()) {
+			received += output.write(payload, received);
+		}
+		if (received % Frames.CHUNK_SIZE == 0) {
+			aligned = received;
+			alignedChecksum = (int) checksum.getValue();
+		}
+		if (received - checkpointed >= CHECKPOINT_INTERVAL) {
+			checkpoint();
+		}
+	}
+	
+	// Only whole chunks count, so a resumed send starts on a chunk boundary.
+	private synchronized void checkpoint() throws IOException {
+		output.force(false);
+		new TransferCheckpoint(offeredName, version, offeredLength, aligned, alignedChecksum).write(target);
+		checkpointed = received;
+	}
+	
+	// Positional, so readers of different connections can write their ranges concurrently.
+	void writeRange(long offset, ByteBuffer payload) throws IOException {
+		long position = offset;
+		while (payload.hasRemaining()) {
+			position += output.write(payload, position);
+		}
+	}
+	
+	// The last verified range and STREAM_END may arrive on different connections in either order;
+	// whichever comes second gets true, exactly once, and finishes the transfer.
+	synchronized boolean onRangeVerified(long length) {
+		verified += length;
+		return readyToFinish();
+	}
+	
+	synchronized boolean onParallelEnd(long totalBytes, int fileChecksum) {
+		expectedTotal = totalBytes;
+		expectedChecksum = fileChecksum;
+		return readyToFinish();
+	}
+	
+	private boolean readyToFinish() {
+		if (finishing || expectedTotal < 0 || verified < expectedTotal) {
+			return false;
+		}
+		finishing = true;
+		return true;
+	}
+	
+	long finishParallel() throws IOException {
+		received = verified;
+		// Ranges arrive in no particular order, so the whole-file checksum is taken from the finished file
+		FileTransfers.checksum(output, expectedTotal, checksum);
+		return finishFull(expectedTotal, expectedChecksum);
+	}
+	
+	// Full transfers: verifies the byte count and checksum, then atomically replaces the target. A mismatch
+	// means the pieces came from different contents, e.g. a resume onto a partial file of an edit that kept
+	// the file's size and mtime, so the partial file is discarded by the caller's fail().
+	long finishFull(long totalBytes, int fileChecksum) throws IOException {
+		if (received != totalBytes) {
+			throw new IOException("Received " + received + " of " + totalBytes + " bytes for " + name);
+		}
+		if ((int) checksum.getValue() != fileChecksum) {
+			throw new IOException("Checksum mismatch for " + name + ": the received file differs from the server's");
+		}
+		// The file may have shrunk between the offer and the send
+		output.truncate(totalBytes);
+		output.force(false);
+		output.close();
+		FileTransfers.commit(FileTransfers.partialFile(target), target);
+		TransferCheckpoint.delete(target);
+		return totalBytes;
+	}
+	
+	void finishDelta() throws InterruptedIOException {
+		deltaInput.finish();
+	}
+	
+	// The connection dropped. A sequential full transfer keeps its partial file behind a fresh checkpoint
+	// and returns true, so it can be resumed; anything else is failed as usual.
+	synchronized boolean interrupt(String reason) {
+		if (output == null || parallel || deltaInput != null || received < Frames.CHUNK_SIZE) {
+			fail(reason);
+			return false;
+		}
+		try {
+			checkpoint();
+			output.close();
+		} catch (IOException e) {
+			fail(reason);
+			return false;
+		}
+		interrupted = true;
+		result.completeExceptionally(new IOException(reason));
+		return true;
+	}
+	
+	synchronized void fail(String reason) {
+		if (interrupted) {
+			return;
+		}
+		if (deltaInput != null) {
+			deltaInput.fail(reason);
+		}
+		if (output != null) {
+			try {
+				output.close();
+				Files.deleteIfExists(FileTransfers.partialFile(target));
+				TransferCheckpoint.delete(target);
+			} catch (IOException ignored) {
+			}
+		}
+		result.completeExceptionally(new IOException(reason));
+	}
+}
@@ -0,0 +1,87 @@
+package net.guess.ClientUtil;
+
+import java.util.ArrayDeque;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps file offers in order with the messages before them when handlers run off the reader thread. A
+ * handler for e.g. FILE_UPDATE may be about to call receiveFileFromServer for the offer that follows it, so
+ * an offer is held back until every queued message that arrived earlier has been handled. Held offers run
+ * one at a time, in arrival order, on whichever thread finished the last message holding them up.
+ */
+final class OfferBarrier {
+	private final ReentrantLock lock = new ReentrantLock();
+	// Arrival numbers of messages queued for a handler and not yet finished
+	private final TreeSet<Long> inFlight = new TreeSet<>();
+	private final ArrayDeque<Held> held = new ArrayDeque<>();
+	private long arrivals;
+	private boolean draining;
+	
+	// Reader thread: numbers a message that is about to be queued for a handler.
+	long enter() {
+		lock.lock();
+		try {
+			inFlight.add(++arrivals);
+			return arrivals;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Once the message has been handled, or dropped; runs the offers it was the last to hold back.
+	void exit(long arrival) {
+		lock.lock();
+		try {
+			inFlight.remove(arrival);
+			if (draining || !releasable()) {
+				return;
+			}
+			draining = true;
+		} finally {
+			lock.unlock();
+		}
+		drain();
+	}
+	
+	// Reader thread: runs the offer now, or once the messages that arrived before it have been handled.
+	void offer(Runnable task) {
+		lock.lock();
+		try {
+			if (draining || !held.isEmpty() || !inFlight.isEmpty()) {
+				held.add(new Held(arrivals, task));
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		task.run();
+	}
+	
+	private void drain() {
+		while (true) {
+			Held next;
+			lock.lock();
+			try {
+				if (!releasable()) {
+					draining = false;
+					return;
+				}
+				next = held.poll();
+			} finally {
+				lock.unlock();
+			}
+			next.task.run();
+		}
+	}
+	
+	// Caller holds the lock.
+	private boolean releasable() {
+		Held first = held.peek();
+		return first != null && (inFlight.isEmpty() || inFlight.first() > first.after);
+	}
+	
+	// after: the arrival number of the last message queued before the offer
+	private record Held(long after, Runnable task) {
+	}
+}
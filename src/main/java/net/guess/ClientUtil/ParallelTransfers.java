@@ -0,0 +1,17 @@
+package net.guess.ClientUtil;
+
+// Opt-in parallel transfers: files of at least minFileSize arrive as ranges over the main connection plus
+// this many extra data connections. Delta sync still wins for files that already exist locally.
+public record ParallelTransfers(int dataConnections, long minFileSize) {
+	public static final ParallelTransfers DISABLED = new ParallelTransfers(0, Long.MAX_VALUE);
+	
+	public ParallelTransfers {
+		if (dataConnections < 0 || minFileSize < 0) {
+			throw new IllegalArgumentException("Data connections and minimum file size must not be negative");
+		}
+	}
+	
+	boolean appliesTo(long fileLength) {
+		return dataConnections > 0 && fileLength >= minFileSize;
+	}
+}
@@ -0,0 +1,146 @@
+package net.guess.ClientUtil;
+
+import net.guess.SharedUtil.Command;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs a command handler off the reader thread under a HandlerPolicy. The reader only copies the message
+ * and queues it; it never waits. A key that has a message running or queued is claimed, so its later
+ * messages wait behind it in their own queue; a claimed key whose message finishes goes to the back of the
+ * ready queue, so a busy key cannot starve the others of the concurrency slots.
+ */
+final class QueuedHandler implements CommandHandler {
+	private final String command;
+	private final CommandHandler handler;
+	private final HandlerPolicy policy;
+	private final Executor executor;
+	private final Client client;
+	private final ReentrantLock lock = new ReentrantLock();
+	// Messages whose key is free (or that have no key), waiting for a concurrency slot
+	private final ArrayDeque<Task> ready = new ArrayDeque<>();
+	// Claimed keys and the messages queued behind the one that holds each
+	private final Map<String, ArrayDeque<Task>> claimed = new HashMap<>();
+	private int running;
+	private int queued;
+	
+	QueuedHandler(String command, CommandHandler handler, HandlerPolicy policy, Executor executor, Client client) {
+		this.command = command;
+		this.handler = handler;
+		this.policy = policy;
+		this.executor = executor;
+		this.client = client;
+	}
+	
+	@Override
+	public void handle(Command message) {
+		Task task = new Task(message.copy(), keyOf(message), client.onHandlerQueued());
+		Task start = null;
+		boolean dropped = false;
+		lock.lock();
+		try {
+			if (queued >= policy.queueCapacity() && (running >= policy.maxConcurrency() || isClaimed(task.key))) {
+				dropped = true;
+			} else if (isClaimed(task.key)) {
+				claimed.get(task.key).add(task);
+				queued++;
+			} else {
+				claim(task.key);
+				if (running < policy.maxConcurrency()) {
+					running++;
+					start = task;
+				} else {
+					ready.add(task);
+					queued++;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (dropped) {
+			client.onHandlerOverflow(command);
+			client.onHandlerDone(task.arrival);
+		} else if (start != null) {
+			execute(start);
+		}
+	}
+	
+	private String keyOf(Command message) {
+		return switch (policy.ordering()) {
+			case NONE -> null;
+			case PER_COMMAND -> "";
+			// Arguments never contain spaces, so a leading space cannot collide with one
+			case PER_KEY -> policy.keyArgument() < message.argCount() ? message.arg(policy.keyArgument()) : " missing";
+		};
+	}
+	
+	// Caller holds the lock.
+	private boolean isClaimed(String key) {
+		return key != null && claimed.containsKey(key);
+	}
+	
+	// Caller holds the lock.
+	private void claim(String key) {
+		if (key != null) {
+			claimed.put(key, new ArrayDeque<>());
+		}
+	}
+	
+	private void execute(Task task) {
+		try {
+			executor.execute(() -> run(task));
+		} catch (RejectedExecutionException e) {
+			// The client is shutting down; release the slot so the queue does not wedge
+			client.onHandlerError(command, new IOException("Handler executor rejected the message", e));
+			finished(task);
+		}
+	}
+	
+	private void run(Task task) {
+		try {
+			client.runHandler(handler, task.message);
+		} catch (IOException | RuntimeException e) {
+			client.onHandlerError(command, e);
+		} finally {
+			finished(task);
+		}
+	}
+	
+	// Frees the key or moves its next message to the ready queue, then starts whatever is ready next.
+	private void finished(Task task) {
+		Task next;
+		lock.lock();
+		try {
+			if (task.key != null) {
+				ArrayDeque<Task> waiting = claimed.get(task.key);
+				Task following = waiting.poll();
+				if (following == null) {
+					claimed.remove(task.key);
+				} else {
+					ready.add(following);
+				}
+			}
+			next = ready.poll();
+			if (next == null) {
+				running--;
+			} else {
+				queued--;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (next != null) {
+			execute(next);
+		}
+		client.onHandlerDone(task.arrival);
+	}
+	
+	private record Task(Command message, String key, long arrival) {
+	}
+}
@@ -0,0 +1,58 @@
+package net.guess.ClientUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// One connection's view of parallel transfers. The server sends a connection's ranges one after another,
+// so per stream only the range in progress needs a running checksum. Reader thread of that connection only.
+final class RangeReceiver {
+	private final Map<Integer, Range> inProgress = new HashMap<>();
+	
+	// RANGE_DATA: [long offset][bytes]
+	void onData(IncomingTransfer transfer, ByteBuffer payload) throws IOException {
+		long offset = payload.getLong();
+		Range range = inProgress.computeIfAbsent(transfer.getStreamId(), id -> new Range(offset));
+		if (offset != range.next) {
+			throw new IOException("Range data at " + offset + " where " + range.next + " was expected");
+		}
+		range.checksum.update(payload.duplicate());
+		range.next += payload.remaining();
+		transfer.writeRange(offset, payload);
+	}
+	
+	// RANGE_END: [long offset][long length][int CRC32C]. Returns the verified length.
+	long onEnd(IncomingTransfer transfer, ByteBuffer payload) throws IOException {
+		long offset = payload.getLong();
+		long length = payload.getLong();
+		int expected = payload.getInt();
+		Range range = inProgress.remove(transfer.getStreamId());
+		if (length == 0) {
+			return 0;
+		}
+		if (range == null || range.start != offset || range.next - range.start != length) {
+			throw new IOException("Range " + offset + "+" + length + " of " + transfer.getName() + " arrived incomplete");
+		}
+		if ((int) range.checksum.getValue() != expected) {
+			throw new IOException("Checksum mismatch in range " + offset + "+" + length + " of " + transfer.getName());
+		}
+		return length;
+	}
+	
+	void forget(int streamId) {
+		inProgress.remove(streamId);
+	}
+	
+	private static final class Range {
+		private final long start;
+		private final CRC32C checksum = new CRC32C();
+		private long next;
+		
+		private Range(long start) {
+			this.start = start;
+			this.next = start;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package net.guess.ClientUtil;
+
+import java.time.Duration;
+
+// Reconnecting after the connection drops on its own; never after disconnectFromServer or a server SHUTDOWN.
+// Attempt n waits initialDelay * multiplier^n, capped at maxDelay, less a random part of up to jitter of
+// that, so clients cut off together do not all come back at the same moment.
+public record ReconnectPolicy(Duration initialDelay, Duration maxDelay, double multiplier, double jitter, int maxAttempts) {
+	public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(Duration.ofMillis(250), Duration.ofSeconds(30), 2.0, 0.5, Integer.MAX_VALUE);
+	public static final ReconnectPolicy DISABLED = new ReconnectPolicy(Duration.ZERO, Duration.ZERO, 1.0, 0.0, 0);
+	
+	public ReconnectPolicy {
+		if (initialDelay.isNegative() || maxDelay.compareTo(initialDelay) < 0 || multiplier < 1.0 || jitter < 0.0 || jitter > 1.0 || maxAttempts < 0) {
+			throw new IllegalArgumentException("Invalid reconnect policy");
+		}
+	}
+	
+	boolean isEnabled() {
+		return maxAttempts > 0;
+	}
+	
+	// random is uniform in [0, 1).
+	long delayNanos(int attempt, double random) {
+		double delay = Math.min(maxDelay.toNanos(), initialDelay.toNanos() * Math.pow(multiplier, attempt));
+		return (long) (delay * (1.0 - jitter * random));
+	}
+}
@@ -0,0 +1,11 @@
+package net.guess.ClientUtil;
+
+import net.guess.SharedUtil.Request;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface RequestHandler {
+	// Runs on the reader thread; answer through the request, now or later from another thread.
+	void handle(Request request) throws IOException;
+}
@@ -0,0 +1,63 @@
+package net.guess.ClientUtil;
+
+import net.guess.SharedUtil.FileTransfers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+// How much of <target>.part is safely on disk, stored next to it as <target>.part.ckpt. Written only after
+// the partial file has been forced, and replaced atomically, so a crash never leaves a checkpoint that
+// claims more than the disk holds. version is the server's id for the offered content; checksum is the
+// CRC32C of the first committed bytes, which a resume checks the partial file against, since its length
+// says nothing about what was actually written there.
+record TransferCheckpoint(String name, long version, long length, long committed, int checksum) {
+	static Path fileFor(Path target) {
+		return target.resolveSibling(target.getFileName() + ".part.ckpt");
+	}
+	
+	// Null when there is no usable checkpoint for the target.
+	static TransferCheckpoint read(Path target) {
+		Path file = fileFor(target);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file)) {
+			properties.load(reader);
+			TransferCheckpoint checkpoint = new TransferCheckpoint(properties.getProperty("name"), Long.parseUnsignedLong(properties.getProperty("version"), 16), Long.parseLong(properties.getProperty("length")), Long.parseLong(properties.getProperty("committed")), Integer.parseUnsignedInt(properties.getProperty("checksum"), 16));
+			return Files.isRegularFile(FileTransfers.partialFile(target)) ? checkpoint : null;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+	
+	void write(Path target) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("name", name);
+		properties.setProperty("version", Long.toHexString(version));
+		properties.setProperty("length", Long.toString(length));
+		properties.setProperty("committed", Long.toString(committed));
+		properties.setProperty("checksum", Integer.toHexString(checksum));
+		Path file = fileFor(target);
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp)) {
+			properties.store(writer, null);
+		}
+		FileTransfers.commit(temp, file);
+	}
+	
+	static void delete(Path target) {
+		try {
+			Files.deleteIfExists(fileFor(target));
+		} catch (IOException ignored) {
+		}
+	}
+	
+	boolean matches(long version, long length) {
+		return this.version == version && this.length == length && committed > 0;
+	}
+}
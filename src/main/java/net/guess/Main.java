@@ -1,10 +1,12 @@
 package net.guess;
 
 import net.guess.ClientUtil.Client;
+import net.guess.ClientUtil.ReconnectPolicy;
 import net.guess.ServerUtil.FileWatcher;
 import net.guess.ServerUtil.Server;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.util.Scanner;
 
@@ -25,6 +27,7 @@ public class Main {
 			server.addFileWatcher(testFileWatcher);
 			
 			server.startBroadcasting(8888);
+			server.startDiscoveryResponder(8889);
 			server.startServerAsync(8888);
 		}
 	}
@@ -32,14 +35,23 @@ public class Main {
 	static class ClientMain {
 		public static void main(String[] args) {
 			Client client = new Client();
+			client.setDeltaSync(true);
+			client.setReconnectPolicy(ReconnectPolicy.DEFAULT);
 			client.registerMessageHandler("TEST_COMMAND", msg -> {
 				System.out.println("Client received: " + msg);
 			});
 			client.registerMessageHandler("FILE_UPDATE", msg -> {
 				System.out.println("Client received: " + msg);
-				client.receiveFileFromServer("Client_Received.txt");
 			});
-			client.listenForServerBroadcasts(8888);
+			// Also takes the copies offered again after a reconnect, which no FILE_UPDATE announces
+			client.setFileTargetResolver(name -> name.equals("test.txt") ? "Client_Received.txt" : null);
+			client.setServerCacheFile(Path.of("last_server.txt"));
+			try {
+				client.connectToDiscoveredServer(8889);
+			} catch (IOException e) {
+				// Nothing answered; wait for the periodic broadcast instead
+				client.listenForServerBroadcasts(8888);
+			}
 		}
 	}
 }
@@ -0,0 +1,54 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.Compression;
+import net.guess.SharedUtil.Frames;
+
+import java.nio.ByteBuffer;
+
+// One send of a file's content on one stream id. Every client of a broadcast is offered the file on the
+// same stream id, so offers and chunk headers are encoded once too.
+final class BroadcastFile {
+	private final FileContent content;
+	private final String name;
+	private final ByteBuffer fullChunkHeader;
+	private final int streamId;
+	
+	BroadcastFile(FileContent content, int streamId) {
+		this.content = content;
+		this.name = content.getPath().getFileName().toString();
+		this.streamId = streamId;
+		this.fullChunkHeader = Frames.header(Frames.STREAM_DATA, (byte) 0, streamId, Frames.CHUNK_SIZE).asReadOnlyBuffer();
+	}
+	
+	FileContent getContent() {
+		return content;
+	}
+	
+	String getName() {
+		return name;
+	}
+	
+	long getLength() {
+		return content.getLength();
+	}
+	
+	int getStreamId() {
+		return streamId;
+	}
+	
+	// A private view of the shared chunk header, so each connection keeps its own write position.
+	ByteBuffer chunkHeader(int chunkLength) {
+		if (chunkLength == Frames.CHUNK_SIZE) {
+			return fullChunkHeader.duplicate();
+		}
+		return Frames.header(Frames.STREAM_DATA, (byte) 0, streamId, chunkLength);
+	}
+	
+	ByteBuffer compressedChunk(Compression compression, long position, int chunkLength) {
+		return content.compressedChunk(compression, position, chunkLength);
+	}
+	
+	ByteBuffer chunk(long position, int chunkLength) {
+		return content.chunk(position, chunkLength);
+	}
+}
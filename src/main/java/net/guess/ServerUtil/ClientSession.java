@@ -0,0 +1,339 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.Compression;
+import net.guess.SharedUtil.FrameSink;
+import net.guess.SharedUtil.Frames;
+import net.guess.SharedUtil.RequestChannel;
+import net.guess.SharedUtil.RttEstimator;
+import net.guess.SharedUtil.TimingWheel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One connected client. Replaces the single clientSocket/writer pair the server used to hold,
+ * so every connection carries its own transport and its own set of in-flight file streams.
+ * Writes never touch the socket on the caller's thread: they go through a bounded outbound queue
+ * that the subclass drains on its own writer.
+ */
+public abstract class ClientSession implements FrameSink {
+	// File chunks per transfer that may sit in the outbound queue at once; keeps big transfers from starving messages
+	private static final int CHUNK_WINDOW = 4;
+	private static final SecureRandom TOKENS = new SecureRandom();
+	
+	private final String id;
+	// Proves a second connection belongs to this client; session ids themselves are sequential
+	private final String token;
+	private final String remoteAddress;
+	private final Map<Integer, OutgoingTransfer> transfers = new ConcurrentHashMap<>();
+	private final Map<Object, Semaphore> chunkWindows = new ConcurrentHashMap<>();
+	private final OutboundQueue outbound;
+	private final ServerMetrics.Session metrics;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	protected final Server server;
+	private volatile Compression compression;
+	private final RttEstimator rtt = new RttEstimator();
+	// Sequence of the last heartbeat queued (timing wheel thread) and the highest one echoed back (reader thread)
+	private volatile long heartbeatsSent;
+	private volatile long heartbeatsAnswered;
+	private volatile TimingWheel.Timeout heartbeatTimer;
+	// Extra connections of the same client that carry ranges of parallel transfers, and for one of those its primary
+	private final List<ClientSession> dataChannels = new CopyOnWriteArrayList<>();
+	private volatile ClientSession primary;
+	// Created on first use: the constructor must not hand this out before the subclass is initialized
+	private volatile RequestChannel requests;
+	// Null when replay is disabled; data channels never get sequenced messages
+	private final ReplayRing replay;
+	// Files broadcast while this session was closed and waiting to be resumed
+	private final Set<String> missedFiles = ConcurrentHashMap.newKeySet();
+	
+	protected ClientSession(String id, String remoteAddress, Server server) {
+		this.id = id;
+		byte[] token = new byte[16];
+		TOKENS.nextBytes(token);
+		this.token = HexFormat.of().formatHex(token);
+		this.remoteAddress = remoteAddress;
+		this.server = server;
+		this.metrics = server.getServerMetrics().session(id);
+		this.outbound = new OutboundQueue(server.getOutboundLimits(), metrics);
+		this.replay = server.getReplaySettings().isEnabled() ? new ReplayRing(server.getReplaySettings()) : null;
+		metrics.gauge("session_outbound_queue_frames", "Frames queued or being written", outbound::queuedFrames);
+		metrics.gauge("session_outbound_queue_bytes", "Bytes queued or being written", outbound::queuedBytes);
+		metrics.gauge("session_rtt_smoothed_nanoseconds", "Smoothed heartbeat round trip", rtt::getSmoothed);
+		metrics.gauge("session_rtt_jitter_nanoseconds", "Heartbeat round trip jitter", rtt::getJitter);
+	}
+	
+	public String getId() {
+		return id;
+	}
+	
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+	
+	String getToken() {
+		return token;
+	}
+	
+	// Data connections never get broadcasts or offers of their own; they close with their primary session.
+	public boolean isDataChannel() {
+		return primary != null;
+	}
+	
+	void attachTo(ClientSession primary) {
+		this.primary = primary;
+		primary.dataChannels.add(this);
+	}
+	
+	void detach() {
+		ClientSession current = primary;
+		if (current != null) {
+			current.dataChannels.remove(this);
+		}
+	}
+	
+	List<ClientSession> getDataChannels() {
+		return dataChannels;
+	}
+	
+	RequestChannel getRequests() {
+		RequestChannel channel = requests;
+		if (channel == null) {
+			synchronized (this) {
+				channel = requests;
+				if (channel == null) {
+					channel = new RequestChannel(this);
+					requests = channel;
+				}
+			}
+		}
+		return channel;
+	}
+	
+	ReplayRing getReplay() {
+		return replay;
+	}
+	
+	Set<String> getMissedFiles() {
+		return missedFiles;
+	}
+	
+	void recordReplay(int sequence, ByteBuffer frame) {
+		if (replay != null) {
+			replay.record(sequence, frame);
+		}
+	}
+	
+	public void send(String message) throws IOException {
+		writeFrame(server.sequencedMessage(this, message));
+	}
+	
+	// Never waits for room. Completes once the message has been handed to the socket, or exceptionally if
+	// the queue was full, it was dropped, the client was disconnected for falling behind, or the connection closed.
+	public CompletableFuture<Void> sendAsync(String message) {
+		CompletableFuture<Void> completion = new CompletableFuture<>();
+		try {
+			enqueue(PendingWrite.frame(encode(server.sequencedMessage(this, message)), completion, true), OutboundQueue.WhenFull.REJECT);
+		} catch (IOException e) {
+			completion.completeExceptionally(e);
+		}
+		return completion;
+	}
+	
+	// Compresses the frame when the client negotiated a codec and it is worth it.
+	@Override
+	public final void writeFrame(ByteBuffer frame) throws IOException {
+		writeEncoded(encode(frame));
+	}
+	
+	// Queues a frame unless the queue is full, and never waits; for periodic traffic that can simply be skipped.
+	boolean offerFrame(ByteBuffer frame) {
+		try {
+			enqueue(PendingWrite.frame(encode(frame), null, true), OutboundQueue.WhenFull.REJECT);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	// Queues a frame exactly as given. Takes ownership of the buffer.
+	void writeEncoded(ByteBuffer frame) throws IOException {
+		enqueue(PendingWrite.frame(frame, null, frame.get(frame.position() + 4) == Frames.MESSAGE), whenFull());
+	}
+	
+	private ByteBuffer encode(ByteBuffer frame) {
+		Compression current = compression;
+		return current != null ? current.compressFrame(frame) : frame;
+	}
+	
+	// Writes a STREAM_DATA header followed by length bytes taken straight from the file.
+	// May block until earlier chunks have drained so a transfer cannot flood the connection.
+	public void writeFileChunk(ByteBuffer header, FileChannel file, long position, int length) throws IOException {
+		Semaphore window = acquireWindow(file);
+		enqueue(new PendingWrite(header, null, file, position, length, window, null, false), whenFull());
+	}
+	
+	// Writes a STREAM_DATA header followed by a body that may be shared with other sessions; neither is modified.
+	// Chunks are windowed per source the same way file chunks are per file.
+	public void writeChunk(ByteBuffer header, ByteBuffer body, Object source) throws IOException {
+		Semaphore window = acquireWindow(source);
+		enqueue(new PendingWrite(header, body, null, 0, 0, window, null, false), whenFull());
+	}
+	
+	// Blocks until every chunk written from this source has left the queue, so the file can be closed.
+	public void awaitChunks(Object source) throws IOException {
+		Semaphore window = chunkWindows.remove(source);
+		if (window != null) {
+			acquire(window, CHUNK_WINDOW);
+		}
+	}
+	
+	private Semaphore acquireWindow(Object source) throws IOException {
+		Semaphore window = chunkWindows.computeIfAbsent(source, s -> new Semaphore(CHUNK_WINDOW));
+		acquire(window, 1);
+		return window;
+	}
+	
+	private void acquire(Semaphore window, int permits) throws IOException {
+		try {
+			window.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for file chunks to drain");
+		}
+	}
+	
+	private OutboundQueue.WhenFull whenFull() {
+		return canBlock() ? OutboundQueue.WhenFull.WAIT : OutboundQueue.WhenFull.EXCEED_LIMIT;
+	}
+	
+	private void enqueue(PendingWrite write, OutboundQueue.WhenFull whenFull) throws IOException {
+		if (!isOpen()) {
+			IOException closed = new IOException("Session " + id + " is closed");
+			write.fail(closed);
+			throw closed;
+		}
+		OutboundQueue.Result result = outbound.add(write, whenFull);
+		if (result == OutboundQueue.Result.REJECTED) {
+			metrics.onRejected();
+			IOException full = new IOException("Outbound queue for " + id + " is full");
+			write.fail(full);
+			throw full;
+		}
+		if (result == OutboundQueue.Result.DISCONNECT) {
+			IOException slow = new IOException("Client " + id + " is not keeping up; disconnecting");
+			metrics.onSlowConsumerDisconnect();
+			write.fail(slow);
+			server.closeSession(this, slow);
+			throw slow;
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			scheduleFlush();
+		}
+	}
+	
+	// Arranges for the subclass's writer to drain the queue; called only when no flush is pending.
+	protected abstract void scheduleFlush();
+	
+	// Whether the current thread may wait for room in the queue. Selector threads may not.
+	protected abstract boolean canBlock();
+	
+	// Drains the queue to the channel. Returns false if a non-blocking channel filled up; the caller
+	// must flush again once it is writable. Only one thread may flush at a time.
+	protected boolean flush(SocketChannel channel) throws IOException {
+		return outbound.flushTo(channel);
+	}
+	
+	// Clears the pending flag once the queue looks drained. Returns true if more frames arrived and
+	// this writer claimed them, so it should flush again.
+	protected boolean finishFlush() {
+		flushScheduled.set(false);
+		return !outbound.isEmpty() && flushScheduled.compareAndSet(false, true);
+	}
+	
+	// Fails queued writes and wakes any transfer blocked on its window; their next enqueue fails
+	// because the session is closed.
+	protected void closeOutbound() {
+		outbound.close();
+		for (Semaphore window : chunkWindows.values()) {
+			window.release(CHUNK_WINDOW);
+		}
+	}
+	
+	// Round trip measured from heartbeats the client echoed back.
+	public RttEstimator getRtt() {
+		return rtt;
+	}
+	
+	long nextHeartbeat() {
+		return ++heartbeatsSent;
+	}
+	
+	long unansweredHeartbeats() {
+		return heartbeatsSent - heartbeatsAnswered;
+	}
+	
+	// sentAt is the server's System.nanoTime() carried in the heartbeat, or 0 from clients that do not echo it.
+	void onHeartbeatAnswered(long sequence, long sentAt) {
+		if (sentAt == 0) {
+			heartbeatsAnswered = heartbeatsSent;
+			return;
+		}
+		if (sequence > heartbeatsAnswered && sequence <= heartbeatsSent) {
+			heartbeatsAnswered = sequence;
+			long roundTrip = System.nanoTime() - sentAt;
+			rtt.sample(roundTrip);
+			metrics.onHeartbeatRoundTrip(roundTrip);
+		}
+	}
+	
+	void setHeartbeatTimer(TimingWheel.Timeout heartbeatTimer) {
+		this.heartbeatTimer = heartbeatTimer;
+	}
+	
+	void cancelHeartbeat() {
+		TimingWheel.Timeout timer = heartbeatTimer;
+		if (timer != null) {
+			timer.cancel();
+		}
+	}
+	
+	// The codec negotiated with the client, or null while frames go out uncompressed.
+	public Compression getCompression() {
+		return compression;
+	}
+	
+	void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+	
+	ServerMetrics.Session getMetrics() {
+		return metrics;
+	}
+	
+	public abstract boolean isOpen();
+	
+	public abstract void close();
+	
+	Map<Integer, OutgoingTransfer> getTransfers() {
+		return transfers;
+	}
+	
+	@Override
+	public String toString() {
+		return id + "@" + remoteAddress;
+	}
+}
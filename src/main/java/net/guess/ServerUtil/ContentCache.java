@@ -0,0 +1,173 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.Counter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory copies of recently sent files, bounded by their total length and evicted least recently used
+ * first. An entry is only served while the file's size, mtime and file key still match the version it
+ * was read at, so a stale body is never sent even if no watcher reported the change; watcher events
+ * drop entries eagerly. Files larger than the capacity are never cached. Evicted copies are freed by the
+ * garbage collector once the last transfer using them finishes.
+ */
+public final class ContentCache {
+	public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedHashMap<Path, FileContent> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Counter hits = new Counter();
+	private final Counter misses = new Counter();
+	private final Counter evictions = new Counter();
+	private final Counter invalidations = new Counter();
+	private long capacity;
+	private long size;
+	
+	public ContentCache(long capacity) {
+		this.capacity = capacity;
+	}
+	
+	// The current content of the file, reading it on a miss. Null when the file is too large to cache.
+	FileContent get(Path path) throws IOException {
+		Path key = path.toAbsolutePath().normalize();
+		FileContent.Version version = FileContent.Version.of(key);
+		lock.lock();
+		try {
+			if (version.size() > capacity) {
+				return null;
+			}
+			FileContent cached = entries.get(key);
+			if (cached != null) {
+				if (cached.getVersion().equals(version)) {
+					hits.increment();
+					return cached;
+				}
+				remove(key);
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		// Read outside the lock; concurrent misses on one file may both read it, and the later one wins
+		misses.increment();
+		FileContent content = FileContent.read(key);
+		lock.lock();
+		try {
+			if (content.getLength() > capacity) {
+				// Grew past the capacity while it was read; this transfer still gets the copy
+				return content;
+			}
+			remove(key);
+			entries.put(key, content);
+			size += content.getLength();
+			evict(content);
+		} finally {
+			lock.unlock();
+		}
+		return content;
+	}
+	
+	// Drops a file, e.g. because a watcher saw it change. Transfers already using it keep their copy.
+	public void invalidate(Path path) {
+		lock.lock();
+		try {
+			if (remove(path.toAbsolutePath().normalize()) != null) {
+				invalidations.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void clear() {
+		lock.lock();
+		try {
+			entries.clear();
+			size = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getCapacity() {
+		lock.lock();
+		try {
+			return capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// In bytes of file content; 0 disables caching.
+	public void setCapacity(long capacity) {
+		lock.lock();
+		try {
+			this.capacity = capacity;
+			evict(null);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Bytes of file content currently cached.
+	public long getSize() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getEntryCount() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+	
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+	
+	// Caller holds the lock.
+	private FileContent remove(Path key) {
+		FileContent removed = entries.remove(key);
+		if (removed != null) {
+			size -= removed.getLength();
+		}
+		return removed;
+	}
+	
+	// Caller holds the lock. Evicts from the least recently used end until the cache fits, sparing keep.
+	private void evict(FileContent keep) {
+		for (Iterator<Map.Entry<Path, FileContent>> iterator = entries.entrySet().iterator(); size > capacity && iterator.hasNext(); ) {
+			FileContent content = iterator.next().getValue();
+			if (content == keep) {
+				continue;
+			}
+			iterator.remove();
+			size -= content.getLength();
+			evictions.increment();
+		}
+	}
+}
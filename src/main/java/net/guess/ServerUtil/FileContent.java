@@ -0,0 +1,171 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.Compression;
+import net.guess.SharedUtil.FileTransfers;
+import net.guess.SharedUtil.Frames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32C;
+
+/**
+ * One version of a file. Files small enough for the ContentCache are read once into buffers the cache
+ * owns, and every full transfer of that version writes slices of the same copy, so sending to n clients
+ * costs n socket writes but one read. Nothing done to the file afterwards reaches a transfer of the copy,
+ * and the cache never holds the file open or mapped. Larger files stay on disk and each transfer reads
+ * them through its own channel. Either way the whole file's checksum is taken once, when it is loaded.
+ */
+final class FileContent {
+	// A multiple of the chunk size, so no chunk straddles two buffers
+	private static final int SEGMENT_SIZE = 1 << 30;
+	// Reads of a file that keeps changing underneath give up after this many tries
+	private static final int READ_ATTEMPTS = 3;
+	// Cached in place of a chunk that did not shrink
+	private static final ByteBuffer UNCOMPRESSIBLE = ByteBuffer.allocate(0);
+	
+	private final Path path;
+	private final Version version;
+	private final long length;
+	// Null when the content is left on disk
+	private final ByteBuffer[] segments;
+	// CRC32C of the whole file, sent at the end of every full transfer so the client can check what it assembled
+	private final int checksum;
+	// Compressed chunks for the first codec any client negotiated, filled in by whichever transfer gets there first
+	private final AtomicReference<Compression> cachedCompression = new AtomicReference<>();
+	private volatile AtomicReferenceArray<ByteBuffer> compressedChunks;
+	
+	private FileContent(Path path, Version version, long length, ByteBuffer[] segments, int checksum) {
+		this.path = path;
+		this.version = version;
+		this.length = length;
+		this.segments = segments;
+		this.checksum = checksum;
+	}
+	
+	// Copies the file into memory.
+	static FileContent read(Path path) throws IOException {
+		return load(path, true);
+	}
+	
+	// Leaves the file on disk; transfers read it themselves and check the version again when they finish.
+	static FileContent onDisk(Path path) throws IOException {
+		return load(path, false);
+	}
+	
+	// Reads the file once for its checksum, keeping a copy if asked to. The result only counts if the file's
+	// version was the same before and after, so a rewrite in progress is read again rather than taken half
+	// old and half new.
+	private static FileContent load(Path path, boolean inMemory) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			Version version = Version.of(path);
+			CRC32C checksum = new CRC32C();
+			ByteBuffer[] segments = inMemory ? new ByteBuffer[(int) ((version.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE)] : null;
+			long read = 0;
+			try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+				if (inMemory) {
+					for (int i = 0; i < segments.length; i++) {
+						long position = (long) i * SEGMENT_SIZE;
+						ByteBuffer segment = ByteBuffer.allocateDirect((int) Math.min(SEGMENT_SIZE, version.size() - position));
+						while (segment.hasRemaining() && fileChannel.read(segment, position + segment.position()) > 0) {
+							// Positional reads until the segment is full or the file ends early
+						}
+						segments[i] = segment.flip();
+						checksum.update(segment.duplicate());
+						read += segment.remaining();
+					}
+				} else {
+					read = FileTransfers.checksum(fileChannel, Long.MAX_VALUE, checksum);
+				}
+			}
+			if (read == version.size() && Version.of(path).equals(version)) {
+				return new FileContent(path, version, read, segments, (int) checksum.getValue());
+			}
+			if (attempt == READ_ATTEMPTS) {
+				throw new IOException(path + " kept changing while it was read");
+			}
+		}
+	}
+	
+	Path getPath() {
+		return path;
+	}
+	
+	Version getVersion() {
+		return version;
+	}
+	
+	long getLength() {
+		return length;
+	}
+	
+	int getChecksum() {
+		return checksum;
+	}
+	
+	// Whether chunk() and compressedChunk() can be used; otherwise the file has to be read from disk.
+	boolean isInMemory() {
+		return segments != null;
+	}
+	
+	// The chunk compressed with the session's codec, or null to send it raw. Chunks are compressed once
+	// per version for the first codec seen; sessions on another codec compress their own copies.
+	ByteBuffer compressedChunk(Compression compression, long position, int chunkLength) {
+		if (!cachedCompression.compareAndSet(null, compression) && cachedCompression.get() != compression) {
+			return compression.compressBody(chunk(position, chunkLength));
+		}
+		AtomicReferenceArray<ByteBuffer> cache = compressedChunks();
+		int index = (int) (position / Frames.CHUNK_SIZE);
+		ByteBuffer cached = cache.get(index);
+		if (cached == null) {
+			ByteBuffer compressed = compression.compressBody(chunk(position, chunkLength));
+			cache.compareAndSet(index, null, compressed != null ? compressed.asReadOnlyBuffer() : UNCOMPRESSIBLE);
+			cached = cache.get(index);
+		}
+		return cached == UNCOMPRESSIBLE ? null : cached.duplicate();
+	}
+	
+	private AtomicReferenceArray<ByteBuffer> compressedChunks() {
+		AtomicReferenceArray<ByteBuffer> cache = compressedChunks;
+		if (cache == null) {
+			synchronized (this) {
+				cache = compressedChunks;
+				if (cache == null) {
+					cache = new AtomicReferenceArray<>((int) ((length + Frames.CHUNK_SIZE - 1) / Frames.CHUNK_SIZE));
+					compressedChunks = cache;
+				}
+			}
+		}
+		return cache;
+	}
+	
+	// A read-only view of [position, position + chunkLength); position must be chunk aligned.
+	ByteBuffer chunk(long position, int chunkLength) {
+		ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+		return segment.slice((int) (position % SEGMENT_SIZE), chunkLength).asReadOnlyBuffer();
+	}
+	
+	// Size, mtime and file key together: a rewrite changes size or mtime, a replace by rename changes the key.
+	record Version(long size, long modified, Object fileKey) {
+		static Version of(Path path) throws IOException {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return new Version(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+		}
+		
+		// Sent with offers; stable across restarts as long as the file is untouched.
+		long id() {
+			long hash = size * 0x9E3779B97F4A7C15L + modified;
+			hash = hash * 0x9E3779B97F4A7C15L + Objects.hashCode(fileKey);
+			hash ^= hash >>> 33;
+			hash *= 0xFF51AFD7ED558CCDL;
+			return hash ^ hash >>> 33;
+		}
+	}
+}
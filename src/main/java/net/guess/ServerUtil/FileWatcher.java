@@ -1,23 +1,67 @@
 package net.guess.ServerUtil;
 
+import net.guess.SharedUtil.Counter;
+import net.guess.SharedUtil.Histogram;
+import net.guess.SharedUtil.Metrics;
+import net.guess.SharedUtil.TimingWheel;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
+/**
+ * Watches one file or a directory tree and calls the change handler once a burst of writes to a file
+ * has settled: each event pushes the file's deadline back by the debounce time, up to the max wait
+ * after the first event of the burst, so a steady stream of writes still gets delivered. Before
+ * delivering, the file's size and mtime and then its MD5 are compared with what was last delivered,
+ * so touches and rewrites of identical content never reach the handler.
+ */
 public class FileWatcher {
+	// Handlers run here, one at a time across all watchers, so slow handlers never hold up the watch thread or the timer
+	private static final ExecutorService changeExecutor = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("file-change").daemon().factory());
+	
+	
 	private final Path filePath;
 	private final String fileNameToWatch;
+	private final boolean recursive;
 	private final Consumer<Path> onChange;
 	private final long debounceTime;
 	private final WatchEvent.Kind<Path>[] watchEventKinds;
+	private final Counter eventsSeen = new Counter();
+	private final Counter changesDelivered = new Counter();
+	private final Counter changesDebounced = new Counter();
+	private final Counter changesUnchanged = new Counter();
+	private final Histogram changeHandling = new Histogram();
+	private final TimingWheel timingWheel = TimingWheel.shared();
+	private final Map<Path, PendingChange> pendingChanges = new ConcurrentHashMap<>();
+	private final Map<Path, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+	private volatile long maxWait;
+	private volatile Consumer<Path> invalidator;
 	private Path dir;
-	private long lastUpdateTime = 0;
 	private boolean isValid = true;
+	private WatchRegistry.Registration registration;
 	
 	@SafeVarargs
 	public FileWatcher(String filePath, long debounceTime, Consumer<Path> onChange, WatchEvent.Kind<Path>... watchEventKinds) {
+		this(filePath, false, debounceTime, onChange, watchEventKinds);
+	}
+	
+	@SafeVarargs
+	private FileWatcher(String filePath, boolean recursive, long debounceTime, Consumer<Path> onChange, WatchEvent.Kind<Path>... watchEventKinds) {
 		this.filePath = Paths.get(filePath);
-		this.dir = this.filePath.getParent();
+		this.recursive = recursive;
+		this.dir = recursive ? this.filePath : this.filePath.getParent();
 		
 		// Ensure that dir is never null
 		if (this.dir == null) {
@@ -33,74 +77,203 @@ public class FileWatcher {
 		this.fileNameToWatch = this.filePath.getFileName().toString();
 		this.onChange = onChange;
 		this.debounceTime = debounceTime;
+		this.maxWait = debounceTime * 5;
 		this.watchEventKinds = watchEventKinds;
 	}
 	
+	// Watches every file below a directory, including subdirectories created later. The change handler gets the changed file.
+	@SafeVarargs
+	public static FileWatcher forTree(String directory, long debounceTime, Consumer<Path> onChange, WatchEvent.Kind<Path>... watchEventKinds) {
+		return new FileWatcher(directory, true, debounceTime, onChange, watchEventKinds);
+	}
+	
+	// Adds this watcher's series, labeled with the watched path, to a registry.
+	public void registerMetrics(Metrics metrics) {
+		String path = filePath.toString();
+		metrics.counter("file_watcher_events_total", "Watch events for the watched path", eventsSeen::get, "path", path);
+		metrics.counter("file_watcher_changes_total", "Changes passed on to the change handler", changesDelivered::get, "path", path);
+		metrics.counter("file_watcher_debounced_total", "Events coalesced into a later change of the same file", changesDebounced::get, "path", path);
+		metrics.counter("file_watcher_unchanged_total", "Settled changes dropped because the content matched the last delivery", changesUnchanged::get, "path", path);
+		metrics.histogram("file_watcher_change_seconds", "Time spent in the change handler", changeHandling, "path", path);
+	}
+	
+	public long getMaxWait() {
+		return maxWait;
+	}
+	
+	// Longest a change may be held back by a burst of writes, in milliseconds. Defaults to five times the debounce time.
+	public void setMaxWait(long maxWait) {
+		this.maxWait = Math.max(debounceTime, maxWait);
+	}
+	
+	// Told about every raw event at once, before any debouncing, so caches never serve a file that is being rewritten.
+	void setInvalidator(Consumer<Path> invalidator) {
+		this.invalidator = invalidator;
+	}
+	
 	public void startWatching() {
+		startWatching(WatchRegistry.shared());
+	}
+	
+	// Idempotent: a watcher that is already registered stays as it is.
+	public synchronized void startWatching(WatchRegistry watchRegistry) {
 		if (!isValid) {
 			System.err.println("FileWatcher is not valid for: " + fileNameToWatch + " Aborting FileWatcher.");
 			return;
 		}
+		if (registration != null) {
+			return;
+		}
 		
-		Thread watchThread = new Thread(() -> {
-			try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
-				dir.register(watcher, watchEventKinds);
-				
-				while (true) {
-					WatchKey key;
-					try {
-						key = watcher.take();
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-						return;
-					}
-					
-					for (WatchEvent<?> event : key.pollEvents()) {
-						WatchEvent.Kind<?> kind = event.kind();
-						
-						if (kind == StandardWatchEventKinds.OVERFLOW) {
-							continue;
-						}
-						
-						Path fileName = ((WatchEvent<Path>) event).context();
-						if (fileName.toString().equals(fileNameToWatch)) {
-							Path file = dir.resolve(fileName);
-							
-							// Handle ENTRY_CREATE event
-							if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-								if (!Files.exists(file)) {
-									System.err.println("File " + file + " was created but does not exist yet, skipping.");
-									continue;
-								}
-							}
-							
-							// Handle ENTRY_MODIFY event
-							if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-								if (!Files.exists(file) || !Files.isRegularFile(file)) {
-									System.err.println("File " + file + " does not exist or is not a regular file, skipping.");
-									continue;
-								}
-							}
-							
-							long currentTime = System.currentTimeMillis();
-							if (currentTime - lastUpdateTime >= debounceTime) {
-								onChange.accept(file);
-								lastUpdateTime = currentTime;
-							}
-						}
-					}
-					
-					boolean valid = key.reset();
-					if (!valid) {
-						System.err.println("Watch key is no longer valid. Stopping watcher.");
-						break;
+		try {
+			registration = recursive ? watchRegistry.watchTree(dir, this::onEvent) : watchRegistry.watchFile(filePath, this::onEvent);
+		} catch (IOException e) {
+			System.err.println("Error setting up file watch: " + e.getMessage());
+			return;
+		}
+		if (!recursive) {
+			// Baseline, so touching the file without changing it does not count as a change
+			Path file = registration.getPath();
+			changeExecutor.execute(() -> {
+				Fingerprint fingerprint = Fingerprint.of(file);
+				if (fingerprint != null) {
+					fingerprints.putIfAbsent(file, fingerprint);
+				}
+			});
+		}
+	}
+	
+	public synchronized void stopWatching() {
+		if (registration != null) {
+			registration.close();
+			registration = null;
+		}
+		for (PendingChange pendingChange : pendingChanges.values()) {
+			pendingChange.timeout.cancel();
+		}
+		pendingChanges.clear();
+	}
+	
+	// Watch thread: restarts the file's debounce timer, keeping the start of the burst for the max wait cap.
+	private void onEvent(Path file, WatchEvent.Kind<Path> kind) {
+		Consumer<Path> invalidator = this.invalidator;
+		if (invalidator != null) {
+			invalidator.accept(file);
+		}
+		if (!isWatched(kind)) {
+			return;
+		}
+		eventsSeen.increment();
+		long now = System.nanoTime();
+		pendingChanges.compute(file, (path, pending) -> {
+			long burstStart = now;
+			if (pending != null) {
+				pending.timeout.cancel();
+				if (!pending.timeout.isExpired()) {
+					burstStart = pending.burstStart;
+					changesDebounced.increment();
+				}
+			}
+			long delay = Math.min(TimeUnit.MILLISECONDS.toNanos(debounceTime), burstStart + TimeUnit.MILLISECONDS.toNanos(maxWait) - now);
+			PendingChange next = new PendingChange(burstStart);
+			next.timeout = timingWheel.schedule(() -> changeExecutor.execute(() -> settle(file, next)), Math.max(0, delay), TimeUnit.NANOSECONDS);
+			return next;
+		});
+	}
+	
+	// Change executor: delivers the settled file unless a newer event superseded this timer or the content is unchanged.
+	private void settle(Path file, PendingChange pending) {
+		if (!pendingChanges.remove(file, pending)) {
+			return;
+		}
+		
+		if (!Files.exists(file)) {
+			if (fingerprints.remove(file) != null && isWatched(StandardWatchEventKinds.ENTRY_DELETE)) {
+				deliver(file);
+			}
+			return;
+		}
+		if (!Files.isRegularFile(file)) {
+			System.err.println("File " + file + " is not a regular file, skipping.");
+			return;
+		}
+		
+		Fingerprint previous = fingerprints.get(file);
+		Fingerprint current;
+		if (previous != null && previous.matchesAttributes(file)) {
+			current = previous;
+		} else {
+			current = Fingerprint.of(file);
+			if (current == null) {
+				return;
+			}
+			fingerprints.put(file, current);
+		}
+		if (previous != null && Arrays.equals(previous.hash, current.hash)) {
+			changesUnchanged.increment();
+			return;
+		}
+		deliver(file);
+	}
+	
+	private void deliver(Path file) {
+		long started = System.nanoTime();
+		try {
+			onChange.accept(file);
+		} catch (RuntimeException e) {
+			System.err.println("File change handler failed for " + file + ": " + e);
+		}
+		changeHandling.recordSince(started);
+		changesDelivered.increment();
+	}
+	
+	private boolean isWatched(WatchEvent.Kind<Path> kind) {
+		for (WatchEvent.Kind<Path> watched : watchEventKinds) {
+			if (watched == kind) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static final class PendingChange {
+		private final long burstStart;
+		private TimingWheel.Timeout timeout;
+		
+		private PendingChange(long burstStart) {
+			this.burstStart = burstStart;
+		}
+	}
+	
+	// What was last delivered for a file. The MD5 is only compared when size or mtime moved.
+	private record Fingerprint(long size, long modified, byte[] hash) {
+		static Fingerprint of(Path file) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				MessageDigest md5 = MessageDigest.getInstance("MD5");
+				ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					while (channel.read(buffer) != -1) {
+						md5.update(buffer.flip());
+						buffer.clear();
 					}
 				}
+				return new Fingerprint(attributes.size(), attributes.lastModifiedTime().toMillis(), md5.digest());
 			} catch (IOException e) {
-				System.err.println("Error setting up file watch: " + e.getMessage());
+				System.err.println("Could not fingerprint " + file + ": " + e.getMessage());
+				return null;
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 is not available", e);
 			}
-		});
-		watchThread.setDaemon(true);
-		watchThread.start();
+		}
+		
+		boolean matchesAttributes(Path file) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified;
+			} catch (IOException e) {
+				return false;
+			}
+		}
 	}
 }
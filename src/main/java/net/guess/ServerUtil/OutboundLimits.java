@@ -0,0 +1,13 @@
+package net.guess.ServerUtil;
+
+// Bounds on what may sit in one session's outbound queue. A single frame larger than maxBytes is still
+// accepted into an empty queue.
+public record OutboundLimits(int maxFrames, long maxBytes, SlowConsumerPolicy policy) {
+	public static final OutboundLimits DEFAULT = new OutboundLimits(4096, 16L * 1024 * 1024, SlowConsumerPolicy.BLOCK);
+	
+	public OutboundLimits {
+		if (maxFrames < 1 || maxBytes < 1) {
+			throw new IllegalArgumentException("Outbound limits must be positive");
+		}
+	}
+}
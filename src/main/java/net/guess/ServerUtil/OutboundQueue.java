@@ -0,0 +1,248 @@
+package net.guess.ServerUtil;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Frames waiting to go out on one connection. Any thread may add; a single flusher at a time takes
+ * whatever has piled up and writes consecutive frames with one gathering write, so a burst of
+ * messages costs one syscall instead of one each. Frame and byte limits apply to everything queued
+ * or in flight, and a full queue is handled per {@link SlowConsumerPolicy}.
+ */
+final class OutboundQueue {
+	// Buffers per gathering write; at least two so a chunk header and its body always fit together
+	private static final int MAX_GATHER = 64;
+	
+	private final OutboundLimits limits;
+	private final ServerMetrics.Session metrics;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<PendingWrite> queued = new ArrayDeque<>();
+	// Taken from queued by the flusher; may be partially written. Polled only under the lock.
+	private final ArrayDeque<PendingWrite> inFlight = new ArrayDeque<>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	// Flusher-only scratch, so futures complete outside the lock
+	private final ArrayDeque<PendingWrite> retired = new ArrayDeque<>();
+	private int frames;
+	private long bytes;
+	private boolean closed;
+	
+	OutboundQueue(OutboundLimits limits, ServerMetrics.Session metrics) {
+		this.limits = limits;
+		this.metrics = metrics;
+	}
+	
+	// What a caller does when the policy leaves it waiting for room.
+	enum WhenFull {
+		WAIT,
+		// For threads that must never wait, like a selector loop
+		EXCEED_LIMIT,
+		REJECT
+	}
+	
+	enum Result {
+		QUEUED,
+		REJECTED,
+		DISCONNECT
+	}
+	
+	Result add(PendingWrite write, WhenFull whenFull) throws IOException {
+		write.markEnqueued(System.nanoTime());
+		lock.lock();
+		try {
+			while (!closed && isFullFor(write)) {
+				if (write.isMessage()) {
+					if (limits.policy() == SlowConsumerPolicy.DISCONNECT) {
+						return Result.DISCONNECT;
+					}
+					if (limits.policy() == SlowConsumerPolicy.DROP_OLDEST && dropOldestMessage()) {
+						continue;
+					}
+				}
+				if (whenFull == WhenFull.REJECT) {
+					return Result.REJECTED;
+				}
+				if (whenFull == WhenFull.EXCEED_LIMIT) {
+					break;
+				}
+				try {
+					notFull.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for the outbound queue to drain");
+				}
+			}
+			if (closed) {
+				throw new IOException("Connection is closed");
+			}
+			queued.add(write);
+			frames++;
+			bytes += write.length();
+			return Result.QUEUED;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private boolean isFullFor(PendingWrite write) {
+		return frames > 0 && (frames + 1 > limits.maxFrames() || bytes + write.length() > limits.maxBytes());
+	}
+	
+	private boolean dropOldestMessage() {
+		for (Iterator<PendingWrite> iterator = queued.iterator(); iterator.hasNext(); ) {
+			PendingWrite candidate = iterator.next();
+			if (candidate.isMessage()) {
+				iterator.remove();
+				frames--;
+				bytes -= candidate.length();
+				candidate.fail(new IOException("Dropped: client is not keeping up"));
+				metrics.onDropped();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	int queuedFrames() {
+		lock.lock();
+		try {
+			return frames;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	long queuedBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	boolean isEmpty() {
+		lock.lock();
+		try {
+			return frames == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Only one thread may flush at a time. Returns true once everything queued has been written, or
+	// false when a non-blocking channel cannot take more yet.
+	boolean flushTo(SocketChannel channel) throws IOException {
+		while (true) {
+			if (inFlight.isEmpty() && !takeBatch()) {
+				return true;
+			}
+			PendingWrite head = inFlight.peek();
+			if (head.hasFileRegion()) {
+				if (!head.writeFileRegion(channel)) {
+					return false;
+				}
+				retireWritten();
+				continue;
+			}
+			int count = 0;
+			for (PendingWrite write : inFlight) {
+				if (write.hasFileRegion() || count + write.bufferCount() > MAX_GATHER) {
+					break;
+				}
+				count = write.addBuffers(gather, count);
+			}
+			long written;
+			try {
+				written = channel.write(gather, 0, count);
+			} finally {
+				Arrays.fill(gather, 0, count, null);
+			}
+			retireWritten();
+			if (written == 0 && !channel.isBlocking()) {
+				return false;
+			}
+		}
+	}
+	
+	private boolean takeBatch() {
+		lock.lock();
+		try {
+			int buffers = 0;
+			PendingWrite next;
+			while ((next = queued.peek()) != null && buffers < MAX_GATHER) {
+				inFlight.add(queued.poll());
+				buffers += next.bufferCount();
+				if (next.hasFileRegion()) {
+					break;
+				}
+			}
+			return !inFlight.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void retireWritten() {
+		long retiredBytes = 0;
+		lock.lock();
+		try {
+			PendingWrite head;
+			while ((head = inFlight.peek()) != null && head.isWritten()) {
+				retired.add(inFlight.poll());
+				retiredBytes += head.length();
+			}
+			if (!retired.isEmpty()) {
+				frames -= retired.size();
+				bytes -= retiredBytes;
+				notFull.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (retired.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		int messages = 0;
+		PendingWrite write;
+		while ((write = retired.poll()) != null) {
+			if (write.isMessage()) {
+				messages++;
+			}
+			metrics.onQueueLatency(now - write.enqueuedAt());
+			write.complete();
+		}
+		metrics.onWritten(messages, retiredBytes);
+	}
+	
+	// Fails everything still pending and wakes blocked writers; later adds throw.
+	void close() {
+		IOException cause = new IOException("Connection closed before the frame was written");
+		lock.lock();
+		try {
+			closed = true;
+			for (PendingWrite write : inFlight) {
+				write.fail(cause);
+			}
+			// Writes still in flight stay counted until the flusher retires them or fails on the closed channel;
+			// counting the discarded ones would leave the queue looking non-empty and keep a flusher spinning
+			for (PendingWrite write : queued) {
+				write.fail(cause);
+				frames--;
+				bytes -= write.length();
+			}
+			queued.clear();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
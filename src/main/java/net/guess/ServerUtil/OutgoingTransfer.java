@@ -0,0 +1,71 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.StreamInputChannel;
+
+import java.nio.file.Path;
+
+// A file offered to one session, waiting for the client to accept it or streaming to it.
+class OutgoingTransfer {
+	private final int streamId;
+	private final String fileToSend;
+	private final long version;
+	private final BroadcastFile broadcast;
+	private volatile StreamInputChannel signature;
+	private volatile boolean parallel;
+	private volatile long resumeOffset;
+	
+	OutgoingTransfer(int streamId, String fileToSend, long version, BroadcastFile broadcast) {
+		this.streamId = streamId;
+		this.fileToSend = fileToSend;
+		this.version = version;
+		this.broadcast = broadcast;
+	}
+	
+	int getStreamId() {
+		return streamId;
+	}
+	
+	String getFileToSend() {
+		return fileToSend;
+	}
+	
+	Path getPath() {
+		return Path.of(fileToSend);
+	}
+	
+	// The version id sent with the offer.
+	long getVersion() {
+		return version;
+	}
+	
+	// Where a resumed transfer starts; 0 for everything else.
+	long getResumeOffset() {
+		return resumeOffset;
+	}
+	
+	void setResumeOffset(long resumeOffset) {
+		this.resumeOffset = resumeOffset;
+	}
+	
+	// The offered version of the file, in memory and shared with other transfers or left on disk.
+	BroadcastFile getBroadcast() {
+		return broadcast;
+	}
+	
+	// Accepted as ranges over all of the client's connections.
+	boolean isParallel() {
+		return parallel;
+	}
+	
+	void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+	StreamInputChannel getSignature() {
+		return signature;
+	}
+	
+	void setSignature(StreamInputChannel signature) {
+		this.signature = signature;
+	}
+}
@@ -0,0 +1,129 @@
+package net.guess.ServerUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// A frame, a chunk header plus a body that may be shared with other sessions,
+// or a chunk header plus a file region sent with transferTo.
+final class PendingWrite {
+	private static final AtomicIntegerFieldUpdater<PendingWrite> SETTLED = AtomicIntegerFieldUpdater.newUpdater(PendingWrite.class, "settled");
+	
+	private final ByteBuffer buffer;
+	private final ByteBuffer body;
+	private final FileChannel file;
+	private final Semaphore window;
+	private final CompletableFuture<Void> completion;
+	private final boolean message;
+	private final long length;
+	private long position;
+	private long remaining;
+	// System.nanoTime() when queued
+	private long enqueuedAt;
+	// Set once, by whichever of completion or a concurrent close gets there first
+	private volatile int settled;
+	
+	PendingWrite(ByteBuffer buffer, ByteBuffer body, FileChannel file, long position, long fileLength, Semaphore window, CompletableFuture<Void> completion, boolean message) {
+		this.buffer = buffer;
+		this.body = body;
+		this.file = file;
+		this.position = position;
+		this.remaining = fileLength;
+		this.window = window;
+		this.completion = completion;
+		this.message = message;
+		this.length = buffer.remaining() + (body != null ? body.remaining() : 0) + fileLength;
+	}
+	
+	static PendingWrite frame(ByteBuffer frame, CompletableFuture<Void> completion, boolean message) {
+		return new PendingWrite(frame, null, null, 0, 0, null, completion, message);
+	}
+	
+	void markEnqueued(long now) {
+		enqueuedAt = now;
+	}
+	
+	long enqueuedAt() {
+		return enqueuedAt;
+	}
+	
+	long length() {
+		return length;
+	}
+	
+	// Messages fall under the slow-consumer policy; stream frames only ever wait for room.
+	boolean isMessage() {
+		return message;
+	}
+	
+	boolean hasFileRegion() {
+		return file != null;
+	}
+	
+	// Adds this write's buffers to a gathering write; only for writes without a file region.
+	int addBuffers(ByteBuffer[] into, int count) {
+		into[count++] = buffer;
+		if (body != null) {
+			into[count++] = body;
+		}
+		return count;
+	}
+	
+	int bufferCount() {
+		return body != null ? 2 : 1;
+	}
+	
+	boolean isWritten() {
+		return !buffer.hasRemaining() && (body == null || !body.hasRemaining()) && remaining == 0;
+	}
+	
+	// Writes the header and file region. Returns false when the socket buffer filled up first.
+	boolean writeFileRegion(SocketChannel channel) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0) {
+				return false;
+			}
+		}
+		while (remaining > 0) {
+			long sent = file.transferTo(position, remaining, channel);
+			if (sent == 0) {
+				if (position >= file.size()) {
+					throw new EOFException("File was truncated while sending");
+				}
+				return false;
+			}
+			position += sent;
+			remaining -= sent;
+		}
+		return true;
+	}
+	
+	void complete() {
+		if (!SETTLED.compareAndSet(this, 0, 1)) {
+			return;
+		}
+		if (window != null) {
+			window.release();
+		}
+		if (completion != null) {
+			completion.complete(null);
+		}
+	}
+	
+	void fail(IOException cause) {
+		if (!SETTLED.compareAndSet(this, 0, 1)) {
+			return;
+		}
+		if (window != null) {
+			window.release();
+		}
+		if (completion != null) {
+			completion.completeExceptionally(cause);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.Frames;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out chunk-aligned ranges of one file to the connections of a parallel transfer. Each connection
+ * asks for its next range as soon as it has queued the previous one, sized from its own measured
+ * throughput so a range takes about TARGET_RANGE_NANOS, which keeps fast connections busy without
+ * leaving one slow connection holding a huge range at the end. Ranges also shrink as the file runs
+ * out, so the tail is shared out instead of landing on a single connection.
+ */
+final class RangeSplitter {
+	static final long INITIAL_RANGE = 4L * 1024 * 1024;
+	private static final long MIN_RANGE = 1024 * 1024;
+	private static final long MAX_RANGE = 64L * 1024 * 1024;
+	private static final long TARGET_RANGE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+	
+	private final long length;
+	private final int connections;
+	private long next;
+	private boolean cancelled;
+	
+	RangeSplitter(long length, int connections) {
+		this.length = length;
+		this.connections = connections;
+	}
+	
+	// The next range of at most preferred bytes, or null once the whole file has been handed out.
+	synchronized Range next(long preferred) {
+		long remaining = length - next;
+		if (remaining <= 0 || cancelled) {
+			return null;
+		}
+		long fairShare = align((remaining + connections - 1) / connections);
+		long size = Math.min(remaining, Math.max(Frames.CHUNK_SIZE, Math.min(preferred, fairShare)));
+		Range range = new Range(next, size);
+		next += size;
+		return range;
+	}
+	
+	// Stops handing out ranges, e.g. because one connection failed and the transfer is lost anyway.
+	synchronized void cancel() {
+		cancelled = true;
+	}
+	
+	// Size for a connection's next range, given how long it took to queue its last one.
+	static long nextSize(long lastLength, long elapsedNanos) {
+		double bytesPerNano = (double) lastLength / Math.max(1, elapsedNanos);
+		long size = (long) Math.min(MAX_RANGE, bytesPerNano * TARGET_RANGE_NANOS);
+		return align(Math.max(MIN_RANGE, size));
+	}
+	
+	// Every range but the last starts and ends on a chunk boundary, so in-memory chunks never straddle segments.
+	private static long align(long size) {
+		return Math.max(Frames.CHUNK_SIZE, size / Frames.CHUNK_SIZE * Frames.CHUNK_SIZE);
+	}
+	
+	record Range(long offset, long length) {
+	}
+}
@@ -0,0 +1,93 @@
+package net.guess.ServerUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The most recent sequenced messages sent to one session, oldest dropped first once either bound is hit.
+ * Frames are kept uncompressed and read-only; a broadcast's entries in every session share one buffer.
+ * Sequence numbers wrap, so they are only ever compared by the sign of their difference.
+ */
+final class ReplayRing {
+	private final int maxMessages;
+	private final long maxBytes;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+	private long bytes;
+	// Highest sequence dropped so far; a client that has not seen it cannot be caught up from here
+	private int dropped;
+	private boolean hasDropped;
+	
+	ReplayRing(ReplaySettings settings) {
+		this.maxMessages = settings.maxMessages();
+		this.maxBytes = settings.maxBytes();
+	}
+	
+	void record(int sequence, ByteBuffer frame) {
+		Entry entry = new Entry(sequence, frame);
+		lock.lock();
+		try {
+			entries.addLast(entry);
+			bytes += frame.remaining();
+			while (entries.size() > maxMessages || (bytes > maxBytes && entries.size() > 1)) {
+				Entry oldest = entries.removeFirst();
+				bytes -= oldest.frame.remaining();
+				if (!hasDropped || oldest.sequence - dropped > 0) {
+					dropped = oldest.sequence;
+					hasDropped = true;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Everything recorded after lastSeen, in the order it was sent, or null if some of it was already dropped.
+	List<Entry> after(int lastSeen) {
+		lock.lock();
+		try {
+			if (hasDropped && dropped - lastSeen > 0) {
+				return null;
+			}
+			List<Entry> missed = new ArrayList<>();
+			for (Entry entry : entries) {
+				if (entry.sequence - lastSeen > 0) {
+					missed.add(entry);
+				}
+			}
+			return missed;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	Set<Integer> sequences() {
+		lock.lock();
+		try {
+			Set<Integer> sequences = new HashSet<>();
+			for (Entry entry : entries) {
+				sequences.add(entry.sequence);
+			}
+			return sequences;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	long getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	record Entry(int sequence, ByteBuffer frame) {
+	}
+}
@@ -0,0 +1,20 @@
+package net.guess.ServerUtil;
+
+import java.time.Duration;
+
+// How much a session keeps of the messages sent to it, so a client that reconnects can ask for just what it
+// missed, and how long a closed session waits for that. Applies to sessions accepted after it is set.
+public record ReplaySettings(int maxMessages, long maxBytes, Duration retention) {
+	public static final ReplaySettings DEFAULT = new ReplaySettings(1024, 1024 * 1024, Duration.ofSeconds(60));
+	public static final ReplaySettings DISABLED = new ReplaySettings(0, 0, Duration.ZERO);
+	
+	public ReplaySettings {
+		if (maxMessages < 0 || maxBytes < 0 || retention.isNegative()) {
+			throw new IllegalArgumentException("Replay limits and retention must not be negative");
+		}
+	}
+	
+	boolean isEnabled() {
+		return maxMessages > 0 && maxBytes > 0 && !retention.isZero();
+	}
+}
@@ -0,0 +1,11 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.Request;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface RequestHandler {
+	// Runs on the session's reader; answer through the request, now or later from another thread.
+	void handle(ClientSession session, Request request) throws IOException;
+}
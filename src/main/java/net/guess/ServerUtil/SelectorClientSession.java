@@ -0,0 +1,94 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+public class SelectorClientSession extends ClientSession {
+	private final SocketChannel channel;
+	private final SelectorEventLoop eventLoop;
+	private final FrameDecoder decoder = new FrameDecoder();
+	private SelectionKey key;
+	private volatile boolean open = true;
+	
+	SelectorClientSession(String id, SocketChannel channel, SelectorEventLoop eventLoop, Server server) throws IOException {
+		super(id, channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort(), server);
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+	}
+	
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	void attach(SelectionKey key) {
+		this.key = key;
+	}
+	
+	@Override
+	protected void scheduleFlush() {
+		eventLoop.execute(this::flushFromLoop);
+	}
+	
+	// The loop thread must never wait on its own queue; it queues past the limit instead.
+	@Override
+	protected boolean canBlock() {
+		return !eventLoop.inEventLoop();
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return open && channel.isOpen();
+	}
+	
+	@Override
+	public void close() {
+		open = false;
+		closeOutbound();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+	}
+	
+	void onReadable() throws IOException {
+		int read = decoder.readFrom(channel, (type, flags, streamId, payload) -> server.handleFrame(this, type, flags, streamId, payload));
+		if (read == -1) {
+			server.closeSession(this, null);
+		}
+	}
+	
+	void onWritable() throws IOException {
+		flushAll();
+	}
+	
+	private void flushFromLoop() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		try {
+			flushAll();
+		} catch (IOException e) {
+			server.closeSession(this, e);
+		} catch (CancelledKeyException e) {
+			// Closed from another thread between the validity check and the flush
+		}
+	}
+	
+	// Leaves the flush pending while waiting for OP_WRITE, so writers do not schedule redundant flushes.
+	private void flushAll() throws IOException {
+		do {
+			if (!flush(channel)) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+		} while (finishFlush());
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+}
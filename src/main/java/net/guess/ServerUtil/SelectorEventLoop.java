@@ -0,0 +1,112 @@
+package net.guess.ServerUtil;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread. Each loop owns the keys registered on it; other threads hand it work
+ * through {@link #execute(Runnable)} so interest ops are only ever touched from the loop itself.
+ */
+class SelectorEventLoop implements Runnable {
+	private final Server server;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+	private volatile boolean running = true;
+	
+	SelectorEventLoop(Server server, String name) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+	}
+	
+	void start() {
+		thread.start();
+	}
+	
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	void registerAcceptor(ServerSocketChannel serverChannel) throws ClosedChannelException {
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT, serverChannel);
+	}
+	
+	void register(SelectorClientSession session) {
+		try {
+			SelectionKey key = session.getChannel().register(selector, SelectionKey.OP_READ, session);
+			session.attach(key);
+			server.registerSession(session);
+		} catch (IOException e) {
+			server.getServerEventManager().triggerServerError("Error registering client with event loop", e);
+			session.close();
+		}
+	}
+	
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				server.getServerEventManager().triggerServerError("Error selecting on event loop", e);
+				break;
+			}
+			
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				
+				if (key.attachment() instanceof ServerSocketChannel serverChannel) {
+					server.acceptPending(serverChannel);
+					continue;
+				}
+				
+				SelectorClientSession session = (SelectorClientSession) key.attachment();
+				try {
+					if (key.isReadable()) {
+						session.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						session.onWritable();
+					}
+				} catch (IOException | CancelledKeyException e) {
+					server.closeSession(session, e);
+				}
+			}
+		}
+		
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof SelectorClientSession session) {
+				session.close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			server.getServerEventManager().triggerServerError("Error closing event loop selector", e);
+		}
+	}
+	
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+}
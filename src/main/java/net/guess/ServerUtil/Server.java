@@ -1,168 +1,1130 @@
 package net.guess.ServerUtil;
 
+import net.guess.SharedUtil.*;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
 
 public class Server {
+	public static final long DEFAULT_DIRECT_SEND_THRESHOLD = 64L * 1024 * 1024;
+	private static final int MAX_RESUMABLE_OFFERS = 256;
+	private static final int MAX_SUBSCRIPTIONS_PER_SESSION = 1024;
+	
 	private final List<FileWatcher> fileWatchers = new ArrayList<>();
-	public boolean isConnected = false;
-	private ServerSocket serverSocket;
-	private Socket clientSocket;
-	private PrintWriter writer;
+	private final Map<String, ClientSession> sessions = new ConcurrentHashMap<>();
+	private final AtomicLong sessionCounter = new AtomicLong();
+	// Server-wide rather than per session, so one broadcast can use the same stream id on every connection
+	private final AtomicInteger streamCounter = new AtomicInteger();
+	private final List<Compression> compressions = new CopyOnWriteArrayList<>();
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+	public volatile boolean isConnected = false;
+	private ServerSocketChannel serverChannel;
+	private SelectorEventLoop[] eventLoops;
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+	private ExecutorService connectionExecutor;
+	private ExecutorService transferExecutor;
+	private ExecutorService writerExecutor;
+	private OutboundLimits outboundLimits = OutboundLimits.DEFAULT;
 	private ScheduledExecutorService broadcastExecutorService;
-	private ScheduledExecutorService heartBeatExecutor;
+	private volatile MulticastSocket discoverySocket;
+	private final Set<String> capabilities = new CopyOnWriteArraySet<>();
+	private final AtomicLong discoveryQueries = new AtomicLong();
+	private volatile ReplaySettings replaySettings = ReplaySettings.DEFAULT;
+	// Sessions that closed while the server kept running, held for a resume until their retention runs out
+	private final Map<String, ClientSession> detachedSessions = new ConcurrentHashMap<>();
+	// Broadcasts record under the read lock; a session moves between connected and detached under the write
+	// lock, so no broadcast can find it in neither map or record into a ring that is being replayed
+	private final ReentrantReadWriteLock membershipLock = new ReentrantReadWriteLock();
+	// Server-wide, so a broadcast has one sequence number and one encoded frame for every session
+	private final AtomicInteger messageSequence = new AtomicInteger();
+	// Files recently offered to everyone or to subscribers; what a client that cannot be caught up is offered again
+	private final Map<String, Boolean> broadcastFiles = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_RESUMABLE_OFFERS;
+		}
+	};
+	private final AtomicLong replayedMessages = new AtomicLong();
+	private final AtomicLong resyncs = new AtomicLong();
+	private HeartbeatSettings heartbeatSettings = HeartbeatSettings.DEFAULT;
+	private final TimingWheel timingWheel = TimingWheel.shared();
+	private final WatchRegistry watchRegistry = WatchRegistry.shared();
+	private final ContentCache contentCache = new ContentCache(ContentCache.DEFAULT_CAPACITY);
+	private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+	private final Map<String, RequestHandler> requestHandlers = new ConcurrentHashMap<>();
+	private volatile Function<String, String> fileRequestResolver;
+	private volatile Duration requestTimeout = Duration.ofSeconds(30);
+	private volatile long directSendThreshold = DEFAULT_DIRECT_SEND_THRESHOLD;
+	// Version id -> file of recent offers, for RESUME requests
+	private final Map<Long, String> offeredFiles = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+			return size() > MAX_RESUMABLE_OFFERS;
+		}
+	};
+	private boolean fileWatchersStarted = false;
 	ServerEventManager serverEventManager = new ServerEventManager();
+	private final Metrics metrics = new Metrics("guess_server");
+	private final ServerMetrics serverMetrics = new ServerMetrics(metrics);
+	
+	public Server() {
+		metrics.gauge("sessions", "Connected clients", sessions::size);
+		metrics.counter("errors_total", "Errors reported through the event manager", serverEventManager::getErrorCount);
+		metrics.gauge("watched_directories", "Directories registered with the file watch service", watchRegistry::getWatchedDirectoryCount);
+		metrics.counter("watch_overflows_total", "Watch service overflows recovered by rescanning", watchRegistry::getOverflowCount);
+		metrics.counter("content_cache_hits_total", "File sends served from an already cached copy", contentCache::getHitCount);
+		metrics.counter("content_cache_misses_total", "File sends that had to map the file", contentCache::getMissCount);
+		metrics.counter("content_cache_evictions_total", "Files evicted to stay within the cache capacity", contentCache::getEvictionCount);
+		metrics.counter("content_cache_invalidations_total", "Files dropped because a watcher saw them change", contentCache::getInvalidationCount);
+		metrics.gauge("content_cache_bytes", "Bytes of file content cached", contentCache::getSize);
+		metrics.gauge("content_cache_files", "Files cached", contentCache::getEntryCount);
+		metrics.gauge("subscriptions", "Topic patterns clients are subscribed to", subscriptions::getSubscriptionCount);
+		metrics.gauge("requests_pending", "Requests sent to clients and waiting for a reply", () -> sessions.values().stream().mapToInt(s -> s.getRequests().getPendingCount()).sum());
+		metrics.gauge("requests_serving", "Requests from clients not yet answered", () -> sessions.values().stream().mapToInt(s -> s.getRequests().getServingCount()).sum());
+		metrics.counter("discovery_queries_total", "Discovery queries answered", discoveryQueries::get);
+		metrics.gauge("detached_sessions", "Closed sessions waiting to be resumed", detachedSessions::size);
+		metrics.counter("replayed_messages_total", "Messages sent again to clients that resumed their session", replayedMessages::get);
+		metrics.counter("resyncs_total", "Resumes that could not be replayed and fell back to a full resync", resyncs::get);
+		requestHandlers.put("FILE", this::serveFile);
+	}
 	
 	public ServerEventManager getServerEventManager() {
 		return serverEventManager;
 	}
 	
-	public synchronized void sendFileToClient(String fileToSend) throws IOException {
+	// In-memory copies of recently sent files; its capacity can be changed at any time.
+	public ContentCache getContentCache() {
+		return contentCache;
+	}
+	
+	// Message, byte, transfer and latency metrics, server-wide and per session. See MetricsEndpoint for scraping.
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	ServerMetrics getServerMetrics() {
+		return serverMetrics;
+	}
+	
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+	
+	// Must be chosen before the server is started.
+	public void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+	}
+	
+	public Collection<ClientSession> getSessions() {
+		return sessions.values();
+	}
+	
+	public ClientSession getSession(String sessionId) {
+		return sessions.get(sessionId);
+	}
+	
+	// Offers the file to every connected client; each accepted copy streams over that client's own connection.
+	// The file is read into memory (or found in the content cache) and the offer encoded once; every full
+	// copy then writes slices of the same buffers. Files too large for the cache are streamed from disk, as
+	// are large files when there is only one client; see setDirectSendThreshold.
+	public void sendFileToClient(String fileToSend) throws IOException {
+		offerFile(broadcastTargets(), fileToSend);
+	}
+	
+	// Offers the file only to clients subscribed to the topic, e.g. the path a FileWatcher reported.
+	// Returns how many clients it was offered to.
+	public int publishFile(String topic, String fileToSend) throws IOException {
+		Set<ClientSession> subscribers = subscriptions.match(topic);
+		if (!subscribers.isEmpty()) {
+			offerFile(subscribers, fileToSend);
+		}
+		return subscribers.size();
+	}
+	
+	private void offerFile(Collection<ClientSession> targets, String fileToSend) throws IOException {
 		File file = new File(fileToSend);
-		int fileLength = (int) file.length();
-		serverEventManager.triggerFileSending(fileToSend, fileLength);
-		
-		try (Socket sock = serverSocket.accept();
-		     FileInputStream fis = new FileInputStream(fileToSend);
-		     BufferedInputStream bis = new BufferedInputStream(fis);
-		     OutputStream os = sock.getOutputStream()) {
-			
-			// Send file size first
-			DataOutputStream dataOut = new DataOutputStream(os);
-			dataOut.writeInt(fileLength);  // Send the file size
-			
-			byte[] fileByteArray = new byte[fileLength];
-			int bytesRead;
-			int totalBytesRead = 0;
-			
-			while ((bytesRead = bis.read(fileByteArray, totalBytesRead, fileByteArray.length - totalBytesRead)) != -1) {
-				totalBytesRead += bytesRead;
-				if (totalBytesRead == fileLength) {
-					break;
-				}
+		if (!file.isFile()) {
+			throw new FileNotFoundException(fileToSend);
+		}
+		int recipients = 0;
+		for (ClientSession session : targets) {
+			if (!session.isDataChannel()) {
+				recipients++;
+			}
+		}
+		BroadcastFile broadcast = new BroadcastFile(contentOf(file.toPath(), recipients), nextStreamId());
+		long version = broadcast.getContent().getVersion().id();
+		rememberOffer(version, fileToSend);
+		synchronized (broadcastFiles) {
+			broadcastFiles.put(fileToSend, Boolean.TRUE);
+		}
+		ByteBuffer offer = Frames.fileOffer(broadcast.getStreamId(), broadcast.getLength(), version, broadcast.getName()).asReadOnlyBuffer();
+		for (ClientSession session : targets) {
+			if (session.isDataChannel()) {
+				continue;
+			}
+			if (!session.isOpen()) {
+				// Offered again if the client resumes this session
+				session.getMissedFiles().add(fileToSend);
+				continue;
+			}
+			try {
+				offerFile(session, new OutgoingTransfer(broadcast.getStreamId(), fileToSend, version, broadcast), offer.duplicate());
+			} catch (IOException e) {
+				serverEventManager.triggerServerError("Error offering file to client", e);
+			}
+		}
+	}
+	
+	public void sendFileToClient(ClientSession session, String fileToSend) throws IOException {
+		sendFileToClient(session, fileToSend, nextStreamId());
+	}
+	
+	private void sendFileToClient(ClientSession session, String fileToSend, int streamId) throws IOException {
+		File file = new File(fileToSend);
+		if (!file.isFile()) {
+			throw new FileNotFoundException(fileToSend);
+		}
+		BroadcastFile broadcast = new BroadcastFile(contentOf(file.toPath(), 1), streamId);
+		long version = broadcast.getContent().getVersion().id();
+		rememberOffer(version, fileToSend);
+		offerFile(session, new OutgoingTransfer(streamId, fileToSend, version, broadcast), Frames.fileOffer(streamId, broadcast.getLength(), version, broadcast.getName()));
+	}
+	
+	// Only files the server chose to offer can be asked for again, and only by version id.
+	private void rememberOffer(long version, String fileToSend) {
+		synchronized (offeredFiles) {
+			offeredFiles.put(version, fileToSend);
+		}
+	}
+	
+	// RESUME <version>: a client reconnected with a partial copy of a file offered earlier. It gets a fresh
+	// offer if that version is still current, and RESUME_FAILED otherwise so it can drop its partial copy.
+	// Runs on the transfer executor, as both the check and the offer touch the disk.
+	private void resumeOffer(ClientSession session, String versionText) {
+		long version;
+		String fileToSend;
+		try {
+			version = Long.parseUnsignedLong(versionText, 16);
+		} catch (NumberFormatException e) {
+			version = 0;
+		}
+		synchronized (offeredFiles) {
+			fileToSend = offeredFiles.get(version);
+		}
+		try {
+			if (fileToSend != null && FileContent.Version.of(Path.of(fileToSend)).id() == version) {
+				sendFileToClient(session, fileToSend);
+				return;
 			}
-			
-			os.write(fileByteArray, 0, totalBytesRead);
-			os.flush();
-			serverEventManager.triggerFileSent(fileToSend, fileLength);
 		} catch (IOException e) {
-			serverEventManager.triggerServerError("Error sending file to client", e);
+			// Gone or unreadable: the client cannot resume it either way
+		}
+		try {
+			session.writeFrame(Frames.message("RESUME_FAILED " + versionText));
+		} catch (IOException e) {
+			serverEventManager.triggerServerError("Error sending message to client", e);
 		}
 	}
 	
+	// The cached copy of the file, or one left on disk when it is too large for the cache or goes to a single
+	// client at or above the direct send threshold; that costs a read for its checksum, which each
+	// transfer's client verifies against what it received.
+	private FileContent contentOf(Path path, int recipients) throws IOException {
+		if (recipients <= 1 && Files.size(path) >= directSendThreshold) {
+			return FileContent.onDisk(path);
+		}
+		FileContent content = contentCache.get(path);
+		return content != null ? content : FileContent.onDisk(path);
+	}
 	
-	public void handleClient() {
-		BufferedReader reader = null;
+	private void offerFile(ClientSession session, OutgoingTransfer transfer, ByteBuffer offer) throws IOException {
+		session.getTransfers().put(transfer.getStreamId(), transfer);
 		try {
-			isConnected = true;
-			reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			writer = new PrintWriter(clientSocket.getOutputStream(), true);
-			
-			for (FileWatcher fileWatcher : fileWatchers) {
-				fileWatcher.startWatching();
+			session.writeFrame(offer);
+		} catch (IOException e) {
+			session.getTransfers().remove(transfer.getStreamId());
+			throw e;
+		}
+	}
+	
+	// Runs on the connection's reader (or selector loop) thread, so anything slow is handed to the transfer executor.
+	void handleFrame(ClientSession session, byte type, byte flags, int streamId, ByteBuffer payload) throws IOException {
+		session.getMetrics().onFrameReceived(Frames.HEADER_LENGTH + payload.remaining(), type == Frames.MESSAGE);
+		if ((flags & Frames.FLAG_COMPRESSED) != 0) {
+			Compression compression = session.getCompression();
+			if (compression == null) {
+				throw new IOException("Compressed frame before a codec was negotiated");
 			}
-			
-			heartBeatExecutor = Executors.newScheduledThreadPool(1);
-			heartBeatExecutor.scheduleAtFixedRate(() -> {
-				try {
-					if (!clientSocket.isClosed() && !clientSocket.isOutputShutdown()) {
-						writer.println("HEARTBEAT");
+			payload = compression.decompress(payload);
+		}
+		if (type == Frames.MESSAGE) {
+			handleInboundMessage(session, Frames.text(payload));
+			return;
+		}
+		
+		OutgoingTransfer transfer = session.getTransfers().get(streamId);
+		if (transfer == null) {
+			return;
+		}
+		switch (type) {
+			case Frames.FILE_ACCEPT -> {
+				byte mode = payload.get();
+				if (mode == Frames.MODE_DELTA) {
+					// Unbounded, as the selector thread must never block, but no longer than a signature of the offered file can be
+					transfer.setSignature(new StreamInputChannel(0, DeltaSync.maxSignatureLength(transfer.getBroadcast().getContent().getLength())));
+				} else if (mode == Frames.MODE_PARALLEL) {
+					transfer.setParallel(true);
+				} else if (mode == Frames.MODE_RESUME) {
+					transfer.setResumeOffset(payload.getLong());
+				}
+				getTransferExecutor().execute(() -> streamFile(session, transfer));
+			}
+			case Frames.STREAM_DATA -> {
+				if (transfer.getSignature() != null) {
+					transfer.getSignature().offer(payload);
+				}
+			}
+			case Frames.STREAM_END -> {
+				if (transfer.getSignature() != null) {
+					transfer.getSignature().finish();
+				}
+			}
+			case Frames.STREAM_CANCEL -> {
+				session.getTransfers().remove(streamId);
+				session.getMetrics().onTransferFailed();
+				if (transfer.getSignature() != null) {
+					transfer.getSignature().fail("Transfer cancelled by client");
+				}
+				serverEventManager.triggerServerError("Client declined " + transfer.getFileToSend(), new IOException(Frames.text(payload)));
+			}
+			default -> serverEventManager.triggerServerError("Error handling frame", new IOException("Unexpected frame type " + type));
+		}
+	}
+	
+	// Streams an accepted file as STREAM_DATA chunks. A delta accept first reads the client's block
+	// signature from the same stream and then sends only the changed blocks.
+	private void streamFile(ClientSession session, OutgoingTransfer transfer) {
+		String fileToSend = transfer.getFileToSend();
+		int streamId = transfer.getStreamId();
+		BroadcastFile broadcast = transfer.getBroadcast();
+		Compression compression = session.getCompression();
+		long startedAt = System.nanoTime();
+		try {
+			long fileLength;
+			if (transfer.getSignature() != null) {
+				fileLength = Files.size(transfer.getPath());
+				serverEventManager.triggerFileSending(fileToSend, fileLength);
+				StreamOutputChannel out = new StreamOutputChannel(session, streamId);
+				DeltaSync.Stats stats = DeltaSync.sendDelta(transfer.getPath(), transfer.getSignature(), out);
+				out.close();
+				session.writeFrame(Frames.streamEnd(streamId, stats.fileLength(), 0));
+				serverEventManager.triggerFileDeltaSent(fileToSend, stats);
+			} else if (transfer.isParallel()) {
+				FileContent content = broadcast.getContent();
+				fileLength = content.getLength();
+				serverEventManager.triggerFileSending(fileToSend, fileLength);
+				sendRanges(session, transfer, content);
+				session.writeFrame(Frames.streamEnd(streamId, fileLength, content.getChecksum()));
+			} else {
+				FileContent content = broadcast.getContent();
+				fileLength = content.getLength();
+				long position = transfer.getResumeOffset();
+				if (position > 0) {
+					// The client holds the offered version up to position; anything else would corrupt its copy
+					if (content.getVersion().id() != transfer.getVersion()) {
+						throw new IOException("Cannot resume " + fileToSend + ": it changed since it was offered");
+					}
+					if (position % Frames.CHUNK_SIZE != 0 || position > fileLength) {
+						throw new IOException("Cannot resume " + fileToSend + " at " + position);
+					}
+				}
+				serverEventManager.triggerFileSending(fileToSend, fileLength);
+				if (content.isInMemory()) {
+					while (position < fileLength) {
+						int chunk = (int) Math.min(Frames.CHUNK_SIZE, fileLength - position);
+						ByteBuffer compressed = compression != null ? broadcast.compressedChunk(compression, position, chunk) : null;
+						if (compressed != null) {
+							session.writeChunk(Frames.header(Frames.STREAM_DATA, Frames.FLAG_COMPRESSED, streamId, compressed.remaining()), compressed, transfer);
+						} else {
+							session.writeChunk(broadcast.chunkHeader(chunk), broadcast.chunk(position, chunk), transfer);
+						}
+						position += chunk;
+					}
+					session.awaitChunks(transfer);
+				} else {
+					sendFromDisk(session, transfer, content, position, compression);
+				}
+				session.writeFrame(Frames.streamEnd(streamId, fileLength, content.getChecksum()));
+			}
+			serverEventManager.triggerFileSent(fileToSend, fileLength);
+			session.getMetrics().onTransferCompleted(startedAt, fileLength);
+		} catch (IOException | RuntimeException | InternalError e) {
+			// Whatever went wrong, a codec or DeltaSync bug included, the client must hear about it or it waits forever
+			session.getMetrics().onTransferFailed();
+			serverEventManager.triggerServerError("Error sending file to client", e instanceof Exception exception ? exception : new IOException(e));
+			try {
+				session.writeFrame(Frames.streamCancel(streamId, e.getMessage() != null ? e.getMessage() : e.toString()));
+			} catch (IOException ignored) {
+			}
+		} finally {
+			session.getTransfers().remove(streamId);
+		}
+	}
+	
+	// Files too large for the cache or sent direct: from disk with transferTo, or through the heap to compress.
+	// The file is not copied first, so its version is checked before and after; one that changed is
+	// cancelled rather than left on the client half old and half new.
+	private void sendFromDisk(ClientSession session, OutgoingTransfer transfer, FileContent content, long position, Compression compression) throws IOException {
+		int streamId = transfer.getStreamId();
+		long fileLength = content.getLength();
+		try (FileChannel fileChannel = FileChannel.open(content.getPath(), StandardOpenOption.READ)) {
+			checkUnchanged(content, transfer.getFileToSend());
+			while (position < fileLength) {
+				int chunk = (int) Math.min(Frames.CHUNK_SIZE, fileLength - position);
+				if (compression == null) {
+					session.writeFileChunk(Frames.header(Frames.STREAM_DATA, (byte) 0, streamId, chunk), fileChannel, position, chunk);
+				} else {
+					// Compressing needs the bytes on the heap, so this path reads instead of using transferTo
+					ByteBuffer body = readChunk(fileChannel, position, chunk);
+					ByteBuffer compressed = compression.compressBody(body);
+					if (compressed != null) {
+						session.writeChunk(Frames.header(Frames.STREAM_DATA, Frames.FLAG_COMPRESSED, streamId, compressed.remaining()), compressed, fileChannel);
 					} else {
-						handleClientDisconnection(heartBeatExecutor);
+						session.writeChunk(Frames.header(Frames.STREAM_DATA, (byte) 0, streamId, chunk), body, fileChannel);
 					}
-				} catch (Exception e) {
-					serverEventManager.triggerServerError("Error handling client heartbeat", e);
-					handleClientDisconnection(heartBeatExecutor);
 				}
-			}, 0, 5, TimeUnit.SECONDS);
-			
-			String inputLine;
-			while ((inputLine = reader.readLine()) != null) {
-				if ("HEARTBEAT".equals(inputLine)) {
-					serverEventManager.triggerHeartbeatReceived(inputLine);
+				position += chunk;
+			}
+			session.awaitChunks(fileChannel);
+		}
+		checkUnchanged(content, transfer.getFileToSend());
+	}
+	
+	private static void checkUnchanged(FileContent content, String fileToSend) throws IOException {
+		if (!FileContent.Version.of(content.getPath()).equals(content.getVersion())) {
+			throw new IOException(fileToSend + " changed while it was being sent");
+		}
+	}
+	
+	private static ByteBuffer readChunk(FileChannel fileChannel, long position, int chunk) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate(chunk);
+		while (body.hasRemaining()) {
+			if (fileChannel.read(body, position + body.position()) < 0) {
+				throw new EOFException("File was truncated while sending");
+			}
+		}
+		return body.flip();
+	}
+	
+	// Sends the file as ranges over the session and its data connections, with one sender per connection
+	// pulling ranges from a shared splitter. Any failure cancels the whole transfer.
+	private void sendRanges(ClientSession session, OutgoingTransfer transfer, FileContent content) throws IOException {
+		List<ClientSession> channels = new ArrayList<>();
+		channels.add(session);
+		for (ClientSession dataChannel : session.getDataChannels()) {
+			if (dataChannel.isOpen()) {
+				channels.add(dataChannel);
+			}
+		}
+		RangeSplitter splitter = new RangeSplitter(content.getLength(), channels.size());
+		List<Future<?>> senders = new ArrayList<>();
+		for (ClientSession channel : channels.subList(1, channels.size())) {
+			senders.add(getTransferExecutor().submit(() -> {
+				sendRanges(channel, session, transfer, content, splitter);
+				return null;
+			}));
+		}
+		IOException failure = null;
+		try {
+			sendRanges(session, session, transfer, content, splitter);
+		} catch (IOException e) {
+			failure = e;
+		}
+		for (Future<?> sender : senders) {
+			try {
+				sender.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for range senders");
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		if (!content.isInMemory()) {
+			checkUnchanged(content, transfer.getFileToSend());
+		}
+	}
+	
+	// One connection's share: RANGE_DATA chunks from the in-memory copy or read from disk, then RANGE_END
+	// with the range's CRC32C.
+	private void sendRanges(ClientSession channel, ClientSession session, OutgoingTransfer transfer, FileContent content, RangeSplitter splitter) throws IOException {
+		int streamId = transfer.getStreamId();
+		Object window = new Object();
+		long preferred = RangeSplitter.INITIAL_RANGE;
+		try (FileChannel fileChannel = content.isInMemory() ? null : FileChannel.open(content.getPath(), StandardOpenOption.READ)) {
+			RangeSplitter.Range range;
+			while ((range = splitter.next(preferred)) != null) {
+				if (!session.getTransfers().containsKey(streamId)) {
+					throw new IOException("Transfer cancelled by client");
+				}
+				long started = System.nanoTime();
+				CRC32C checksum = new CRC32C();
+				long end = range.offset() + range.length();
+				for (long position = range.offset(); position < end; position += Frames.CHUNK_SIZE) {
+					int chunk = (int) Math.min(Frames.CHUNK_SIZE, end - position);
+					ByteBuffer body = fileChannel == null ? content.chunk(position, chunk) : readChunk(fileChannel, position, chunk);
+					checksum.update(body.duplicate());
+					channel.writeChunk(Frames.rangeHeader(streamId, position, chunk), body, window);
 				}
+				channel.writeFrame(Frames.rangeEnd(streamId, range.offset(), range.length(), (int) checksum.getValue()));
+				preferred = RangeSplitter.nextSize(range.length(), System.nanoTime() - started);
 			}
-		} catch (SocketException e) {
-			serverEventManager.triggerServerError("Client disconnected unexpectedly", e);
-			isConnected = false;
+			channel.awaitChunks(window);
 		} catch (IOException e) {
-			serverEventManager.triggerServerError("Error with client connection", e);
+			splitter.cancel();
+			throw e;
+		}
+	}
+	
+	public void handleClient(SocketChannel channel) {
+		SocketClientSession session = null;
+		try {
+			session = new SocketClientSession(nextSessionId(), channel, this);
+			registerSession(session);
+			FrameDecoder decoder = new FrameDecoder();
+			SocketClientSession current = session;
+			while (decoder.readFrom(channel, (type, flags, streamId, payload) -> handleFrame(current, type, flags, streamId, payload)) != -1) {
+				// Frames are dispatched from inside readFrom
+			}
+		} catch (AsynchronousCloseException e) {
+			// The session was closed from another thread, e.g. by stopServer or a lost heartbeat
+		} catch (IOException e) {
+			if (session == null || sessions.containsKey(session.getId())) {
+				serverEventManager.triggerServerError("Client disconnected unexpectedly", e);
+			}
 		} finally {
-			try {
-				if (reader != null) {
-					reader.close();
+			if (session != null) {
+				closeSession(session, null);
+			} else {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					serverEventManager.triggerServerError("Error closing client socket", e);
 				}
-				disconnectClient();
-			} catch (IOException e) {
-				serverEventManager.triggerServerError("Error closing reader", e);
 			}
 		}
 	}
 	
-	public void addFileWatcher(FileWatcher fileWatcher) {
-		fileWatchers.add(fileWatcher);
+	void registerSession(ClientSession session) {
+		// Not sequenced: it belongs to this connection, not to the session's message stream. Sent before the
+		// session can receive broadcasts, so a resuming client asks for replay from what it saw last time.
+		String announcement = "SESSION " + session.getId() + " " + session.getToken();
+		sendFrame(session, Frames.message(announcement), announcement);
+		sessions.put(session.getId(), session);
+		serverMetrics.sessionsAccepted.increment();
+		isConnected = true;
+		serverEventManager.triggerClientConnect(session.getRemoteAddress());
+		scheduleHeartbeat(session);
+	}
+	
+	void handleInboundMessage(ClientSession session, String message) throws IOException {
+		if (message.equals("HEARTBEAT") || message.startsWith("HEARTBEAT ")) {
+			onHeartbeatEcho(session, message);
+			serverEventManager.triggerHeartbeatReceived(message);
+		} else if (message.startsWith("COMPRESS ")) {
+			negotiateCompression(session, message.substring("COMPRESS ".length()).split(" "));
+		} else if (message.startsWith("RESUME ")) {
+			String versionText = message.substring("RESUME ".length());
+			getTransferExecutor().execute(() -> resumeOffer(session, versionText));
+		} else if (message.startsWith("DATA ")) {
+			attachDataChannel(session, message.substring("DATA ".length()).split(" "));
+		} else if (RequestChannel.handles(message)) {
+			session.getRequests().onMessage(message, request -> dispatchRequest(session, request));
+		} else if (message.startsWith("REPLAY ")) {
+			replayMissed(session, message.substring("REPLAY ".length()).split(" "));
+		} else if (message.startsWith("SUBSCRIBE ")) {
+			subscribe(session, message.substring("SUBSCRIBE ".length()));
+		} else if (message.startsWith("UNSUBSCRIBE ")) {
+			subscriptions.unsubscribe(session, message.substring("UNSUBSCRIBE ".length()));
+		}
+	}
+	
+	// SUBSCRIBE <pattern>: the client wants publish() updates for topics matching the pattern.
+	// Subscribing twice is harmless; a session past its limit gets SUBSCRIBE_FAILED.
+	private void subscribe(ClientSession session, String pattern) throws IOException {
+		if (session.isDataChannel() || pattern.isBlank()) {
+			return;
+		}
+		if (!subscriptions.subscribe(session, pattern, MAX_SUBSCRIPTIONS_PER_SESSION)) {
+			serverEventManager.triggerServerError("Rejected subscription from " + session.getRemoteAddress(), new IOException("More than " + MAX_SUBSCRIPTIONS_PER_SESSION + " subscriptions"));
+			session.writeFrame(Frames.message("SUBSCRIBE_FAILED " + pattern));
+		}
+	}
+	
+	private boolean removeDetached(String sessionId, ClientSession session) {
+		membershipLock.writeLock().lock();
+		try {
+			return detachedSessions.remove(sessionId, session);
+		} finally {
+			membershipLock.writeLock().unlock();
+		}
+	}
+	
+	// REPLAY <previous session id> <token> <last sequence seen>: a client reconnected and wants what its
+	// previous session missed, plus the files broadcast meanwhile. Messages this connection already got are
+	// skipped. If that session has expired or its ring no longer reaches back far enough, the client is told
+	// to resync instead.
+	private void replayMissed(ClientSession session, String[] args) throws IOException {
+		if (session.isDataChannel()) {
+			return;
+		}
+		ClientSession previous = args.length == 3 ? detachedSessions.get(args[0]) : null;
+		if (previous == null || !previous.getToken().equals(args[1]) || !removeDetached(args[0], previous)) {
+			resync(session, "Previous session expired");
+			return;
+		}
+		subscriptions.unsubscribeAll(previous);
+		List<ReplayRing.Entry> missed;
+		try {
+			missed = previous.getReplay().after(Integer.parseInt(args[2]));
+		} catch (NumberFormatException e) {
+			missed = null;
+		}
+		if (missed == null) {
+			resync(session, "Missed too many messages");
+			return;
+		}
+		Set<Integer> delivered = session.getReplay() != null ? session.getReplay().sequences() : Set.of();
+		int replayed = 0;
+		for (ReplayRing.Entry entry : missed) {
+			if (!delivered.contains(entry.sequence())) {
+				session.recordReplay(entry.sequence(), entry.frame());
+				session.writeFrame(entry.frame().duplicate());
+				replayed++;
+			}
+		}
+		replayedMessages.addAndGet(replayed);
+		session.writeFrame(Frames.message("REPLAY_DONE " + replayed));
+		offerAgain(session, previous.getMissedFiles());
+	}
+	
+	// The client cannot be caught up message by message: it is told so, and offered the current version of
+	// every file broadcast recently, which delta sync turns into a transfer of just the changed blocks.
+	private void resync(ClientSession session, String reason) throws IOException {
+		resyncs.incrementAndGet();
+		session.writeFrame(Frames.message("REPLAY_FAILED " + reason));
+		List<String> files;
+		synchronized (broadcastFiles) {
+			files = new ArrayList<>(broadcastFiles.keySet());
+		}
+		offerAgain(session, files);
+	}
+	
+	// In order, on the transfer executor: each offer reads its file, which the reader or selector thread must not wait on.
+	private void offerAgain(ClientSession session, Collection<String> files) {
+		if (files.isEmpty()) {
+			return;
+		}
+		List<String> toOffer = List.copyOf(files);
+		getTransferExecutor().execute(() -> {
+			for (String fileToSend : toOffer) {
+				if (!new File(fileToSend).isFile()) {
+					continue;
+				}
+				try {
+					sendFileToClient(session, fileToSend);
+				} catch (IOException e) {
+					serverEventManager.triggerServerError("Error offering file to client", e);
+				}
+			}
+		});
+	}
+	
+	public ReplaySettings getReplaySettings() {
+		return replaySettings;
+	}
+	
+	public void setReplaySettings(ReplaySettings replaySettings) {
+		this.replaySettings = replaySettings;
+	}
+	
+	// Asks the client something, without waiting; see RequestChannel for how the future completes.
+	public CompletableFuture<String> request(ClientSession session, String request) {
+		return request(session, request, requestTimeout);
+	}
+	
+	public CompletableFuture<String> request(ClientSession session, String request, Duration timeout) {
+		return session.getRequests().request(request, timeout);
+	}
+	
+	// Answers client requests whose first word is method, replacing any earlier handler for it.
+	public void registerRequestHandler(String method, RequestHandler handler) {
+		requestHandlers.put(method, handler);
+	}
+	
+	public void unregisterRequestHandler(String method) {
+		requestHandlers.remove(method);
 	}
 	
-	private void disconnectClient() {
-		if (clientSocket != null && !clientSocket.isClosed()) {
+	private void dispatchRequest(ClientSession session, Request request) {
+		String method = request.command().name();
+		RequestHandler handler = requestHandlers.get(method);
+		if (handler == null) {
+			request.fail("Unknown request " + method);
+			return;
+		}
+		try {
+			handler.handle(session, request);
+		} catch (IOException | RuntimeException e) {
+			request.fail(e.getMessage() != null ? e.getMessage() : e.toString());
+			serverEventManager.triggerServerError("Error handling request " + method, e);
+		}
+	}
+	
+	// FILE <name>: a client asks for a file instead of waiting for one to be pushed. The reply names the stream
+	// and goes out before the offer, so the client knows which offer answers it. Served on the transfer
+	// executor, as the resolver and the offer may both touch the disk.
+	private void serveFile(ClientSession session, Request request) {
+		getTransferExecutor().execute(() -> {
+			String name = request.command().rest();
 			try {
-				clientSocket.close();
-				serverEventManager.triggerClientDisconnect(clientSocket.getInetAddress().getHostAddress());
-			} catch (IOException e) {
-				serverEventManager.triggerServerError("Error disconnecting client", e);
+				Function<String, String> resolver = fileRequestResolver;
+				String fileToSend = resolver != null && !name.isEmpty() ? resolver.apply(name) : null;
+				if (fileToSend == null || !new File(fileToSend).isFile()) {
+					request.fail("No such file: " + name);
+					return;
+				}
+				int streamId = nextStreamId();
+				request.reply(Integer.toString(streamId));
+				sendFileToClient(session, fileToSend, streamId);
+			} catch (IOException | RuntimeException e) {
+				// Only fails the request if the reply has not gone out yet
+				request.fail(e.getMessage() != null ? e.getMessage() : e.toString());
+				serverEventManager.triggerServerError("Error handling request FILE", e);
+			}
+		});
+	}
+	
+	// Maps a name a client asked for to a local file, or returns null to refuse. Without one, FILE requests
+	// are all refused, so clients can only fetch what this allows.
+	public void setFileRequestResolver(Function<String, String> fileRequestResolver) {
+		this.fileRequestResolver = fileRequestResolver;
+	}
+	
+	public long getDirectSendThreshold() {
+		return directSendThreshold;
+	}
+	
+	// A file at least this large that goes to one client skips the content cache and is sent from disk with
+	// transferTo. Sends to several clients still use the cache, so the file is read and framed once for all
+	// of them. Long.MAX_VALUE caches every file that fits.
+	public void setDirectSendThreshold(long directSendThreshold) {
+		this.directSendThreshold = directSendThreshold;
+	}
+	
+	public Duration getRequestTimeout() {
+		return requestTimeout;
+	}
+	
+	// For requests sent without a timeout of their own.
+	public void setRequestTimeout(Duration requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+	
+	// DATA <session id> <token>: this connection is an extra data connection of that session, used for
+	// parallel transfers. The token was sent only to the session's own client.
+	private void attachDataChannel(ClientSession session, String[] args) {
+		ClientSession primary = args.length == 2 ? sessions.get(args[0]) : null;
+		if (primary == null || primary == session || primary.isDataChannel() || !primary.getToken().equals(args[1])) {
+			serverEventManager.triggerServerError("Rejected data connection from " + session.getRemoteAddress(), new IOException("Unknown session or token"));
+			closeSession(session, null);
+			return;
+		}
+		session.attachTo(primary);
+		if (!primary.isOpen()) {
+			closeSession(session, null);
+		}
+	}
+	
+	// The client lists the codec ids it supports in order of preference; the first one we also have wins.
+	// The reply goes out uncompressed, and only frames written after it may be compressed.
+	private void negotiateCompression(ClientSession session, String[] offered) throws IOException {
+		for (String id : offered) {
+			for (Compression compression : compressions) {
+				if (compression.id().equals(id)) {
+					session.writeFrame(Frames.message("COMPRESS " + id));
+					session.setCompression(compression);
+					return;
+				}
 			}
 		}
+		session.writeFrame(Frames.message("COMPRESS none"));
+	}
+	
+	// Codecs clients may negotiate, in addition to none. Each one's stats cover every session using it.
+	public void addCompression(Compression compression) {
+		compressions.add(compression);
+		compression.registerMetrics(metrics);
+	}
+	
+	public List<Compression> getCompressions() {
+		return compressions;
+	}
+	
+	void closeSession(ClientSession session, Exception cause) {
+		session.close();
+		session.detach();
+		for (ClientSession dataChannel : session.getDataChannels()) {
+			closeSession(dataChannel, null);
+		}
+		session.cancelHeartbeat();
+		session.getRequests().failAll("Client disconnected");
+		session.getMetrics().close();
+		// Kept, subscriptions and all, so a reconnecting client can resume it; not when the server is stopping
+		boolean resumable = session.getReplay() != null && !session.isDataChannel() && serverChannel != null && serverChannel.isOpen();
+		if (!resumable) {
+			subscriptions.unsubscribeAll(session);
+		}
+		boolean removed;
+		membershipLock.writeLock().lock();
+		try {
+			removed = sessions.remove(session.getId(), session);
+			if (removed && resumable) {
+				detachedSessions.put(session.getId(), session);
+			}
+		} finally {
+			membershipLock.writeLock().unlock();
+		}
+		if (removed) {
+			if (resumable) {
+				timingWheel.schedule(() -> expireDetached(session), replaySettings.retention().toMillis(), TimeUnit.MILLISECONDS, serverEventManager::triggerServerError);
+			}
+			isConnected = !sessions.isEmpty();
+			if (cause != null) {
+				serverEventManager.triggerServerError("Client disconnected unexpectedly", cause);
+			}
+			serverEventManager.triggerClientDisconnect(session.getRemoteAddress());
+		}
+	}
+	
+	private void expireDetached(ClientSession session) {
+		if (detachedSessions.remove(session.getId(), session)) {
+			subscriptions.unsubscribeAll(session);
+		}
+	}
+	
+	// Watchers added while the server is running start watching straight away.
+	public synchronized void addFileWatcher(FileWatcher fileWatcher) {
+		fileWatchers.add(fileWatcher);
+		fileWatcher.registerMetrics(metrics);
+		fileWatcher.setInvalidator(contentCache::invalidate);
+		if (fileWatchersStarted) {
+			fileWatcher.startWatching(watchRegistry);
+		}
+	}
+	
+	private synchronized void startFileWatchers() {
+		if (fileWatchersStarted) {
+			return;
+		}
+		fileWatchersStarted = true;
+		for (FileWatcher fileWatcher : fileWatchers) {
+			fileWatcher.startWatching(watchRegistry);
+		}
+	}
+	
+	private synchronized void stopFileWatchers() {
+		fileWatchersStarted = false;
+		for (FileWatcher fileWatcher : fileWatchers) {
+			fileWatcher.stopWatching();
+		}
+	}
+	
+	private int nextStreamId() {
+		return streamCounter.incrementAndGet();
+	}
+	
+	private String nextSessionId() {
+		return String.valueOf(sessionCounter.incrementAndGet());
+	}
+	
+	synchronized ExecutorService getWriterExecutor() {
+		if (writerExecutor == null) {
+			writerExecutor = executionMode.newExecutor("server-writer");
+		}
+		return writerExecutor;
+	}
+	
+	public OutboundLimits getOutboundLimits() {
+		return outboundLimits;
+	}
+	
+	// Applies to sessions accepted afterwards.
+	public void setOutboundLimits(OutboundLimits outboundLimits) {
+		this.outboundLimits = outboundLimits;
+	}
+	
+	private synchronized ExecutorService getTransferExecutor() {
+		if (transferExecutor == null) {
+			transferExecutor = executionMode.newExecutor("server-transfer");
+		}
+		return transferExecutor;
 	}
 	
 	public void startServerAsync(int port) {
-		new Thread(() -> {
+		executionMode.start("server-accept", () -> {
 			try {
 				startServer(port);
 			} catch (Exception e) {
 				serverEventManager.triggerServerError("Error starting asynchronously", e);
 			}
-		}).start();
+		});
 	}
 	
+	// Thread-per-connection mode: accepts until the server is stopped, one reader thread per client.
 	public void startServer(int port) {
 		try {
 			serverEventManager.triggerServerInit(port);
-			serverSocket = new ServerSocket(port);
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
 			serverEventManager.triggerServerStart(port);
+			startFileWatchers();
+			connectionExecutor = executionMode.newExecutor("server-connection");
 			
-			clientSocket = serverSocket.accept();
-			serverEventManager.triggerClientConnect(clientSocket.getInetAddress().getHostAddress());
-			handleClient();
+			while (serverChannel.isOpen()) {
+				SocketChannel channel = serverChannel.accept();
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				connectionExecutor.execute(() -> handleClient(channel));
+			}
 		} catch (IOException e) {
-			serverEventManager.triggerServerError("Error starting server", e);
+			if (serverChannel == null || serverChannel.isOpen()) {
+				serverEventManager.triggerServerError("Error starting server", e);
+			}
 		} finally {
 			stopServer();
 		}
 	}
 	
+	// Non-blocking mode: a handful of selector threads serve every connection. Returns once the loops are running.
+	public void startSelectorServer(int port, int eventLoopThreads) {
+		try {
+			serverEventManager.triggerServerInit(port);
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			
+			eventLoops = new SelectorEventLoop[Math.max(1, eventLoopThreads)];
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new SelectorEventLoop(this, "server-event-loop-" + i);
+				eventLoops[i].start();
+			}
+			SelectorEventLoop acceptLoop = eventLoops[0];
+			acceptLoop.execute(() -> {
+				try {
+					acceptLoop.registerAcceptor(serverChannel);
+				} catch (IOException e) {
+					serverEventManager.triggerServerError("Error registering acceptor", e);
+				}
+			});
+			
+			serverEventManager.triggerServerStart(port);
+			startFileWatchers();
+		} catch (IOException e) {
+			serverEventManager.triggerServerError("Error starting server", e);
+			stopServer();
+		}
+	}
+	
+	void acceptPending(ServerSocketChannel channel) {
+		try {
+			SocketChannel socketChannel;
+			while ((socketChannel = channel.accept()) != null) {
+				socketChannel.configureBlocking(false);
+				socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				SelectorEventLoop loop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+				SelectorClientSession session = new SelectorClientSession(nextSessionId(), socketChannel, loop, this);
+				loop.execute(() -> loop.register(session));
+			}
+		} catch (IOException e) {
+			serverEventManager.triggerServerError("Error accepting client", e);
+		}
+	}
+	
+	public HeartbeatSettings getHeartbeatSettings() {
+		return heartbeatSettings;
+	}
+	
+	// Applies from each session's next heartbeat.
+	public void setHeartbeatSettings(HeartbeatSettings heartbeatSettings) {
+		this.heartbeatSettings = heartbeatSettings;
+	}
+	
+	// Each session runs its own timer from the moment it connected, so heartbeats for many clients are
+	// spread over the interval instead of all going out on the same tick.
+	private void scheduleHeartbeat(ClientSession session) {
+		session.setHeartbeatTimer(timingWheel.schedule(() -> sendHeartbeat(session), heartbeatSettings.interval().toNanos(), TimeUnit.NANOSECONDS, serverEventManager::triggerServerError));
+	}
+	
+	// Runs on the timing wheel thread, so it only queues. A beat that does not fit in a full outbound
+	// queue is skipped and simply counts as unanswered.
+	private void sendHeartbeat(ClientSession session) {
+		if (sessions.get(session.getId()) != session) {
+			return;
+		}
+		HeartbeatSettings settings = heartbeatSettings;
+		if (!session.isOpen() || session.unansweredHeartbeats() >= settings.maxMissed()) {
+			// Closing the sockets can block, which would hold up every other timer
+			getTransferExecutor().execute(() -> handleClientDisconnection(session));
+			return;
+		}
+		// The client echoes the whole message; sequence and send time come back to us unchanged
+		long sequence = session.nextHeartbeat();
+		session.offerFrame(Frames.message("HEARTBEAT " + sequence + " " + System.nanoTime() + " " + settings.interval().toMillis()));
+		scheduleHeartbeat(session);
+	}
+	
+	// Echoes from older clients carry no arguments and just count as answering everything sent so far.
+	private void onHeartbeatEcho(ClientSession session, String message) {
+		String[] parts = message.split(" ");
+		try {
+			if (parts.length >= 3) {
+				session.onHeartbeatAnswered(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+				return;
+			}
+		} catch (NumberFormatException e) {
+			serverEventManager.triggerServerError("Malformed heartbeat from " + session.getRemoteAddress(), e);
+		}
+		session.onHeartbeatAnswered(0, 0);
+	}
+	
 	public void startBroadcasting(int port) {
 		broadcastExecutorService = Executors.newSingleThreadScheduledExecutor();
 		broadcastExecutorService.scheduleAtFixedRate(() -> {
-			if (!isConnected) {
-				try (DatagramSocket socket = new DatagramSocket()) {
-					socket.setBroadcast(true);
-					String message = "SERVER_DISCOVERY:" + port;
-					byte[] buffer = message.getBytes();
-					DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName("255.255.255.255"), port);
-					socket.send(packet);
-					serverEventManager.triggerBroadcast(port);
-				} catch (IOException e) {
-					serverEventManager.triggerServerError("Error broadcasting server availability", e);
-				}
+			try (DatagramSocket socket = new DatagramSocket()) {
+				socket.setBroadcast(true);
+				String message = "SERVER_DISCOVERY:" + port;
+				byte[] buffer = message.getBytes();
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName("255.255.255.255"), port);
+				socket.send(packet);
+				serverEventManager.triggerBroadcast(port);
+			} catch (IOException e) {
+				serverEventManager.triggerServerError("Error broadcasting server availability", e);
 			}
 		}, 0, 5, TimeUnit.SECONDS);
 	}
 	
+	// Answers discovery queries on the port as soon as they arrive, whether multicast to Discovery.GROUP,
+	// broadcast or sent straight here, so clients need not wait for a periodic broadcast. Queries that come
+	// before the server is listening go unanswered.
+	public synchronized void startDiscoveryResponder(int discoveryPort) {
+		if (discoverySocket != null) {
+			return;
+		}
+		MulticastSocket socket;
+		try {
+			socket = new MulticastSocket(discoveryPort);
+		} catch (IOException e) {
+			serverEventManager.triggerServerError("Error starting discovery responder", e);
+			return;
+		}
+		try {
+			socket.joinGroup(new InetSocketAddress(Discovery.group(), 0), null);
+		} catch (IOException e) {
+			// Broadcast and direct queries still work without the group
+			serverEventManager.triggerServerError("Error joining discovery group " + Discovery.GROUP, e);
+		}
+		discoverySocket = socket;
+		executionMode.start("server-discovery", () -> answerDiscoveryQueries(socket));
+	}
+	
+	private void answerDiscoveryQueries(MulticastSocket socket) {
+		byte[] buffer = new byte[Discovery.MAX_DATAGRAM];
+		while (!socket.isClosed()) {
+			try {
+				DatagramPacket query = new DatagramPacket(buffer, buffer.length);
+				socket.receive(query);
+				long nonce = Discovery.parseQuery(query);
+				ServerSocketChannel listening = serverChannel;
+				if (nonce < 0 || listening == null || !listening.isOpen()) {
+					continue;
+				}
+				int port = ((InetSocketAddress) listening.getLocalAddress()).getPort();
+				byte[] answer = Discovery.answer(nonce, port, getClientCount(), getCapabilities());
+				socket.send(new DatagramPacket(answer, Math.min(answer.length, Discovery.MAX_DATAGRAM), query.getSocketAddress()));
+				discoveryQueries.incrementAndGet();
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					serverEventManager.triggerServerError("Error answering discovery query", e);
+				}
+			}
+		}
+	}
+	
+	public synchronized void stopDiscoveryResponder() {
+		if (discoverySocket != null) {
+			discoverySocket.close();
+			discoverySocket = null;
+		}
+	}
+	
+	// Connected clients, not counting their extra data connections; what discovery reports as load.
+	public int getClientCount() {
+		int count = 0;
+		for (ClientSession session : sessions.values()) {
+			if (!session.isDataChannel()) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	// Advertised to clients through discovery, next to the built-in ones: "compress:<codec>" for each codec
+	// and "files" when file requests are enabled. Capabilities cannot contain spaces or commas.
+	public void addCapability(String capability) {
+		if (capability.isEmpty() || capability.contains(",") || capability.chars().anyMatch(Character::isWhitespace)) {
+			throw new IllegalArgumentException("Invalid capability: " + capability);
+		}
+		capabilities.add(capability);
+	}
+	
+	public List<String> getCapabilities() {
+		List<String> all = new ArrayList<>();
+		for (Compression compression : compressions) {
+			all.add("compress:" + compression.id());
+		}
+		if (fileRequestResolver != null) {
+			all.add("files");
+		}
+		all.addAll(capabilities);
+		return all;
+	}
+	
 	public void stopBroadcasting() {
 		if (broadcastExecutorService != null && !broadcastExecutorService.isShutdown()) {
 			broadcastExecutorService.shutdown();
@@ -177,10 +1139,102 @@ public class Server {
 		}
 	}
 	
+	// Broadcasts to every connected client. The frame is encoded once and each session writes its own view of it.
 	public void sendMessage(String message) {
+		sendMessage(this::broadcastTargets, message);
+	}
+	
+	// Connected sessions plus detached ones, which only record what they would have been sent for a later replay.
+	private Collection<ClientSession> broadcastTargets() {
+		if (detachedSessions.isEmpty()) {
+			return sessions.values();
+		}
+		List<ClientSession> targets = new ArrayList<>(sessions.values());
+		targets.addAll(detachedSessions.values());
+		return targets;
+	}
+	
+	// Sends the message only to clients subscribed to the topic, encoded and compressed once like a broadcast.
+	// Returns how many clients it went to.
+	public int publish(String topic, String message) {
+		Set<ClientSession> subscribers = subscriptions.match(topic);
+		if (!subscribers.isEmpty()) {
+			sendMessage(() -> subscribers, message);
+		}
+		return subscribers.size();
+	}
+	
+	// Includes detached sessions, which keep their subscriptions until they are resumed or expire.
+	public Set<ClientSession> getSubscribers(String topic) {
+		return subscriptions.match(topic);
+	}
+	
+	// Targets are looked up under the membership lock and every one records the message before any is sent.
+	private void sendMessage(Supplier<Collection<ClientSession>> targets, String message) {
+		ByteBuffer frame;
+		List<ClientSession> recipients = new ArrayList<>();
+		membershipLock.readLock().lock();
 		try {
-			if (!clientSocket.isClosed()) {
-				writer.println(message);
+			int sequence = nextMessageSequence();
+			frame = Frames.message(sequence, message).asReadOnlyBuffer();
+			for (ClientSession session : targets.get()) {
+				if (session.isDataChannel()) {
+					continue;
+				}
+				session.recordReplay(sequence, frame);
+				if (session.isOpen()) {
+					recipients.add(session);
+				}
+			}
+		} finally {
+			membershipLock.readLock().unlock();
+		}
+		// Compressed once per codec in use, not once per session
+		Map<Compression, ByteBuffer> compressed = new HashMap<>();
+		for (ClientSession session : recipients) {
+			Compression compression = session.getCompression();
+			ByteBuffer encoded = compression == null ? frame : compressed.computeIfAbsent(compression, c -> c.compressFrame(frame.duplicate()).asReadOnlyBuffer());
+			sendFrame(session, encoded.duplicate(), message);
+		}
+	}
+	
+	// Never blocks the caller; see ClientSession.sendAsync for how the future completes.
+	public CompletableFuture<Void> sendMessageAsync(ClientSession session, String message) {
+		CompletableFuture<Void> sent = session.sendAsync(message);
+		sent.whenComplete((ignored, e) -> {
+			if (e == null) {
+				serverEventManager.triggerClientMessage(message);
+			} else {
+				serverEventManager.triggerServerError("Error sending message", e instanceof Exception exception ? exception : new IOException(e));
+			}
+		});
+		return sent;
+	}
+	
+	public void sendMessage(ClientSession session, String message) {
+		Compression compression = session.getCompression();
+		ByteBuffer frame = sequencedMessage(session, message);
+		sendFrame(session, compression != null ? compression.compressFrame(frame) : frame, message);
+	}
+	
+	// A message frame carrying the next sequence number in its stream id, recorded for the session's replay.
+	ByteBuffer sequencedMessage(ClientSession session, String message) {
+		int sequence = nextMessageSequence();
+		ByteBuffer frame = Frames.message(sequence, message);
+		session.recordReplay(sequence, frame.asReadOnlyBuffer());
+		return frame;
+	}
+	
+	// Never 0, which marks a message as not sequenced.
+	private int nextMessageSequence() {
+		int sequence = messageSequence.incrementAndGet();
+		return sequence != 0 ? sequence : messageSequence.incrementAndGet();
+	}
+	
+	private void sendFrame(ClientSession session, ByteBuffer frame, String message) {
+		try {
+			if (session.isOpen()) {
+				session.writeEncoded(frame);
 				serverEventManager.triggerClientMessage(message);
 			}
 		} catch (Exception e) {
@@ -188,26 +1242,48 @@ public class Server {
 		}
 	}
 	
-	public void stopServer() {
+	public synchronized void stopServer() {
+		if (serverChannel == null || !serverChannel.isOpen()) {
+			return;
+		}
+		
 		try {
-			if (serverSocket != null && !serverSocket.isClosed()) {
-				if (writer != null) {
-					writer.println("SHUTDOWN");
-				}
-				serverSocket.close();
-				disconnectClient();
-				stopBroadcasting();
-				serverEventManager.triggerServerStop("Shutdown");
-			}
+			sendMessage("SHUTDOWN");
+			serverChannel.close();
 		} catch (IOException e) {
 			serverEventManager.triggerServerError("Error shutting down server", e);
 		}
+		
+		for (ClientSession session : sessions.values()) {
+			closeSession(session, null);
+		}
+		for (ClientSession session : detachedSessions.values()) {
+			expireDetached(session);
+		}
+		if (eventLoops != null) {
+			for (SelectorEventLoop eventLoop : eventLoops) {
+				eventLoop.shutdown();
+			}
+		}
+		if (connectionExecutor != null) {
+			connectionExecutor.shutdown();
+		}
+		if (transferExecutor != null) {
+			transferExecutor.shutdown();
+		}
+		if (writerExecutor != null) {
+			writerExecutor.shutdown();
+		}
+		stopBroadcasting();
+		stopDiscoveryResponder();
+		stopFileWatchers();
+		serverEventManager.triggerServerStop("Shutdown");
+		serverEventManager.close();
 	}
 	
-	private void handleClientDisconnection(ScheduledExecutorService executor) {
-		isConnected = false;
-		executor.shutdown();
-		serverEventManager.triggerHeartbeatLost("Client Heartbeat Lost");
+	private void handleClientDisconnection(ClientSession session) {
+		closeSession(session, null);
+		serverEventManager.triggerHeartbeatLost("Client Heartbeat Lost: " + session.getRemoteAddress());
 	}
 	
 }
@@ -1,152 +1,274 @@
 package net.guess.ServerUtil;
 
+import net.guess.SharedUtil.DeltaSync;
+import net.guess.SharedUtil.EventBus;
+
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
+/**
+ * Server events. Triggers only publish to an {@link EventBus}, so listeners run on its dispatcher thread
+ * rather than on the connection or selector thread that raised the event. setOnX replaces every listener
+ * of an event (null removes them); addOnX adds another one.
+ */
 public class ServerEventManager {
-	private Consumer<Integer> onServerInit = port -> {
-		System.out.println("ServerUtil initialized on port: " + port);
-	};
-	private Consumer<String> onBroadcastStopped = message -> {
-		System.out.println("Broadcasting stopped");
-	};
-	private Consumer<String> onClientConnectHandler = clientID -> {
-		System.out.println("Client connected: " + clientID);
-	};
-	private Consumer<String> onClientDisconnectHandler = clientID -> {
-		System.out.println("Client disconnected: " + clientID);
-	};
-	private BiConsumer<String, Exception> onServerErrorHandler = (message, exception) -> {
-		System.out.println(message + ": " + exception.getMessage());
-	};
-	private Consumer<Integer> onServerStartHandler = port -> {
-		System.out.println("ServerUtil started on port: " + port);
-	};
-	private Consumer<String> onServerStopHandler = message -> {
-		System.out.println("ServerUtil stopped: " + message);
-	};
-	private Consumer<Integer> onBroadcastHandler = port -> {
-		System.out.println("Broadcasting on port: " + port);
-	};
-	private Consumer<String> onClientMessageHandler = message -> {
-		System.out.println("Sent: " + message);
-	};
-	private Consumer<String> onHeartbeatReceivedHandler = message -> {
-		System.out.println("Heartbeat Received");
-	};
-	private Consumer<String> onHeartbeatLostHandler = message -> {
-		System.out.println("Heartbeat lost: " + message);
-	};
-	private BiConsumer<String, Integer> onFileSendingHandler = (file, length) -> {
-		System.out.println("Sending file: " + file + " of length: " + length+" bytes");
-	};
-	private BiConsumer<String, Integer> onFileSentHandler = (file, length) -> {
-		System.out.println("File sent: " + file + " of length: " + length+" bytes");
-	};
+	private static final int EVENT_CAPACITY = 8192;
+	private static final int EVENT_BATCH = 256;
+	
+	private enum Event {
+		SERVER_INIT,
+		BROADCAST_STOPPED,
+		CLIENT_CONNECT,
+		CLIENT_DISCONNECT,
+		SERVER_ERROR,
+		SERVER_START,
+		SERVER_STOP,
+		BROADCAST,
+		CLIENT_MESSAGE,
+		HEARTBEAT_RECEIVED,
+		HEARTBEAT_LOST,
+		FILE_SENDING,
+		FILE_SENT,
+		FILE_DELTA_SENT
+	}
+	
+	private final EventBus bus = new EventBus("server", Event.values().length, EVENT_CAPACITY, EVENT_BATCH, Event.SERVER_ERROR.ordinal(), this::reportError);
+	// Counted when triggered, so it stays exact even if listeners are replaced or events are dropped
+	private final LongAdder errorCount = new LongAdder();
+	
+	// Per-message events (client message, heartbeat received) have no default so they cost nothing unless subscribed
+	public ServerEventManager() {
+		listen(Event.SERVER_INIT, EventBus.listener(port -> {
+			System.out.println("ServerUtil initialized on port: " + port);
+		}));
+		listen(Event.BROADCAST_STOPPED, EventBus.listener(message -> {
+			System.out.println("Broadcasting stopped");
+		}));
+		listen(Event.CLIENT_CONNECT, EventBus.listener(clientID -> {
+			System.out.println("Client connected: " + clientID);
+		}));
+		listen(Event.CLIENT_DISCONNECT, EventBus.listener(clientID -> {
+			System.out.println("Client disconnected: " + clientID);
+		}));
+		listen(Event.SERVER_ERROR, EventBus.listener((String message, Exception exception) -> {
+			System.out.println(message + ": " + exception.getMessage());
+		}));
+		listen(Event.SERVER_START, EventBus.listener(port -> {
+			System.out.println("ServerUtil started on port: " + port);
+		}));
+		listen(Event.SERVER_STOP, EventBus.listener(message -> {
+			System.out.println("ServerUtil stopped: " + message);
+		}));
+		listen(Event.BROADCAST, EventBus.listener(port -> {
+			System.out.println("Broadcasting on port: " + port);
+		}));
+		listen(Event.HEARTBEAT_LOST, EventBus.listener(message -> {
+			System.out.println("Heartbeat lost: " + message);
+		}));
+		listen(Event.FILE_SENDING, EventBus.listener((file, length) -> {
+			System.out.println("Sending file: " + file + " of length: " + length + " bytes");
+		}));
+		listen(Event.FILE_SENT, EventBus.listener((file, length) -> {
+			System.out.println("File sent: " + file + " of length: " + length + " bytes");
+		}));
+		listen(Event.FILE_DELTA_SENT, EventBus.listener((String file, DeltaSync.Stats stats) -> {
+			System.out.println("Delta sent: " + file + " (" + stats.literalBytes() + " literal, " + stats.copiedBytes() + " reused of " + stats.fileLength() + " bytes)");
+		}));
+	}
+	
+	// Events dropped because listeners fell too far behind
+	public long getDroppedEventCount() {
+		return bus.getDroppedCount();
+	}
+	
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+	
+	// Stops the listener thread once it has delivered pending events; the next event starts it again.
+	public void close() {
+		bus.close();
+	}
+	
+	// Used by the constructor and the bus, which must not call methods a subclass could override
+	private void listen(Event event, BiConsumer<Object, Object> listener) {
+		bus.set(event.ordinal(), listener);
+	}
+	
+	private void reportError(String message, Exception e) {
+		errorCount.increment();
+		bus.publish(Event.SERVER_ERROR.ordinal(), message, e);
+	}
 	
 	// Setters
 	public void setOnBroadcastStopped(Consumer<String> handler) {
-		this.onBroadcastStopped = handler;
+		bus.set(Event.BROADCAST_STOPPED.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnServerInit(Consumer<Integer> handler) {
-		this.onServerInit = handler;
+		bus.set(Event.SERVER_INIT.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientConnect(Consumer<String> handler) {
-		this.onClientConnectHandler = handler;
+		bus.set(Event.CLIENT_CONNECT.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientDisconnect(Consumer<String> handler) {
-		this.onClientDisconnectHandler = handler;
+		bus.set(Event.CLIENT_DISCONNECT.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnServerError(BiConsumer<String, Exception> handler) {
-		this.onServerErrorHandler = handler;
+		bus.set(Event.SERVER_ERROR.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnServerStart(Consumer<Integer> handler) {
-		this.onServerStartHandler = handler;
+		bus.set(Event.SERVER_START.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnServerStop(Consumer<String> handler) {
-		this.onServerStopHandler = handler;
+		bus.set(Event.SERVER_STOP.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnBroadcast(Consumer<Integer> handler) {
-		this.onBroadcastHandler = handler;
+		bus.set(Event.BROADCAST.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnClientMessage(Consumer<String> handler) {
-		this.onClientMessageHandler = handler;
+		bus.set(Event.CLIENT_MESSAGE.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnHeartbeatReceived(Consumer<String> handler) {
-		this.onHeartbeatReceivedHandler = handler;
+		bus.set(Event.HEARTBEAT_RECEIVED.ordinal(), handler == null ? null : EventBus.listener(handler));
 	}
 	
 	public void setOnHeartbeatLost(Consumer<String> handler) {
-		this.onHeartbeatLostHandler = handler;
+		bus.set(Event.HEARTBEAT_LOST.ordinal(), handler == null ? null : EventBus.listener(handler));
+	}
+	
+	public void setOnFileSending(BiConsumer<String, Long> handler) {
+		bus.set(Event.FILE_SENDING.ordinal(), handler == null ? null : EventBus.listener(handler));
+	}
+	
+	public void setOnFileSent(BiConsumer<String, Long> handler) {
+		bus.set(Event.FILE_SENT.ordinal(), handler == null ? null : EventBus.listener(handler));
+	}
+	
+	public void setOnFileDeltaSent(BiConsumer<String, DeltaSync.Stats> handler) {
+		bus.set(Event.FILE_DELTA_SENT.ordinal(), handler == null ? null : EventBus.listener(handler));
+	}
+	
+	// Additional listeners
+	public void addOnBroadcastStopped(Consumer<String> handler) {
+		bus.add(Event.BROADCAST_STOPPED.ordinal(), EventBus.listener(handler));
 	}
 	
-	public void setOnFileSending(BiConsumer<String, Integer> handler) {
-		this.onFileSendingHandler = handler;
+	public void addOnServerInit(Consumer<Integer> handler) {
+		bus.add(Event.SERVER_INIT.ordinal(), EventBus.listener(handler));
 	}
 	
-	public void setOnFileSent(BiConsumer<String, Integer> handler) {
-		this.onFileSentHandler = handler;
+	public void addOnClientConnect(Consumer<String> handler) {
+		bus.add(Event.CLIENT_CONNECT.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnClientDisconnect(Consumer<String> handler) {
+		bus.add(Event.CLIENT_DISCONNECT.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnServerError(BiConsumer<String, Exception> handler) {
+		bus.add(Event.SERVER_ERROR.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnServerStart(Consumer<Integer> handler) {
+		bus.add(Event.SERVER_START.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnServerStop(Consumer<String> handler) {
+		bus.add(Event.SERVER_STOP.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnBroadcast(Consumer<Integer> handler) {
+		bus.add(Event.BROADCAST.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnClientMessage(Consumer<String> handler) {
+		bus.add(Event.CLIENT_MESSAGE.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnHeartbeatReceived(Consumer<String> handler) {
+		bus.add(Event.HEARTBEAT_RECEIVED.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnHeartbeatLost(Consumer<String> handler) {
+		bus.add(Event.HEARTBEAT_LOST.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnFileSending(BiConsumer<String, Long> handler) {
+		bus.add(Event.FILE_SENDING.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnFileSent(BiConsumer<String, Long> handler) {
+		bus.add(Event.FILE_SENT.ordinal(), EventBus.listener(handler));
+	}
+	
+	public void addOnFileDeltaSent(BiConsumer<String, DeltaSync.Stats> handler) {
+		bus.add(Event.FILE_DELTA_SENT.ordinal(), EventBus.listener(handler));
 	}
 	
 	// Triggers
 	public void triggerBroadcastStopped(String message) {
-		onBroadcastStopped.accept(message);
+		bus.publish(Event.BROADCAST_STOPPED.ordinal(), message, null);
 	}
 	
 	public void triggerServerInit(Integer port) {
-		onServerInit.accept(port);
+		bus.publish(Event.SERVER_INIT.ordinal(), port, null);
 	}
 	
 	public void triggerClientConnect(String clientID) {
-		onClientConnectHandler.accept(clientID);
+		bus.publish(Event.CLIENT_CONNECT.ordinal(), clientID, null);
 	}
 	
 	public void triggerClientDisconnect(String clientID) {
-		onClientDisconnectHandler.accept(clientID);
+		bus.publish(Event.CLIENT_DISCONNECT.ordinal(), clientID, null);
 	}
 	
 	public void triggerServerError(String message, Exception e) {
-		onServerErrorHandler.accept(message, e);
+		reportError(message, e);
 	}
 	
 	public void triggerServerStart(Integer port) {
-		onServerStartHandler.accept(port);
+		bus.publish(Event.SERVER_START.ordinal(), port, null);
 	}
 	
 	public void triggerServerStop(String message) {
-		onServerStopHandler.accept(message);
+		bus.publish(Event.SERVER_STOP.ordinal(), message, null);
 	}
 	
 	public void triggerBroadcast(Integer port) {
-		onBroadcastHandler.accept(port);
+		bus.publish(Event.BROADCAST.ordinal(), port, null);
 	}
 	
 	public void triggerClientMessage(String message) {
-		onClientMessageHandler.accept(message);
+		bus.publish(Event.CLIENT_MESSAGE.ordinal(), message, null);
 	}
 	
 	public void triggerHeartbeatReceived(String message) {
-		onHeartbeatReceivedHandler.accept(message);
+		bus.publish(Event.HEARTBEAT_RECEIVED.ordinal(), message, null);
 	}
 	
 	public void triggerHeartbeatLost(String message) {
-		onHeartbeatLostHandler.accept(message);
+		bus.publish(Event.HEARTBEAT_LOST.ordinal(), message, null);
+	}
+	
+	public void triggerFileSending(String file, Long length) {
+		bus.publish(Event.FILE_SENDING.ordinal(), file, length);
 	}
 	
-	public void triggerFileSending(String file, Integer length) {
-		onFileSendingHandler.accept(file, length);
+	public void triggerFileSent(String file, Long length) {
+		bus.publish(Event.FILE_SENT.ordinal(), file, length);
 	}
 	
-	public void triggerFileSent(String file, Integer length) {
-		onFileSentHandler.accept(file, length);
+	public void triggerFileDeltaSent(String file, DeltaSync.Stats stats) {
+		bus.publish(Event.FILE_DELTA_SENT.ordinal(), file, stats);
 	}
 }
@@ -0,0 +1,135 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.Counter;
+import net.guess.SharedUtil.Histogram;
+import net.guess.SharedUtil.Metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The server's instruments. Server-wide totals are unlabeled; each session additionally gets its own
+ * series labeled with its id under a "session_" name, removed again when the session closes.
+ */
+final class ServerMetrics {
+	final Metrics registry;
+	final Counter sessionsAccepted;
+	final Counter messagesSent;
+	final Counter messagesReceived;
+	final Counter bytesSent;
+	final Counter bytesReceived;
+	final Counter messagesDropped;
+	final Counter messagesRejected;
+	final Counter slowConsumerDisconnects;
+	final Counter transfersCompleted;
+	final Counter transfersFailed;
+	final Counter transferBytes;
+	final Histogram transferDuration;
+	final Histogram outboundLatency;
+	final Histogram heartbeatRoundTrip;
+	
+	ServerMetrics(Metrics registry) {
+		this.registry = registry;
+		sessionsAccepted = registry.counter("sessions_accepted_total", "Connections accepted");
+		messagesSent = registry.counter("messages_sent_total", "Message frames written to clients");
+		messagesReceived = registry.counter("messages_received_total", "Message frames read from clients");
+		bytesSent = registry.counter("bytes_sent_total", "Bytes written to client sockets");
+		bytesReceived = registry.counter("bytes_received_total", "Frame bytes read from client sockets, before decompression");
+		messagesDropped = registry.counter("messages_dropped_total", "Queued messages dropped for slow clients");
+		messagesRejected = registry.counter("messages_rejected_total", "Asynchronous sends refused because the outbound queue was full");
+		slowConsumerDisconnects = registry.counter("slow_consumer_disconnects_total", "Clients disconnected for not keeping up");
+		transfersCompleted = registry.counter("file_transfers_total", "File transfers sent to completion");
+		transfersFailed = registry.counter("file_transfer_failures_total", "File transfers that failed or were cancelled");
+		transferBytes = registry.counter("file_transfer_bytes_total", "Length of files sent to completion");
+		transferDuration = registry.histogram("file_transfer_seconds", "Time from a client accepting a file until the last chunk was queued");
+		outboundLatency = registry.histogram("outbound_queue_seconds", "Time frames spent in outbound queues before being written");
+		heartbeatRoundTrip = registry.histogram("heartbeat_rtt_seconds", "Time from queueing a heartbeat until the client's echo was read");
+	}
+	
+	Session session(String id) {
+		return new Session(id);
+	}
+	
+	// Updated by one session's reader, writer and transfer threads; every update also counts towards the totals.
+	final class Session {
+		private final String id;
+		private final Counter messagesSent;
+		private final Counter messagesReceived;
+		private final Counter bytesSent;
+		private final Counter bytesReceived;
+		private final Histogram outboundLatency;
+		private final Histogram heartbeatRoundTrip;
+		private final Histogram transferDuration;
+		
+		private Session(String id) {
+			this.id = id;
+			messagesSent = registry.counter("session_messages_sent_total", "Message frames written to the client", "session", id);
+			messagesReceived = registry.counter("session_messages_received_total", "Message frames read from the client", "session", id);
+			bytesSent = registry.counter("session_bytes_sent_total", "Bytes written to the client", "session", id);
+			bytesReceived = registry.counter("session_bytes_received_total", "Frame bytes read from the client", "session", id);
+			outboundLatency = registry.histogram("session_outbound_queue_seconds", "Time frames spent in the outbound queue", "session", id);
+			heartbeatRoundTrip = registry.histogram("session_heartbeat_rtt_seconds", "Heartbeat round trip to the client", "session", id);
+			transferDuration = registry.histogram("session_file_transfer_seconds", "File transfer duration", "session", id);
+		}
+		
+		void gauge(String name, String help, LongSupplier value) {
+			registry.gauge(name, help, value, "session", id);
+		}
+		
+		void onFrameReceived(int bytes, boolean message) {
+			bytesReceived.add(bytes);
+			ServerMetrics.this.bytesReceived.add(bytes);
+			if (message) {
+				messagesReceived.increment();
+				ServerMetrics.this.messagesReceived.increment();
+			}
+		}
+		
+		// Called by the flusher for each batch of frames that has fully left the queue.
+		void onWritten(int messages, long bytes) {
+			if (messages > 0) {
+				messagesSent.add(messages);
+				ServerMetrics.this.messagesSent.add(messages);
+			}
+			bytesSent.add(bytes);
+			ServerMetrics.this.bytesSent.add(bytes);
+		}
+		
+		void onQueueLatency(long nanos) {
+			outboundLatency.record(nanos);
+			ServerMetrics.this.outboundLatency.record(nanos);
+		}
+		
+		void onDropped() {
+			messagesDropped.increment();
+		}
+		
+		void onRejected() {
+			messagesRejected.increment();
+		}
+		
+		void onSlowConsumerDisconnect() {
+			slowConsumerDisconnects.increment();
+		}
+		
+		void onHeartbeatRoundTrip(long nanos) {
+			heartbeatRoundTrip.record(nanos);
+			ServerMetrics.this.heartbeatRoundTrip.record(nanos);
+		}
+		
+		void onTransferCompleted(long startedAt, long length) {
+			long nanos = System.nanoTime() - startedAt;
+			transferDuration.record(nanos);
+			ServerMetrics.this.transferDuration.record(nanos);
+			transfersCompleted.increment();
+			transferBytes.add(length);
+		}
+		
+		void onTransferFailed() {
+			transfersFailed.increment();
+		}
+		
+		void close() {
+			registry.remove("session", id);
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package net.guess.ServerUtil;
+
+// What a session does with a new message once its outbound queue is full.
+// File stream frames are never dropped; they always wait for room.
+public enum SlowConsumerPolicy {
+	BLOCK,
+	DROP_OLDEST,
+	DISCONNECT
+}
@@ -0,0 +1,52 @@
+package net.guess.ServerUtil;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+public class SocketClientSession extends ClientSession {
+	private final SocketChannel channel;
+	
+	public SocketClientSession(String id, SocketChannel channel, Server server) throws IOException {
+		super(id, channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort(), server);
+		this.channel = channel;
+	}
+	
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	// Drains on the server's writer executor, so callers never block on a slow socket unless the queue is full.
+	@Override
+	protected void scheduleFlush() {
+		server.getWriterExecutor().execute(this::flushAll);
+	}
+	
+	@Override
+	protected boolean canBlock() {
+		return true;
+	}
+	
+	private void flushAll() {
+		try {
+			do {
+				flush(channel);
+			} while (finishFlush());
+		} catch (IOException e) {
+			server.closeSession(this, isOpen() ? e : null);
+		}
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+	
+	@Override
+	public void close() {
+		closeOutbound();
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+	}
+}
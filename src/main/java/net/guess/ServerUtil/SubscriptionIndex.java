@@ -0,0 +1,225 @@
+package net.guess.ServerUtil;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Which sessions subscribed to which topics. Topics are '/'-separated paths such as "reports/2024/q1.csv"
+ * or plain names such as "alerts". A pattern is either an exact topic, found with one map lookup, or a glob
+ * where "*" matches one segment, "**" any number of them and "*" inside a segment ("*.csv") any run of
+ * characters, kept in a trie keyed by segment. Matching walks only the trie paths the topic's own segments
+ * lead to, so routing cost depends on the topic's depth and how many different wildcard segments sit at
+ * each level, not on how many subscriptions exist. Lookups take no lock; changes are serialised by one.
+ */
+final class SubscriptionIndex {
+	private static final String ANY_SEGMENT = "*";
+	private static final String ANY_SEGMENTS = "**";
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<String, Set<ClientSession>> exact = new ConcurrentHashMap<>();
+	private final Node globs = new Node();
+	// Patterns per session, so a closing session can be removed without scanning the index
+	private final Map<ClientSession, Set<String>> bySession = new ConcurrentHashMap<>();
+	
+	// Returns false only if the session is at its limit; subscribing twice to a pattern changes nothing.
+	boolean subscribe(ClientSession session, String pattern, int limit) {
+		String normalized = normalize(pattern);
+		lock.lock();
+		try {
+			Set<String> patterns = bySession.computeIfAbsent(session, s -> new HashSet<>());
+			if (patterns.contains(normalized)) {
+				return true;
+			}
+			if (patterns.size() >= limit) {
+				return false;
+			}
+			patterns.add(normalized);
+			if (isGlob(normalized)) {
+				Node node = globs;
+				for (String segment : segments(normalized)) {
+					node = node.childrenFor(segment).computeIfAbsent(segment, s -> new Node());
+				}
+				node.subscribers.add(session);
+			} else {
+				exact.computeIfAbsent(normalized, t -> ConcurrentHashMap.newKeySet()).add(session);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	boolean unsubscribe(ClientSession session, String pattern) {
+		String normalized = normalize(pattern);
+		lock.lock();
+		try {
+			Set<String> patterns = bySession.get(session);
+			if (patterns == null || !patterns.remove(normalized)) {
+				return false;
+			}
+			if (patterns.isEmpty()) {
+				bySession.remove(session);
+			}
+			remove(session, normalized);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	void unsubscribeAll(ClientSession session) {
+		lock.lock();
+		try {
+			Set<String> patterns = bySession.remove(session);
+			if (patterns != null) {
+				for (String pattern : patterns) {
+					remove(session, pattern);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Every session with at least one pattern matching the topic, each once.
+	Set<ClientSession> match(String topic) {
+		String normalized = normalize(topic);
+		Set<ClientSession> matched = new HashSet<>();
+		Set<ClientSession> direct = exact.get(normalized);
+		if (direct != null) {
+			matched.addAll(direct);
+		}
+		collect(globs, segments(normalized), 0, matched);
+		return matched;
+	}
+	
+	int getSubscriptionCount() {
+		int count = 0;
+		for (Set<String> patterns : bySession.values()) {
+			count += patterns.size();
+		}
+		return count;
+	}
+	
+	private static void collect(Node node, List<String> segments, int index, Set<ClientSession> matched) {
+		if (node == null) {
+			return;
+		}
+		Node anySegments = node.children.get(ANY_SEGMENTS);
+		if (anySegments != null) {
+			// "**" may swallow none or all of the remaining segments
+			for (int i = index; i <= segments.size(); i++) {
+				collect(anySegments, segments, i, matched);
+			}
+		}
+		if (index == segments.size()) {
+			matched.addAll(node.subscribers);
+			return;
+		}
+		String segment = segments.get(index);
+		collect(node.children.get(segment), segments, index + 1, matched);
+		collect(node.children.get(ANY_SEGMENT), segments, index + 1, matched);
+		for (Map.Entry<String, Node> wildcard : node.wildcards.entrySet()) {
+			if (matchesSegment(wildcard.getKey(), segment)) {
+				collect(wildcard.getValue(), segments, index + 1, matched);
+			}
+		}
+	}
+	
+	// Whether a segment pattern with '*' in it, such as "*.csv" or "log-*", matches the segment.
+	static boolean matchesSegment(String pattern, String segment) {
+		int p = 0;
+		int s = 0;
+		// Where the last '*' was and how much of the segment it has swallowed so far, to backtrack to
+		int star = -1;
+		int swallowed = 0;
+		while (s < segment.length()) {
+			if (p < pattern.length() && pattern.charAt(p) == '*') {
+				star = p++;
+				swallowed = s;
+			} else if (p < pattern.length() && pattern.charAt(p) == segment.charAt(s)) {
+				p++;
+				s++;
+			} else if (star >= 0) {
+				p = star + 1;
+				s = ++swallowed;
+			} else {
+				return false;
+			}
+		}
+		while (p < pattern.length() && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == pattern.length();
+	}
+	
+	// Caller holds the lock. Prunes trie nodes left without subscribers or children.
+	private void remove(ClientSession session, String pattern) {
+		if (!isGlob(pattern)) {
+			Set<ClientSession> sessions = exact.get(pattern);
+			if (sessions != null) {
+				sessions.remove(session);
+				if (sessions.isEmpty()) {
+					exact.remove(pattern);
+				}
+			}
+			return;
+		}
+		List<Node> path = new ArrayList<>();
+		List<String> segments = segments(pattern);
+		Node node = globs;
+		for (String segment : segments) {
+			path.add(node);
+			node = node.childrenFor(segment).get(segment);
+			if (node == null) {
+				return;
+			}
+		}
+		node.subscribers.remove(session);
+		for (int i = segments.size() - 1; i >= 0 && node.isEmpty(); i--) {
+			path.get(i).childrenFor(segments.get(i)).remove(segments.get(i));
+			node = path.get(i);
+		}
+	}
+	
+	// Separators are '/' on every platform, and empty segments ("a//b", a leading "/") are ignored.
+	static String normalize(String topic) {
+		return String.join("/", segments(topic.replace('\\', '/')));
+	}
+	
+	private static List<String> segments(String topic) {
+		List<String> segments = new ArrayList<>();
+		for (String segment : topic.split("/")) {
+			if (!segment.isEmpty()) {
+				segments.add(segment);
+			}
+		}
+		return segments;
+	}
+	
+	private static boolean isGlob(String pattern) {
+		return pattern.indexOf('*') >= 0;
+	}
+	
+	private static final class Node {
+		// Literal segments, plus "*" and "**", which are looked up by name
+		private final Map<String, Node> children = new ConcurrentHashMap<>();
+		// Segments with '*' among other characters, which have to be tried one by one
+		private final Map<String, Node> wildcards = new ConcurrentHashMap<>();
+		private final Set<ClientSession> subscribers = ConcurrentHashMap.newKeySet();
+		
+		private Map<String, Node> childrenFor(String segment) {
+			boolean partial = segment.indexOf('*') >= 0 && !segment.equals(ANY_SEGMENT) && !segment.equals(ANY_SEGMENTS);
+			return partial ? wildcards : children;
+		}
+		
+		private boolean isEmpty() {
+			return children.isEmpty() && wildcards.isEmpty() && subscribers.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package net.guess.ServerUtil;
+
+import net.guess.SharedUtil.Counter;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * One WatchService and one thread for every watched file and directory tree. Registrations are
+ * indexed by exact file path and by tree root, so an event costs a map lookup per path segment rather
+ * than a scan over every watcher. Trees are registered recursively, including subdirectories created
+ * later. Each watched directory keeps a size and mtime snapshot of its files, so an OVERFLOW is
+ * recovered by rescanning the directory and reporting what actually changed.
+ */
+public class WatchRegistry {
+	private static WatchRegistry shared;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	// Written under the lock, read lock-free when dispatching
+	private final Map<Path, List<Registration>> files = new ConcurrentHashMap<>();
+	private final Map<Path, List<Registration>> trees = new ConcurrentHashMap<>();
+	private final Map<Path, WatchKey> keys = new HashMap<>();
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	// Per watched directory: file name -> last seen state. Watch thread only, apart from registration.
+	private final Map<Path, Map<Path, FileState>> snapshots = new HashMap<>();
+	private final Counter overflows = new Counter();
+	private WatchService watchService;
+	
+	// The registry FileWatchers use unless started with another one.
+	public static synchronized WatchRegistry shared() {
+		if (shared == null) {
+			shared = new WatchRegistry();
+		}
+		return shared;
+	}
+	
+	// Called on the watch thread for each created, modified or deleted file; must return quickly.
+	public interface Listener {
+		void onEvent(Path file, WatchEvent.Kind<Path> kind);
+	}
+	
+	// Watches one file. Its directory must exist; the file itself need not.
+	public Registration watchFile(Path file, Listener listener) throws IOException {
+		Path path = file.toAbsolutePath().normalize();
+		Path dir = path.getParent();
+		if (dir == null || !Files.isDirectory(dir)) {
+			throw new NotDirectoryException(String.valueOf(dir));
+		}
+		Registration registration = new Registration(path, false, listener);
+		lock.lock();
+		try {
+			ensureStarted();
+			register(dir);
+			files.computeIfAbsent(path, p -> new CopyOnWriteArrayList<>()).add(registration);
+		} finally {
+			lock.unlock();
+		}
+		return registration;
+	}
+	
+	// Watches every file below a directory, at any depth.
+	public Registration watchTree(Path root, Listener listener) throws IOException {
+		Path path = root.toAbsolutePath().normalize();
+		if (!Files.isDirectory(path)) {
+			throw new NotDirectoryException(path.toString());
+		}
+		Registration registration = new Registration(path, true, listener);
+		lock.lock();
+		try {
+			ensureStarted();
+			trees.computeIfAbsent(path, p -> new CopyOnWriteArrayList<>()).add(registration);
+			registerAll(path, null);
+		} finally {
+			lock.unlock();
+		}
+		return registration;
+	}
+	
+	public int getWatchedDirectoryCount() {
+		lock.lock();
+		try {
+			return keys.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Times the watch service dropped events and a directory had to be rescanned.
+	public long getOverflowCount() {
+		return overflows.get();
+	}
+	
+	// Idempotent; the thread starts with the first registration.
+	private void ensureStarted() throws IOException {
+		if (watchService == null) {
+			watchService = FileSystems.getDefault().newWatchService();
+			Thread watchThread = new Thread(this::run, "file-watch");
+			watchThread.setDaemon(true);
+			watchThread.start();
+		}
+	}
+	
+	// Caller holds the lock.
+	private void register(Path dir) throws IOException {
+		if (keys.containsKey(dir)) {
+			return;
+		}
+		WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		keys.put(dir, key);
+		directories.put(key, dir);
+		Map<Path, FileState> snapshot = new HashMap<>();
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+			for (Path child : children) {
+				FileState state = FileState.of(child);
+				if (state != null) {
+					snapshot.put(child.getFileName(), state);
+				}
+			}
+		}
+		snapshots.put(dir, snapshot);
+	}
+	
+	// Registers a directory and everything below it. Files found in directories that were created after
+	// the tree was registered are reported as created, since their own events may have been missed.
+	private void registerAll(Path root, List<Path> created) throws IOException {
+		try (Stream<Path> walk = Files.walk(root)) {
+			for (Iterator<Path> iterator = walk.iterator(); iterator.hasNext(); ) {
+				Path path = iterator.next();
+				if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					register(path);
+				} else if (created != null) {
+					created.add(path);
+				}
+			}
+		}
+	}
+	
+	private void unregister(Registration registration) {
+		lock.lock();
+		try {
+			Map<Path, List<Registration>> index = registration.tree ? trees : files;
+			List<Registration> registrations = index.get(registration.path);
+			if (registrations == null || !registrations.remove(registration)) {
+				return;
+			}
+			if (registrations.isEmpty()) {
+				index.remove(registration.path);
+			}
+			// Stop watching directories that no registration needs any more
+			for (Iterator<Map.Entry<Path, WatchKey>> iterator = keys.entrySet().iterator(); iterator.hasNext(); ) {
+				Map.Entry<Path, WatchKey> entry = iterator.next();
+				if (!isNeeded(entry.getKey())) {
+					entry.getValue().cancel();
+					directories.remove(entry.getValue());
+					snapshots.remove(entry.getKey());
+					iterator.remove();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private boolean isNeeded(Path dir) {
+		if (inTree(dir)) {
+			return true;
+		}
+		for (Path file : files.keySet()) {
+			if (dir.equals(file.getParent())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean inTree(Path path) {
+		for (Path ancestor = path; ancestor != null; ancestor = ancestor.getParent()) {
+			if (trees.containsKey(ancestor)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			List<Change> changes = new ArrayList<>();
+			lock.lock();
+			try {
+				Path dir = directories.get(key);
+				if (dir != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflows.increment();
+							rescan(dir, changes);
+						} else {
+							@SuppressWarnings("unchecked")
+							WatchEvent<Path> pathEvent = (WatchEvent<Path>) event;
+							onEvent(dir, pathEvent.context(), pathEvent.kind(), changes);
+						}
+					}
+					if (!key.reset()) {
+						// The directory was deleted or became inaccessible
+						keys.remove(dir);
+						directories.remove(key);
+						snapshots.remove(dir);
+					}
+				} else {
+					key.pollEvents();
+					key.reset();
+				}
+			} finally {
+				lock.unlock();
+			}
+			// Listeners run outside the lock, so they may register or unregister
+			for (Change change : changes) {
+				dispatch(change.path(), change.kind());
+			}
+		}
+	}
+	
+	// Caller holds the lock.
+	private void onEvent(Path dir, Path name, WatchEvent.Kind<Path> kind, List<Change> changes) {
+		Path path = dir.resolve(name);
+		Map<Path, FileState> snapshot = snapshots.get(dir);
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			if (snapshot != null) {
+				snapshot.remove(name);
+			}
+			changes.add(new Change(path, kind));
+			return;
+		}
+		if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE && inTree(path)) {
+				List<Path> created = new ArrayList<>();
+				try {
+					registerAll(path, created);
+				} catch (IOException e) {
+					System.err.println("Error watching new directory " + path + ": " + e.getMessage());
+				}
+				for (Path file : created) {
+					recordState(file);
+					changes.add(new Change(file, StandardWatchEventKinds.ENTRY_CREATE));
+				}
+			}
+			return;
+		}
+		FileState state = FileState.of(path);
+		if (snapshot != null) {
+			if (state != null) {
+				snapshot.put(name, state);
+			} else {
+				snapshot.remove(name);
+			}
+		}
+		changes.add(new Change(path, kind));
+	}
+	
+	private void recordState(Path file) {
+		Map<Path, FileState> snapshot = snapshots.get(file.getParent());
+		FileState state = FileState.of(file);
+		if (snapshot != null && state != null) {
+			snapshot.put(file.getFileName(), state);
+		}
+	}
+	
+	// Events for this directory were lost; compare it against the snapshot and report the differences.
+	private void rescan(Path dir, List<Change> changes) {
+		Map<Path, FileState> snapshot = snapshots.get(dir);
+		if (snapshot == null) {
+			return;
+		}
+		Set<Path> seen = new HashSet<>();
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+			for (Path child : children) {
+				Path name = child.getFileName();
+				seen.add(name);
+				if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+					if (!keys.containsKey(child)) {
+						onEvent(dir, name, StandardWatchEventKinds.ENTRY_CREATE, changes);
+					}
+					continue;
+				}
+				FileState state = FileState.of(child);
+				FileState previous = snapshot.get(name);
+				if (previous == null) {
+					onEvent(dir, name, StandardWatchEventKinds.ENTRY_CREATE, changes);
+				} else if (!previous.equals(state)) {
+					onEvent(dir, name, StandardWatchEventKinds.ENTRY_MODIFY, changes);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error rescanning " + dir + " after overflow: " + e.getMessage());
+			return;
+		}
+		for (Path name : new ArrayList<>(snapshot.keySet())) {
+			if (!seen.contains(name)) {
+				onEvent(dir, name, StandardWatchEventKinds.ENTRY_DELETE, changes);
+			}
+		}
+	}
+	
+	private void dispatch(Path path, WatchEvent.Kind<Path> kind) {
+		List<Registration> exact = files.get(path);
+		if (exact != null) {
+			for (Registration registration : exact) {
+				registration.deliver(path, kind);
+			}
+		}
+		for (Path ancestor = path.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+			List<Registration> tree = trees.get(ancestor);
+			if (tree != null) {
+				for (Registration registration : tree) {
+					registration.deliver(path, kind);
+				}
+			}
+		}
+	}
+	
+	public final class Registration implements AutoCloseable {
+		private final Path path;
+		private final boolean tree;
+		private final Listener listener;
+		
+		private Registration(Path path, boolean tree, Listener listener) {
+			this.path = path;
+			this.tree = tree;
+			this.listener = listener;
+		}
+		
+		public Path getPath() {
+			return path;
+		}
+		
+		private void deliver(Path file, WatchEvent.Kind<Path> kind) {
+			try {
+				listener.onEvent(file, kind);
+			} catch (RuntimeException e) {
+				System.err.println("File watch listener failed for " + file + ": " + e);
+			}
+		}
+		
+		@Override
+		public void close() {
+			unregister(this);
+		}
+	}
+	
+	private record Change(Path path, WatchEvent.Kind<Path> kind) {
+	}
+	
+	private record FileState(long size, long modified) {
+		static FileState of(Path file) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				return attributes.isDirectory() ? null : new FileState(attributes.size(), attributes.lastModifiedTime().toMillis());
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+}
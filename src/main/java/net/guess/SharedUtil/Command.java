@@ -0,0 +1,190 @@
+package net.guess.SharedUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A space-separated message viewed in place over its frame payload. One instance is reused by a
+ * connection's reader, so it is only valid inside the handler call; arguments are split on first
+ * use and numeric arguments are parsed straight from the bytes.
+ */
+public final class Command {
+	private static final byte SPACE = ' ';
+	
+	private ByteBuffer payload;
+	private int start;
+	private int end;
+	private int nameEnd;
+	private String name;
+	private String text;
+	// Start/end offsets of each argument, filled lazily
+	private int[] argBounds = new int[16];
+	private int argCount = -1;
+	
+	// Points this view at a new message.
+	public void reset(ByteBuffer payload) {
+		this.payload = payload;
+		this.start = payload.position();
+		this.end = payload.limit();
+		this.name = null;
+		this.text = null;
+		this.argCount = -1;
+		int i = start;
+		while (i < end && payload.get(i) != SPACE) {
+			i++;
+		}
+		nameEnd = i;
+	}
+	
+	ByteBuffer payload() {
+		return payload;
+	}
+	
+	int start() {
+		return start;
+	}
+	
+	int nameEnd() {
+		return nameEnd;
+	}
+	
+	void setName(String name) {
+		this.name = name;
+	}
+	
+	// The registered command this message matched, or the decoded first token when unmatched.
+	public String name() {
+		if (name == null) {
+			name = decode(start, nameEnd);
+		}
+		return name;
+	}
+	
+	public int argCount() {
+		split();
+		return argCount;
+	}
+	
+	public String arg(int index) {
+		split();
+		Objects.checkIndex(index, argCount);
+		return decode(argBounds[index * 2], argBounds[index * 2 + 1]);
+	}
+	
+	// Everything after the command token, as one string.
+	public String rest() {
+		int from = Math.min(nameEnd + 1, end);
+		return decode(from, end);
+	}
+	
+	public long longArg(int index) {
+		split();
+		Objects.checkIndex(index, argCount);
+		int from = argBounds[index * 2];
+		int to = argBounds[index * 2 + 1];
+		boolean negative = from < to && payload.get(from) == '-';
+		int i = negative ? from + 1 : from;
+		if (i == to) {
+			throw new NumberFormatException("Argument " + index + " is not a number: " + arg(index));
+		}
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = payload.get(i) - '0';
+			if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+				throw new NumberFormatException("Argument " + index + " is not a number: " + arg(index));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+	
+	public int intArg(int index) {
+		long value = longArg(index);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Argument " + index + " is out of int range: " + value);
+		}
+		return (int) value;
+	}
+	
+	// Byte-wise comparison, meant for ASCII keywords.
+	public boolean argEquals(int index, String expected) {
+		split();
+		Objects.checkIndex(index, argCount);
+		int from = argBounds[index * 2];
+		int length = argBounds[index * 2 + 1] - from;
+		if (length != expected.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (payload.get(from + i) != expected.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// A command over its own copy of the text, for messages that did not arrive as a frame payload.
+	public static Command of(String text) {
+		Command command = new Command();
+		command.reset(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+		command.text = text;
+		return command;
+	}
+	
+	// A copy that owns its bytes, for handing the message to another thread.
+	public Command copy() {
+		ByteBuffer bytes = ByteBuffer.allocate(end - start);
+		bytes.put(0, payload, start, end - start);
+		Command copy = new Command();
+		copy.reset(bytes);
+		copy.name = name;
+		copy.text = text;
+		return copy;
+	}
+	
+	// The whole message; decoded once and cached for the rest of the call.
+	public String text() {
+		if (text == null) {
+			text = decode(start, end);
+		}
+		return text;
+	}
+	
+	@Override
+	public String toString() {
+		return text();
+	}
+	
+	private void split() {
+		if (argCount >= 0) {
+			return;
+		}
+		int count = 0;
+		int i = nameEnd;
+		while (i < end) {
+			while (i < end && payload.get(i) == SPACE) {
+				i++;
+			}
+			if (i == end) {
+				break;
+			}
+			int from = i;
+			while (i < end && payload.get(i) != SPACE) {
+				i++;
+			}
+			if (count * 2 + 1 >= argBounds.length) {
+				argBounds = Arrays.copyOf(argBounds, argBounds.length * 2);
+			}
+			argBounds[count * 2] = from;
+			argBounds[count * 2 + 1] = i;
+			count++;
+		}
+		argCount = count;
+	}
+	
+	private String decode(int from, int to) {
+		return StandardCharsets.UTF_8.decode(payload.slice(from, to - from)).toString();
+	}
+}
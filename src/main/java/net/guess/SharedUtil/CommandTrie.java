@@ -0,0 +1,98 @@
+package net.guess.SharedUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Maps command names to handlers by walking the raw UTF-8 bytes of a message, so a lookup needs no
+ * decoded String. Nodes are immutable and registration swaps in a copied path, which lets handlers be
+ * registered from any thread while reader threads keep looking up without locks.
+ */
+public final class CommandTrie<H> {
+	private final AtomicReference<Node<H>> root = new AtomicReference<>(new Node<>(new byte[0], emptyChildren(), null, null));
+	
+	public void register(String command, H handler) {
+		byte[] key = command.getBytes(StandardCharsets.UTF_8);
+		Node<H> current;
+		do {
+			current = root.get();
+		} while (!root.compareAndSet(current, current.with(key, 0, command, handler)));
+	}
+	
+	public void unregister(String command) {
+		byte[] key = command.getBytes(StandardCharsets.UTF_8);
+		Node<H> current;
+		do {
+			current = root.get();
+		} while (!root.compareAndSet(current, current.with(key, 0, null, null)));
+	}
+	
+	// Returns the handler registered for the message's command token, or null.
+	public H match(Command message) {
+		ByteBuffer payload = message.payload();
+		int end = message.nameEnd();
+		Node<H> node = root.get();
+		for (int i = message.start(); i < end && node != null; i++) {
+			node = node.child(payload.get(i));
+		}
+		if (node == null || node.handler == null) {
+			return null;
+		}
+		message.setName(node.command);
+		return node.handler;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <H> Node<H>[] emptyChildren() {
+		return (Node<H>[]) new Node<?>[0];
+	}
+	
+	private static final class Node<H> {
+		// Edge bytes and their children; fan-out per node is small, so a linear scan beats hashing
+		private final byte[] keys;
+		private final Node<H>[] children;
+		private final String command;
+		private final H handler;
+		
+		private Node(byte[] keys, Node<H>[] children, String command, H handler) {
+			this.keys = keys;
+			this.children = children;
+			this.command = command;
+			this.handler = handler;
+		}
+		
+		private Node<H> child(byte b) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == b) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+		
+		// Returns a copy of this node with the handler at key[depth..] replaced.
+		private Node<H> with(byte[] key, int depth, String newCommand, H newHandler) {
+			if (depth == key.length) {
+				return new Node<>(keys, children, newCommand, newHandler);
+			}
+			byte b = key[depth];
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == b) {
+					Node<H>[] copied = children.clone();
+					copied[i] = children[i].with(key, depth + 1, newCommand, newHandler);
+					return new Node<>(keys, copied, command, handler);
+				}
+			}
+			if (newHandler == null) {
+				return this;
+			}
+			byte[] grownKeys = Arrays.copyOf(keys, keys.length + 1);
+			Node<H>[] grownChildren = Arrays.copyOf(children, children.length + 1);
+			grownKeys[keys.length] = b;
+			grownChildren[children.length] = new Node<H>(new byte[0], emptyChildren(), null, null).with(key, depth + 1, newCommand, newHandler);
+			return new Node<>(grownKeys, grownChildren, command, handler);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A codec plus the policy for using it on frames. Payloads under the threshold, or that do not shrink,
+ * go out unchanged; a compressed payload is [int originalLength][codec output] and its frame carries
+ * {@link Frames#FLAG_COMPRESSED}. Every frame is compressed on its own, so streams stay independent.
+ * One instance is shared by every connection that negotiated its codec and aggregates their stats.
+ */
+public class Compression {
+	public static final int DEFAULT_THRESHOLD = 256;
+	
+	private final CompressionCodec codec;
+	private final int threshold;
+	private final LongAdder framesCompressed = new LongAdder();
+	private final LongAdder framesSkipped = new LongAdder();
+	private final LongAdder framesDecompressed = new LongAdder();
+	private final LongAdder bytesBeforeCompression = new LongAdder();
+	private final LongAdder bytesAfterCompression = new LongAdder();
+	private final LongAdder compressNanos = new LongAdder();
+	private final LongAdder decompressNanos = new LongAdder();
+	
+	public Compression(CompressionCodec codec) {
+		this(codec, DEFAULT_THRESHOLD);
+	}
+	
+	public Compression(CompressionCodec codec, int threshold) {
+		this.codec = codec;
+		this.threshold = threshold;
+	}
+	
+	public CompressionCodec getCodec() {
+		return codec;
+	}
+	
+	public String id() {
+		return codec.id();
+	}
+	
+	// Returns a compressed copy of a whole frame, or the frame itself when compressing would not pay off.
+	public ByteBuffer compressFrame(ByteBuffer frame) {
+		int start = frame.position();
+		int length = frame.getInt(start);
+		byte flags = frame.get(start + 5);
+		if (length < threshold || (flags & Frames.FLAG_COMPRESSED) != 0) {
+			return frame;
+		}
+		ByteBuffer compressed = ByteBuffer.allocate(Frames.HEADER_LENGTH + length - 1);
+		compressed.position(Frames.HEADER_LENGTH);
+		if (!compressInto(frame.slice(start + Frames.HEADER_LENGTH, length), compressed)) {
+			return frame;
+		}
+		compressed.flip();
+		compressed.putInt(0, compressed.limit() - Frames.HEADER_LENGTH)
+				.put(4, frame.get(start + 4))
+				.put(5, (byte) (flags | Frames.FLAG_COMPRESSED))
+				.putInt(6, frame.getInt(start + 6));
+		return compressed;
+	}
+	
+	// For callers that write header and body separately: the compressed body, or null to send it raw.
+	public ByteBuffer compressBody(ByteBuffer body) {
+		if (body.remaining() < threshold) {
+			return null;
+		}
+		ByteBuffer compressed = ByteBuffer.allocate(body.remaining() - 1);
+		if (!compressInto(body.duplicate(), compressed)) {
+			return null;
+		}
+		return compressed.flip();
+	}
+	
+	public ByteBuffer decompress(ByteBuffer payload) throws IOException {
+		if (payload.remaining() < Integer.BYTES) {
+			throw new IOException("Truncated compressed payload");
+		}
+		int originalLength = payload.getInt(payload.position());
+		if (originalLength < 0 || originalLength > Frames.MAX_PAYLOAD_LENGTH) {
+			throw new IOException("Invalid compressed payload length " + originalLength);
+		}
+		ByteBuffer original = ByteBuffer.allocate(originalLength);
+		long started = System.nanoTime();
+		codec.decompress(payload.slice(payload.position() + Integer.BYTES, payload.remaining() - Integer.BYTES), original);
+		decompressNanos.add(System.nanoTime() - started);
+		framesDecompressed.increment();
+		return original.flip();
+	}
+	
+	private boolean compressInto(ByteBuffer source, ByteBuffer target) {
+		int originalLength = source.remaining();
+		int start = target.position();
+		if (target.remaining() <= Integer.BYTES) {
+			return false;
+		}
+		target.putInt(originalLength);
+		long started = System.nanoTime();
+		boolean fitted = codec.compress(source, target);
+		compressNanos.add(System.nanoTime() - started);
+		if (!fitted) {
+			framesSkipped.increment();
+			return false;
+		}
+		framesCompressed.increment();
+		bytesBeforeCompression.add(originalLength);
+		bytesAfterCompression.add(target.position() - start);
+		return true;
+	}
+	
+	// Adds this codec's series, labeled with its id, to a registry. Each side counts only what it did itself.
+	public void registerMetrics(Metrics metrics) {
+		String id = id();
+		metrics.counter("compression_frames_total", "Frames sent compressed", framesCompressed::sum, "codec", id);
+		metrics.counter("compression_skipped_frames_total", "Frames that did not shrink and went out uncompressed", framesSkipped::sum, "codec", id);
+		metrics.counter("compression_decompressed_frames_total", "Compressed frames received and decompressed", framesDecompressed::sum, "codec", id);
+		metrics.counter("compression_bytes_in_total", "Bytes before compression", bytesBeforeCompression::sum, "codec", id);
+		metrics.counter("compression_bytes_out_total", "Bytes after compression", bytesAfterCompression::sum, "codec", id);
+		metrics.secondsCounter("compression_compress_seconds_total", "Time spent compressing, including frames that were then skipped", compressNanos::sum, "codec", id);
+		metrics.secondsCounter("compression_decompress_seconds_total", "Time spent decompressing", decompressNanos::sum, "codec", id);
+	}
+	
+	public Stats getStats() {
+		return new Stats(codec.id(), framesCompressed.sum(), framesSkipped.sum(), framesDecompressed.sum(), bytesBeforeCompression.sum(), bytesAfterCompression.sum(), compressNanos.sum(), decompressNanos.sum());
+	}
+	
+	// Skipped frames were tried but did not shrink; their time still counts towards compressNanos.
+	public record Stats(String codec, long framesCompressed, long framesSkipped, long framesDecompressed, long bytesBeforeCompression, long bytesAfterCompression, long compressNanos, long decompressNanos) {
+		public double ratio() {
+			return bytesAfterCompression == 0 ? 1.0 : (double) bytesBeforeCompression / bytesAfterCompression;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A payload codec both peers can agree on. Peers negotiate by id, so an id must change whenever the
+ * encoded form does, e.g. when a preset dictionary is added. Implementations must be thread safe.
+ */
+public interface CompressionCodec {
+	String id();
+	
+	// Compresses all of src into dst. Returns false, leaving dst undefined, if dst fills up first.
+	boolean compress(ByteBuffer src, ByteBuffer dst);
+	
+	// Decompresses src, which must expand to exactly dst.remaining() bytes.
+	void decompress(ByteBuffer src, ByteBuffer dst) throws IOException;
+}
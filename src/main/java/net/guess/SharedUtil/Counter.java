@@ -0,0 +1,20 @@
+package net.guess.SharedUtil;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A monotonically increasing count. Striped, so hot paths on many threads do not contend on one cache line.
+public final class Counter {
+	private final LongAdder value = new LongAdder();
+	
+	public void increment() {
+		value.increment();
+	}
+	
+	public void add(long amount) {
+		value.add(amount);
+	}
+	
+	public long get() {
+		return value.sum();
+	}
+}
@@ -0,0 +1,98 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression from java.util.zip. Deflaters and inflaters hold native memory, so they are pooled
+ * and reset between frames rather than created per frame. A preset dictionary of typical message text
+ * lets small, repetitive messages compress even though every frame is compressed on its own.
+ */
+public class DeflateCodec implements CompressionCodec {
+	private final int level;
+	private final byte[] dictionary;
+	private final String id;
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+	private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+	
+	// Fastest level by default: on a transport, compression time adds straight to latency
+	public DeflateCodec() {
+		this(Deflater.BEST_SPEED, null);
+	}
+	
+	public DeflateCodec(int level, byte[] dictionary) {
+		this.level = level;
+		this.dictionary = dictionary != null ? dictionary.clone() : null;
+		if (dictionary == null) {
+			id = "deflate";
+		} else {
+			Adler32 checksum = new Adler32();
+			checksum.update(dictionary);
+			id = "deflate-" + Long.toHexString(checksum.getValue());
+		}
+	}
+	
+	@Override
+	public String id() {
+		return id;
+	}
+	
+	@Override
+	public boolean compress(ByteBuffer src, ByteBuffer dst) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		}
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(src);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (!dst.hasRemaining()) {
+					return false;
+				}
+				deflater.deflate(dst);
+			}
+			return true;
+		} finally {
+			deflater.reset();
+			deflaters.offer(deflater);
+		}
+	}
+	
+	@Override
+	public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			inflater.setInput(src);
+			while (!inflater.finished()) {
+				if (inflater.inflate(dst) == 0 && !inflater.finished()) {
+					if (inflater.needsDictionary() && dictionary != null) {
+						inflater.setDictionary(dictionary);
+					} else {
+						throw new IOException("Compressed payload does not match its declared length");
+					}
+				}
+			}
+			if (dst.hasRemaining()) {
+				throw new IOException("Compressed payload does not match its declared length");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed payload", e);
+		} finally {
+			inflater.reset();
+			inflaters.offer(inflater);
+		}
+	}
+}
@@ -0,0 +1,411 @@
+package net.guess.SharedUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * rsync-style delta transfer. The receiver sends a signature of its current copy (a rolling weak
+ * checksum and an MD5 per block); the sender answers with copy instructions for blocks the receiver
+ * already has and literal bytes for everything else, followed by the length and MD5 of the whole file.
+ */
+public final class DeltaSync {
+	private static final int MIN_BLOCK_SIZE = 1024;
+	private static final int MAX_BLOCK_SIZE = 128 * 1024;
+	// Keeps the sender's index of a signature to about 36MB; with the largest blocks that covers 128GB
+	private static final int MAX_BLOCK_COUNT = 1 << 20;
+	private static final int STRONG_LENGTH = 16;
+	private static final int LITERAL_CHUNK = 256 * 1024;
+	private static final byte OP_END = 0;
+	private static final byte OP_COPY = 1;
+	private static final byte OP_LITERAL = 2;
+	
+	public record Stats(long fileLength, long literalBytes, long copiedBytes) {
+	}
+	
+	private DeltaSync() {
+	}
+	
+	public static int blockSizeFor(long fileLength) {
+		long root = (long) Math.sqrt((double) fileLength);
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, Long.highestOneBit(Math.max(1, root))));
+	}
+	
+	// The most blocks a sender of a sourceLength file accepts. Blocks past the end of the source are left out
+	// of the signature; they could only match data that moved towards the start, and are not worth the memory.
+	private static int maxBlockCount(long sourceLength, int blockSize) {
+		return (int) Math.min(sourceLength / blockSize + 1, MAX_BLOCK_COUNT);
+	}
+	
+	// The longest signature a sender of a sourceLength file accepts, so it can bound what it buffers.
+	public static long maxSignatureLength(long sourceLength) {
+		return 2 * Integer.BYTES + (long) maxBlockCount(sourceLength, MIN_BLOCK_SIZE) * (4 + STRONG_LENGTH);
+	}
+	
+	// Receiver side: [int blockSize][int blockCount] then per full block [int weak][16 byte MD5].
+	// A missing basis file produces an empty signature, which degrades to a plain full send.
+	// sourceLength is the length the sender offered.
+	public static void writeSignature(Path basis, long sourceLength, WritableByteChannel out) throws IOException {
+		long basisLength = Files.isRegularFile(basis) ? Files.size(basis) : 0;
+		int blockSize = blockSizeFor(basisLength);
+		int blockCount = (int) Math.min(basisLength / blockSize, maxBlockCount(sourceLength, blockSize));
+		
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(blockSize, 8 + 64 * (4 + STRONG_LENGTH)));
+		buffer.putInt(blockSize).putInt(blockCount);
+		if (blockCount == 0) {
+			FileTransfers.writeFully(out, buffer.flip());
+			return;
+		}
+		
+		MessageDigest md5 = md5();
+		ByteBuffer block = ByteBuffer.allocate(blockSize);
+		try (FileChannel basisChannel = FileChannel.open(basis, StandardOpenOption.READ)) {
+			for (int i = 0; i < blockCount; i++) {
+				block.clear();
+				while (block.hasRemaining()) {
+					if (basisChannel.read(block, (long) i * blockSize + block.position()) == -1) {
+						throw new EOFException("Basis file " + basis + " shrank while computing its signature");
+					}
+				}
+				byte[] bytes = block.array();
+				if (buffer.remaining() < 4 + STRONG_LENGTH) {
+					FileTransfers.writeFully(out, buffer.flip());
+					buffer.clear();
+				}
+				buffer.putInt(weakChecksum(bytes, 0, blockSize));
+				buffer.put(md5.digest(bytes));
+			}
+		}
+		FileTransfers.writeFully(out, buffer.flip());
+	}
+	
+	// Sender side: reads the receiver's signature from in, then streams the delta for source to out.
+	public static Stats sendDelta(Path source, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		BlockIndex index = BlockIndex.read(in, Files.size(source));
+		int blockSize = index.blockSize;
+		MessageDigest md5 = md5();
+		MessageDigest wholeFile = md5();
+		ByteBuffer opHeader = ByteBuffer.allocate(1 + Long.BYTES + STRONG_LENGTH);
+		long literalBytes = 0;
+		long copiedBytes = 0;
+		int pendingCopyStart = -1;
+		int pendingCopyCount = 0;
+		
+		try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+			long fileLength = sourceChannel.size();
+			byte[] window = new byte[Math.max(LITERAL_CHUNK, blockSize * 4)];
+			int filled = 0;
+			int literalStart = 0;
+			int start = 0;
+			long read = 0;
+			boolean rolling = false;
+			int a = 0;
+			int b = 0;
+			
+			while (true) {
+				// Make room for the next block when the window reaches the end of the buffer
+				if (start + blockSize >= filled && read < fileLength) {
+					if (start > literalStart) {
+						literalBytes += writeLiteral(out, opHeader, window, literalStart, start - literalStart, wholeFile);
+					}
+					if (start > 0) {
+						System.arraycopy(window, start, window, 0, filled - start);
+						filled -= start;
+						start = 0;
+					}
+					literalStart = start;
+					ByteBuffer target = ByteBuffer.wrap(window, filled, (int) Math.min(window.length - filled, fileLength - read));
+					while (target.hasRemaining() && read < fileLength) {
+						int n = sourceChannel.read(target, read);
+						if (n == -1) {
+							break;
+						}
+						read += n;
+					}
+					filled = target.position();
+				}
+				
+				if (start + blockSize > filled || index.blockCount == 0) {
+					break;
+				}
+				
+				if (!rolling) {
+					a = 0;
+					b = 0;
+					for (int i = 0; i < blockSize; i++) {
+						int x = window[start + i] & 0xff;
+						a += x;
+						b += (blockSize - i) * x;
+					}
+					a &= 0xffff;
+					b &= 0xffff;
+					rolling = true;
+				}
+				
+				int match = index.find(a | (b << 16), window, start, md5);
+				if (match >= 0) {
+					if (start > literalStart) {
+						literalBytes += writeLiteral(out, opHeader, window, literalStart, start - literalStart, wholeFile);
+					}
+					if (pendingCopyCount > 0 && pendingCopyStart + pendingCopyCount == match) {
+						pendingCopyCount++;
+					} else {
+						flushCopy(out, opHeader, pendingCopyStart, pendingCopyCount, blockSize);
+						pendingCopyStart = match;
+						pendingCopyCount = 1;
+					}
+					wholeFile.update(window, start, blockSize);
+					copiedBytes += blockSize;
+					start += blockSize;
+					literalStart = start;
+					rolling = false;
+					continue;
+				}
+				
+				// Copies are flushed before any literal byte so instructions stay in file order
+				flushCopy(out, opHeader, pendingCopyStart, pendingCopyCount, blockSize);
+				pendingCopyCount = 0;
+				if (start + blockSize >= filled) {
+					if (read >= fileLength) {
+						break;
+					}
+					// The next byte is not buffered yet; recompute from scratch after the refill
+					rolling = false;
+				} else {
+					int outgoing = window[start] & 0xff;
+					int incoming = window[start + blockSize] & 0xff;
+					a = (a - outgoing + incoming) & 0xffff;
+					b = (b - blockSize * outgoing + a) & 0xffff;
+				}
+				start++;
+				
+				// Keep literal runs bounded so the window never has to grow
+				if (start - literalStart >= LITERAL_CHUNK / 2) {
+					literalBytes += writeLiteral(out, opHeader, window, literalStart, start - literalStart, wholeFile);
+					literalStart = start;
+				}
+			}
+			
+			flushCopy(out, opHeader, pendingCopyStart, pendingCopyCount, blockSize);
+			if (filled > literalStart) {
+				literalBytes += writeLiteral(out, opHeader, window, literalStart, filled - literalStart, wholeFile);
+			}
+			// Anything the window never reached (no usable signature) goes out as plain literals
+			ByteBuffer rest = ByteBuffer.wrap(window);
+			while (read < fileLength) {
+				rest.clear().limit((int) Math.min(rest.capacity(), fileLength - read));
+				int n = sourceChannel.read(rest, read);
+				if (n == -1) {
+					break;
+				}
+				read += n;
+				literalBytes += writeLiteral(out, opHeader, window, 0, n, wholeFile);
+			}
+			
+			opHeader.clear();
+			opHeader.put(OP_END).putLong(read).put(wholeFile.digest());
+			FileTransfers.writeFully(out, opHeader.flip());
+			return new Stats(read, literalBytes, copiedBytes);
+		}
+	}
+	
+	private static void flushCopy(WritableByteChannel out, ByteBuffer opHeader, int firstBlock, int blockCount, int blockSize) throws IOException {
+		if (blockCount == 0) {
+			return;
+		}
+		opHeader.clear();
+		opHeader.put(OP_COPY).putLong((long) firstBlock * blockSize).putLong((long) blockCount * blockSize);
+		FileTransfers.writeFully(out, opHeader.flip());
+	}
+	
+	private static long writeLiteral(WritableByteChannel out, ByteBuffer opHeader, byte[] data, int offset, int length, MessageDigest wholeFile) throws IOException {
+		opHeader.clear();
+		opHeader.put(OP_LITERAL).putInt(length);
+		FileTransfers.writeFully(out, opHeader.flip());
+		FileTransfers.writeFully(out, ByteBuffer.wrap(data, offset, length));
+		wholeFile.update(data, offset, length);
+		return length;
+	}
+	
+	// Receiver side: rebuilds the file from basis plus the delta into target.part, verifies the
+	// length and MD5 from the END record and then atomically replaces target.
+	public static long applyDelta(Path basis, ReadableByteChannel in, Path target) throws IOException {
+		Path temp = FileTransfers.partialFile(target);
+		MessageDigest wholeFile = md5();
+		ByteBuffer op = ByteBuffer.allocate(1);
+		ByteBuffer opHeader = ByteBuffer.allocate(Long.BYTES + STRONG_LENGTH);
+		ByteBuffer copyBuffer = ByteBuffer.allocate(64 * 1024);
+		
+		try {
+			long written = 0;
+			try (FileChannel output = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			     FileChannel basisChannel = Files.isRegularFile(basis) ? FileChannel.open(basis, StandardOpenOption.READ) : null) {
+				while (true) {
+					FileTransfers.readFully(in, op.clear());
+					byte kind = op.get(0);
+					
+					if (kind == OP_END) {
+						opHeader.clear();
+						FileTransfers.readFully(in, opHeader);
+						opHeader.flip();
+						long expectedLength = opHeader.getLong();
+						byte[] expectedDigest = new byte[STRONG_LENGTH];
+						opHeader.get(expectedDigest);
+						if (expectedLength != written || !Arrays.equals(expectedDigest, wholeFile.digest())) {
+							throw new IOException("Delta for " + target + " did not reproduce the source file");
+						}
+						break;
+					}
+					
+					if (kind == OP_COPY) {
+						FileTransfers.readFully(in, opHeader.clear().limit(2 * Long.BYTES));
+						opHeader.flip();
+						long offset = opHeader.getLong();
+						long length = opHeader.getLong();
+						if (basisChannel == null) {
+							throw new IOException("Delta references basis file " + basis + " which does not exist");
+						}
+						long end = offset + length;
+						while (offset < end) {
+							copyBuffer.clear().limit((int) Math.min(copyBuffer.capacity(), end - offset));
+							int n = basisChannel.read(copyBuffer, offset);
+							if (n == -1) {
+								throw new EOFException("Basis file " + basis + " is shorter than the delta expects");
+							}
+							offset += n;
+							wholeFile.update(copyBuffer.array(), 0, n);
+							FileTransfers.writeFully(output, copyBuffer.flip());
+						}
+						written += length;
+					} else if (kind == OP_LITERAL) {
+						FileTransfers.readFully(in, opHeader.clear().limit(Integer.BYTES));
+						int remaining = opHeader.flip().getInt();
+						written += remaining;
+						while (remaining > 0) {
+							copyBuffer.clear().limit(Math.min(copyBuffer.capacity(), remaining));
+							FileTransfers.readFully(in, copyBuffer);
+							remaining -= copyBuffer.position();
+							wholeFile.update(copyBuffer.array(), 0, copyBuffer.position());
+							FileTransfers.writeFully(output, copyBuffer.flip());
+						}
+					} else {
+						throw new IOException("Unknown delta instruction " + kind);
+					}
+				}
+				output.force(false);
+			}
+			FileTransfers.commit(temp, target);
+			return written;
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+	
+	static int weakChecksum(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			int x = data[offset + i] & 0xff;
+			a += x;
+			b += (length - i) * x;
+		}
+		return (a & 0xffff) | ((b & 0xffff) << 16);
+	}
+	
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+	
+	// Open-addressed weak checksum table so lookups while rolling byte by byte do not box or allocate.
+	private static final class BlockIndex {
+		private final int blockSize;
+		private final int blockCount;
+		private final int[] weak;
+		private final byte[] strong;
+		private final int[] heads;
+		private final int[] next;
+		private final byte[] candidate = new byte[STRONG_LENGTH];
+		
+		private BlockIndex(int blockSize, int blockCount) {
+			this.blockSize = blockSize;
+			this.blockCount = blockCount;
+			this.weak = new int[blockCount];
+			this.strong = new byte[blockCount * STRONG_LENGTH];
+			this.heads = new int[Integer.highestOneBit(Math.max(1, blockCount)) << 1];
+			this.next = new int[blockCount];
+			Arrays.fill(heads, -1);
+		}
+		
+		// Checked against the source length before anything is allocated, so a bogus count cannot cost more
+		// memory than a genuine signature for this file would.
+		static BlockIndex read(ReadableByteChannel in, long sourceLength) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+			FileTransfers.readFully(in, header);
+			header.flip();
+			int blockSize = header.getInt();
+			int blockCount = header.getInt();
+			if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blockCount < 0 || blockCount > maxBlockCount(sourceLength, blockSize)) {
+				throw new IOException("Invalid delta signature: block size " + blockSize + ", " + blockCount + " blocks");
+			}
+			
+			BlockIndex index = new BlockIndex(blockSize, blockCount);
+			ByteBuffer entries = ByteBuffer.allocate(1024 * (4 + STRONG_LENGTH));
+			int i = 0;
+			while (i < blockCount) {
+				entries.clear().limit(Math.min(blockCount - i, 1024) * (4 + STRONG_LENGTH));
+				FileTransfers.readFully(in, entries);
+				entries.flip();
+				while (entries.hasRemaining()) {
+					index.weak[i] = entries.getInt();
+					entries.get(index.strong, i * STRONG_LENGTH, STRONG_LENGTH);
+					int slot = index.slot(index.weak[i]);
+					index.next[i] = index.heads[slot];
+					index.heads[slot] = i;
+					i++;
+				}
+			}
+			return index;
+		}
+		
+		private int slot(int weakChecksum) {
+			return (weakChecksum ^ (weakChecksum >>> 16)) & (heads.length - 1);
+		}
+		
+		int find(int weakChecksum, byte[] window, int offset, MessageDigest md5) {
+			boolean hashed = false;
+			for (int i = heads[slot(weakChecksum)]; i >= 0; i = next[i]) {
+				if (weak[i] != weakChecksum) {
+					continue;
+				}
+				if (!hashed) {
+					md5.update(window, offset, blockSize);
+					try {
+						md5.digest(candidate, 0, STRONG_LENGTH);
+					} catch (DigestException e) {
+						throw new IllegalStateException(e);
+					}
+					hashed = true;
+				}
+				if (Arrays.equals(strong, i * STRONG_LENGTH, (i + 1) * STRONG_LENGTH, candidate, 0, STRONG_LENGTH)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package net.guess.SharedUtil;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Datagrams of active discovery. A client sends DISCOVER <nonce> to the multicast group, the broadcast
+ * address and any server it already knows; each server answers the sender straight away with
+ * SERVER_ANSWER <nonce> <port> <load> <capabilities>, where load is its connected clients and capabilities
+ * a comma-separated list ("-" for none). The nonce lets a client ignore answers to someone else's query.
+ */
+public final class Discovery {
+	public static final String GROUP = "239.255.42.99";
+	public static final String QUERY = "DISCOVER";
+	public static final String ANSWER = "SERVER_ANSWER";
+	// Room for a long capability list; anything beyond is cut off
+	public static final int MAX_DATAGRAM = 512;
+	
+	private Discovery() {
+	}
+	
+	public static InetAddress group() {
+		try {
+			return InetAddress.getByName(GROUP);
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public static byte[] query(long nonce) {
+		return (QUERY + " " + nonce).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	// The nonce of a query, or -1 if the datagram is not one.
+	public static long parseQuery(DatagramPacket packet) {
+		String[] parts = text(packet).split(" ");
+		if (parts.length != 2 || !parts[0].equals(QUERY)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(parts[1]);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	public static byte[] answer(long nonce, int port, int load, List<String> capabilities) {
+		String list = capabilities.isEmpty() ? "-" : String.join(",", capabilities);
+		return (ANSWER + " " + nonce + " " + port + " " + load + " " + list).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	// The answer to the query with this nonce, or null if the datagram is something else.
+	public static Answer parseAnswer(DatagramPacket packet, long nonce) {
+		String[] parts = text(packet).split(" ");
+		if (parts.length != 5 || !parts[0].equals(ANSWER)) {
+			return null;
+		}
+		try {
+			if (Long.parseLong(parts[1]) != nonce) {
+				return null;
+			}
+			Set<String> capabilities = new LinkedHashSet<>();
+			if (!parts[4].equals("-")) {
+				capabilities.addAll(List.of(parts[4].split(",")));
+			}
+			return new Answer(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), Set.copyOf(capabilities));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	private static String text(DatagramPacket packet) {
+		return new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8).trim();
+	}
+	
+	public record Answer(int port, int load, Set<String> capabilities) {
+	}
+}
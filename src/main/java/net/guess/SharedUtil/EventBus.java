@@ -0,0 +1,223 @@
+package net.guess.SharedUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Hands events from I/O threads to listeners on one dispatcher thread. Publishers claim a slot in a
+ * preallocated ring and return; the dispatcher drains up to a batch of events per wake-up, in publish
+ * order. An event type with no listeners is dropped before it touches the ring, and a full ring drops
+ * the event and counts it rather than stalling the publisher. The dispatcher is started by the first
+ * publish and stopped by close() or an interrupt once it has caught up; a later publish starts a new one.
+ */
+public final class EventBus {
+	private static final long PARK_NANOS = 50_000_000L;
+	@SuppressWarnings("unchecked")
+	private static final BiConsumer<Object, Object>[] NO_LISTENERS = (BiConsumer<Object, Object>[]) new BiConsumer<?, ?>[0];
+	
+	private final String name;
+	private final Slot[] ring;
+	private final int mask;
+	private final int batchSize;
+	// Where a listener's exception goes, unless a listener of errorType threw it
+	private final int errorType;
+	private final BiConsumer<String, Exception> onListenerError;
+	private final AtomicReferenceArray<BiConsumer<Object, Object>[]> listeners;
+	private final AtomicLong claimed = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	// Also where the next dispatcher starts
+	private volatile long consumed;
+	private volatile boolean dispatcherWaiting;
+	private volatile Thread dispatcher;
+	private volatile boolean stopRequested;
+	
+	// Capacity is rounded up to a power of two. A listener that throws is reported to onListenerError,
+	// which normally publishes errorType; failures of errorType's own listeners are dropped, as reporting
+	// them would hand the same listener its own failure again.
+	public EventBus(String name, int eventTypes, int capacity, int batchSize, int errorType, BiConsumer<String, Exception> onListenerError) {
+		this.name = name;
+		this.errorType = errorType;
+		this.onListenerError = onListenerError;
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.ring = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Slot(i - size);
+		}
+		this.mask = size - 1;
+		this.batchSize = Math.max(1, batchSize);
+		this.listeners = new AtomicReferenceArray<>(eventTypes);
+		for (int i = 0; i < eventTypes; i++) {
+			listeners.set(i, NO_LISTENERS);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static <T> BiConsumer<Object, Object> listener(Consumer<T> handler) {
+		return (first, second) -> handler.accept((T) first);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static <T, U> BiConsumer<Object, Object> listener(BiConsumer<T, U> handler) {
+		return (first, second) -> handler.accept((T) first, (U) second);
+	}
+	
+	public static BiConsumer<Object, Object> listener(Runnable handler) {
+		return (first, second) -> handler.run();
+	}
+	
+	// Replaces every listener of the type; null leaves it with none.
+	public void set(int type, BiConsumer<Object, Object> listener) {
+		if (listener == null) {
+			listeners.set(type, NO_LISTENERS);
+			return;
+		}
+		BiConsumer<Object, Object>[] single = Arrays.copyOf(NO_LISTENERS, 1);
+		single[0] = listener;
+		listeners.set(type, single);
+	}
+	
+	public void add(int type, BiConsumer<Object, Object> listener) {
+		BiConsumer<Object, Object>[] current;
+		BiConsumer<Object, Object>[] updated;
+		do {
+			current = listeners.get(type);
+			updated = Arrays.copyOf(current, current.length + 1);
+			updated[current.length] = listener;
+		} while (!listeners.compareAndSet(type, current, updated));
+	}
+	
+	public boolean hasListeners(int type) {
+		return listeners.get(type).length > 0;
+	}
+	
+	public void publish(int type, Object first, Object second) {
+		if (listeners.get(type).length == 0) {
+			return;
+		}
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed >= ring.length) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+		
+		Slot slot = ring[(int) sequence & mask];
+		slot.type = type;
+		slot.first = first;
+		slot.second = second;
+		slot.published = sequence;
+		
+		Thread current = dispatcher;
+		if (current == null) {
+			current = startDispatcher();
+		}
+		if (dispatcherWaiting) {
+			LockSupport.unpark(current);
+		}
+	}
+	
+	// Events lost because the ring was full.
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+	
+	// Stops the dispatcher once it has delivered everything already published. Does not wait for it, so
+	// listeners may call it too.
+	public void close() {
+		stopRequested = true;
+		Thread current = dispatcher;
+		if (current != null) {
+			LockSupport.unpark(current);
+		}
+	}
+	
+	private synchronized Thread startDispatcher() {
+		if (dispatcher == null) {
+			Thread thread = new Thread(this::dispatchLoop, name + "-events");
+			thread.setDaemon(true);
+			dispatcher = thread;
+			thread.start();
+		}
+		return dispatcher;
+	}
+	
+	// Called by an idle dispatcher that was asked to stop. A publish that saw it still running may have
+	// claimed a slot after it last looked, so it looks again once it has stepped down, and carries on if
+	// something arrived and no other dispatcher took over.
+	private boolean retire(long next) {
+		synchronized (this) {
+			stopRequested = false;
+			dispatcher = null;
+		}
+		if (ring[(int) next & mask].published == next) {
+			synchronized (this) {
+				if (dispatcher == null) {
+					// Tries again once it has caught up
+					dispatcher = Thread.currentThread();
+					stopRequested = true;
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private void dispatchLoop() {
+		long next = consumed;
+		while (true) {
+			int dispatched = 0;
+			Slot slot;
+			while (dispatched < batchSize && (slot = ring[(int) next & mask]).published == next) {
+				int type = slot.type;
+				Object first = slot.first;
+				Object second = slot.second;
+				slot.first = null;
+				slot.second = null;
+				consumed = ++next;
+				dispatch(type, first, second);
+				dispatched++;
+			}
+			if (dispatched == 0) {
+				if ((stopRequested || Thread.interrupted()) && retire(next)) {
+					return;
+				}
+				dispatcherWaiting = true;
+				if (ring[(int) next & mask].published != next) {
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+				dispatcherWaiting = false;
+			}
+		}
+	}
+	
+	private void dispatch(int type, Object first, Object second) {
+		for (BiConsumer<Object, Object> listener : listeners.get(type)) {
+			try {
+				listener.accept(first, second);
+			} catch (RuntimeException e) {
+				// One failing listener must not take down the dispatcher or starve the others
+				if (type != errorType) {
+					onListenerError.accept("Error in " + name + " event listener", e);
+				}
+			}
+		}
+	}
+	
+	private static final class Slot {
+		private volatile long published;
+		private int type;
+		private Object first;
+		private Object second;
+		
+		Slot(long published) {
+			this.published = published;
+		}
+	}
+}
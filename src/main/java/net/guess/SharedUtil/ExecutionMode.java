@@ -0,0 +1,36 @@
+package net.guess.SharedUtil;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * How connection handlers, reader loops and file transfers get their threads.
+ * VIRTUAL_THREADS lets the blocking code paths scale to tens of thousands of connections
+ * without a platform thread stack per connection.
+ */
+public enum ExecutionMode {
+	PLATFORM_THREADS,
+	VIRTUAL_THREADS;
+	
+	public ThreadFactory threadFactory(String namePrefix) {
+		if (this == VIRTUAL_THREADS) {
+			return Thread.ofVirtual().name(namePrefix + "-", 0).factory();
+		}
+		return Thread.ofPlatform().name(namePrefix + "-", 0).factory();
+	}
+	
+	public Thread start(String name, Runnable task) {
+		if (this == VIRTUAL_THREADS) {
+			return Thread.ofVirtual().name(name).start(task);
+		}
+		return Thread.ofPlatform().name(name).start(task);
+	}
+	
+	public ExecutorService newExecutor(String namePrefix) {
+		if (this == VIRTUAL_THREADS) {
+			return Executors.newThreadPerTaskExecutor(threadFactory(namePrefix));
+		}
+		return Executors.newCachedThreadPool(threadFactory(namePrefix));
+	}
+}
@@ -0,0 +1,87 @@
+package net.guess.SharedUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.zip.Checksum;
+
+/**
+ * File helpers shared by the sending and receiving ends of a transfer. Received files are always
+ * written to {@code <target>.part} and renamed over the target only once complete, so readers of the
+ * target never see a partial file.
+ */
+public final class FileTransfers {
+	private FileTransfers() {
+	}
+	
+	public static Path partialFile(Path target) {
+		return target.resolveSibling(target.getFileName() + ".part");
+	}
+	
+	// Empty, and only if the disk has room for length bytes; see requireSpace.
+	public static FileChannel openPartial(Path target, long length) throws IOException {
+		Path partial = partialFile(target);
+		FileChannel fileChannel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			// Checked after truncating, so the space an older partial file held counts as free
+			requireSpace(partial, length);
+		} catch (IOException e) {
+			fileChannel.close();
+			Files.deleteIfExists(partial);
+			throw e;
+		}
+		return fileChannel;
+	}
+	
+	// Fails before the first byte arrives, rather than partway through a multi-GB transfer, when the file's
+	// store has less than bytes free. Java cannot reserve the space, and writing zeros first would double the
+	// disk traffic, so another writer can still fill the disk in the meantime.
+	public static void requireSpace(Path file, long bytes) throws IOException {
+		long usable = Files.getFileStore(file.toAbsolutePath().getParent()).getUsableSpace();
+		if (usable < bytes) {
+			throw new IOException("Not enough disk space for " + file.getFileName() + ": " + bytes + " bytes needed, " + usable + " free");
+		}
+	}
+	
+	// Feeds the first length bytes of the file (or all of it, if shorter) into checksum and returns how many there were.
+	public static long checksum(FileChannel fileChannel, long length, Checksum checksum) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Frames.CHUNK_SIZE * 16);
+		long position = 0;
+		while (position < length) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+			int read = fileChannel.read(buffer, position);
+			if (read == -1) {
+				break;
+			}
+			checksum.update(buffer.flip());
+			position += read;
+		}
+		return position;
+	}
+	
+	public static void commit(Path temp, Path target) throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	public static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) == -1) {
+				throw new EOFException("Connection closed with " + buffer.remaining() + " bytes outstanding");
+			}
+		}
+	}
+	
+	public static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incremental frame parser that works the same for blocking reads and selector-driven reads.
+ * Payload buffers handed to the handler are views into the decoder's buffer and are only valid
+ * for the duration of the callback.
+ */
+public final class FrameDecoder {
+	@FunctionalInterface
+	public interface FrameHandler {
+		void onFrame(byte type, byte flags, int streamId, ByteBuffer payload) throws IOException;
+	}
+	
+	private ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+	
+	// Reads whatever is available and dispatches every complete frame. Returns -1 at end of stream.
+	public int readFrom(ReadableByteChannel in, FrameHandler handler) throws IOException {
+		int read = in.read(buffer);
+		if (read == -1) {
+			return -1;
+		}
+		
+		buffer.flip();
+		int needed = 0;
+		while (buffer.remaining() >= Frames.HEADER_LENGTH) {
+			int start = buffer.position();
+			int length = buffer.getInt(start);
+			if (length < 0 || length > Frames.MAX_PAYLOAD_LENGTH) {
+				throw new IOException("Invalid frame length " + length);
+			}
+			if (buffer.remaining() < Frames.HEADER_LENGTH + length) {
+				needed = Frames.HEADER_LENGTH + length;
+				break;
+			}
+			byte type = buffer.get(start + 4);
+			byte flags = buffer.get(start + 5);
+			int streamId = buffer.getInt(start + 6);
+			ByteBuffer payload = buffer.slice(start + Frames.HEADER_LENGTH, length);
+			buffer.position(start + Frames.HEADER_LENGTH + length);
+			handler.onFrame(type, flags, streamId, payload);
+		}
+		buffer.compact();
+		
+		if (needed > buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(needed);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		return read;
+	}
+}
@@ -0,0 +1,10 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+@FunctionalInterface
+public interface FrameSink {
+	// Takes ownership of the buffer; callers must not reuse it after handing it over.
+	void writeFrame(ByteBuffer frame) throws IOException;
+}
@@ -0,0 +1,101 @@
+package net.guess.SharedUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary frames shared by both ends of a connection.
+ * <pre>
+ * [int payloadLength][byte type][byte flags][int streamId][payload]
+ * </pre>
+ * Control messages travel on stream 0; every file transfer gets its own stream id so its chunks can
+ * interleave with messages and with other transfers on the same socket.
+ */
+public final class Frames {
+	public static final int HEADER_LENGTH = 10;
+	public static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+	public static final int CHUNK_SIZE = 64 * 1024;
+	
+	public static final byte MESSAGE = 1;
+	// server -> client: [long length][long version][UTF-8 file name]; the version identifies the file's content
+	public static final byte FILE_OFFER = 2;
+	// client -> server: [byte mode], plus [long offset] for MODE_RESUME; a delta accept is followed by the
+	// client's signature on the same stream
+	public static final byte FILE_ACCEPT = 3;
+	public static final byte STREAM_DATA = 4;
+	// [long total bytes][int CRC32C of the whole file]; 0 for delta transfers, which carry their own MD5, and for signatures
+	public static final byte STREAM_END = 5;
+	// [UTF-8 reason]
+	public static final byte STREAM_CANCEL = 6;
+	// server -> client: [long offset][bytes]; part of a range of a parallel transfer
+	public static final byte RANGE_DATA = 7;
+	// server -> client: [long offset][long length][int CRC32C of the range]; follows the range's last RANGE_DATA on the same connection
+	public static final byte RANGE_END = 8;
+	
+	// The payload is [int originalLength][codec output] using the codec negotiated for the connection
+	public static final byte FLAG_COMPRESSED = 0x01;
+	
+	public static final byte MODE_FULL = 0;
+	public static final byte MODE_DELTA = 1;
+	// The file arrives as ranges spread over this connection and the client's data connections; STREAM_END
+	// follows on this connection once every range has been queued
+	public static final byte MODE_PARALLEL = 2;
+	// The client already holds the offered version up to the offset; only the rest is sent
+	public static final byte MODE_RESUME = 3;
+	
+	private Frames() {
+	}
+	
+	public static ByteBuffer header(byte type, byte flags, int streamId, int payloadLength) {
+		return ByteBuffer.allocate(HEADER_LENGTH).putInt(payloadLength).put(type).put(flags).putInt(streamId).flip();
+	}
+	
+	public static ByteBuffer frame(byte type, byte flags, int streamId, ByteBuffer payload) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.remaining());
+		frame.putInt(payload.remaining()).put(type).put(flags).putInt(streamId).put(payload);
+		return frame.flip();
+	}
+	
+	public static ByteBuffer message(String text) {
+		return message(0, text);
+	}
+	
+	// Sequenced messages carry their number where other frames carry a stream id; 0 means not sequenced.
+	public static ByteBuffer message(int sequence, String text) {
+		return frame(MESSAGE, (byte) 0, sequence, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	public static ByteBuffer fileOffer(int streamId, long length, long version, String name) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		return frame(FILE_OFFER, (byte) 0, streamId, ByteBuffer.allocate(2 * Long.BYTES + nameBytes.length).putLong(length).putLong(version).put(nameBytes).flip());
+	}
+	
+	public static ByteBuffer fileAccept(int streamId, byte mode) {
+		return frame(FILE_ACCEPT, (byte) 0, streamId, ByteBuffer.allocate(1).put(mode).flip());
+	}
+	
+	public static ByteBuffer fileResume(int streamId, long offset) {
+		return frame(FILE_ACCEPT, (byte) 0, streamId, ByteBuffer.allocate(1 + Long.BYTES).put(MODE_RESUME).putLong(offset).flip());
+	}
+	
+	public static ByteBuffer streamEnd(int streamId, long totalBytes, int checksum) {
+		return frame(STREAM_END, (byte) 0, streamId, ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(totalBytes).putInt(checksum).flip());
+	}
+	
+	// Header plus offset for a RANGE_DATA frame whose body of length bytes is written separately.
+	public static ByteBuffer rangeHeader(int streamId, long offset, int length) {
+		return ByteBuffer.allocate(HEADER_LENGTH + Long.BYTES).putInt(Long.BYTES + length).put(RANGE_DATA).put((byte) 0).putInt(streamId).putLong(offset).flip();
+	}
+	
+	public static ByteBuffer rangeEnd(int streamId, long offset, long length, int checksum) {
+		return frame(RANGE_END, (byte) 0, streamId, ByteBuffer.allocate(2 * Long.BYTES + Integer.BYTES).putLong(offset).putLong(length).putInt(checksum).flip());
+	}
+	
+	public static ByteBuffer streamCancel(int streamId, String reason) {
+		return frame(STREAM_CANCEL, (byte) 0, streamId, ByteBuffer.wrap(reason.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	public static String text(ByteBuffer payload) {
+		return StandardCharsets.UTF_8.decode(payload).toString();
+	}
+}
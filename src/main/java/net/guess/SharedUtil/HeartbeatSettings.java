@@ -0,0 +1,20 @@
+package net.guess.SharedUtil;
+
+import java.time.Duration;
+
+// How often the server sends heartbeats and how many may go unanswered before a peer counts as dead.
+// The server announces its interval in every heartbeat, so clients time out against the server's actual interval.
+public record HeartbeatSettings(Duration interval, int maxMissed) {
+	public static final HeartbeatSettings DEFAULT = new HeartbeatSettings(Duration.ofSeconds(5), 3);
+	
+	public HeartbeatSettings {
+		if (interval.isNegative() || interval.isZero() || maxMissed < 1) {
+			throw new IllegalArgumentException("Heartbeat interval and missed beats must be positive");
+		}
+	}
+	
+	// How long a peer may stay silent before it is dropped.
+	public Duration timeout() {
+		return interval.multipliedBy(maxMissed);
+	}
+}
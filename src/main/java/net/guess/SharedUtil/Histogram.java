@@ -0,0 +1,94 @@
+package net.guess.SharedUtil;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in nanoseconds, in a fixed amount of memory. Each power of two is split into
+ * eight linear buckets, so any recorded value lands in a bucket at most 12.5% wide and quantiles are
+ * accurate to that much. Recording is a few atomic increments and never allocates.
+ */
+public final class Histogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values below SUB_BUCKETS get a bucket each; every higher power of two up to 2^62 gets SUB_BUCKETS
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+	
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+	
+	// Records the time since a System.nanoTime() reading.
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+	
+	public long getCount() {
+		return count.sum();
+	}
+	
+	// Values recorded while the snapshot is taken may or may not be included.
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			total += copy[i];
+		}
+		long highest = max.get();
+		return new Snapshot(total, sum.sum(), highest, quantile(copy, total, 0.5, highest), quantile(copy, total, 0.99, highest), quantile(copy, total, 0.999, highest));
+	}
+	
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	// The highest value that lands in the bucket, so quantiles err on the slow side.
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+	}
+	
+	private static long quantile(long[] counts, long total, double quantile, long max) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), max);
+			}
+		}
+		return max;
+	}
+	
+	// All values in nanoseconds.
+	public record Snapshot(long count, long sum, long max, long p50, long p99, long p999) {
+		public double mean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, gauges and latency histograms, each optionally split by labels such as a session id.
+ * Metrics are created once and then updated without going through the registry, so the registry is
+ * only touched when a series is added or removed and when it is read. Readable as Prometheus text
+ * (see {@link MetricsEndpoint}) and over JMX.
+ */
+public class Metrics {
+	private final String prefix;
+	private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+	private ObjectName objectName;
+	
+	// Every metric name is prefixed with prefix + "_"
+	public Metrics(String prefix) {
+		this.prefix = prefix;
+	}
+	
+	public String getPrefix() {
+		return prefix;
+	}
+	
+	// Labels are given as name, value pairs. Returns the existing counter if the series is already registered.
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, help, Type.COUNTER).series.computeIfAbsent(labelsOf(labels), l -> new Counter());
+	}
+	
+	// A counter whose value is owned elsewhere, e.g. a count another component already keeps.
+	public void counter(String name, String help, LongSupplier value, String... labels) {
+		family(name, help, Type.COUNTER).series.put(labelsOf(labels), value);
+	}
+	
+	// A counter of time owned elsewhere, kept in nanoseconds. Prometheus gets it in seconds, JMX in nanoseconds.
+	public void secondsCounter(String name, String help, LongSupplier nanos, String... labels) {
+		family(name, help, Type.COUNTER).series.put(labelsOf(labels), new Nanos(nanos));
+	}
+	
+	public void gauge(String name, String help, LongSupplier value, String... labels) {
+		family(name, help, Type.GAUGE).series.put(labelsOf(labels), value);
+	}
+	
+	public Histogram histogram(String name, String help, String... labels) {
+		return (Histogram) family(name, help, Type.HISTOGRAM).series.computeIfAbsent(labelsOf(labels), l -> new Histogram());
+	}
+	
+	public void histogram(String name, String help, Histogram histogram, String... labels) {
+		family(name, help, Type.HISTOGRAM).series.put(labelsOf(labels), histogram);
+	}
+	
+	// Drops every series with exactly these labels, e.g. everything recorded for a session that has closed.
+	public void remove(String... labels) {
+		String key = labelsOf(labels);
+		for (Family family : families.values()) {
+			family.series.remove(key);
+		}
+	}
+	
+	private Family family(String name, String help, Type type) {
+		Family family = families.computeIfAbsent(prefix + "_" + name, n -> new Family(n, help, type));
+		if (family.type != type) {
+			throw new IllegalArgumentException(family.name + " is already registered as a " + family.type);
+		}
+		return family;
+	}
+	
+	// Writes every series in the Prometheus text format. Histograms are written as summaries in seconds.
+	public void writePrometheus(Appendable out) throws IOException {
+		for (Family family : families.values()) {
+			if (family.series.isEmpty()) {
+				continue;
+			}
+			out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type.prometheusType).append('\n');
+			for (Map.Entry<String, Object> series : family.series.entrySet()) {
+				String labels = series.getKey();
+				if (series.getValue() instanceof Histogram histogram) {
+					Histogram.Snapshot snapshot = histogram.snapshot();
+					writeQuantile(out, family.name, labels, "0.5", snapshot.p50());
+					writeQuantile(out, family.name, labels, "0.99", snapshot.p99());
+					writeQuantile(out, family.name, labels, "0.999", snapshot.p999());
+					writeSample(out, family.name + "_sum", labels, seconds(snapshot.sum()));
+					writeSample(out, family.name + "_count", labels, Long.toString(snapshot.count()));
+				} else if (series.getValue() instanceof Nanos nanos) {
+					writeSample(out, family.name, labels, seconds(nanos.value().getAsLong()));
+				} else {
+					writeSample(out, family.name, labels, Long.toString(valueOf(series.getValue())));
+				}
+			}
+		}
+	}
+	
+	private static void writeQuantile(Appendable out, String name, String labels, String quantile, long nanos) throws IOException {
+		String quantileLabel = "quantile=\"" + quantile + "\"";
+		writeSample(out, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel, seconds(nanos));
+	}
+	
+	private static void writeSample(Appendable out, String name, String labels, String value) throws IOException {
+		out.append(name);
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+	
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+	
+	// Current value of a counter or gauge series.
+	static long valueOf(Object metric) {
+		if (metric instanceof Counter counter) {
+			return counter.get();
+		}
+		return metric instanceof Nanos nanos ? nanos.value().getAsLong() : ((LongSupplier) metric).getAsLong();
+	}
+	
+	// Visits every series as (name{labels}, counter, gauge or histogram).
+	void forEachSeries(BiConsumer<String, Object> visitor) {
+		for (Family family : families.values()) {
+			for (Map.Entry<String, Object> series : family.series.entrySet()) {
+				String labels = series.getKey();
+				visitor.accept(labels.isEmpty() ? family.name : family.name + "{" + labels + "}", series.getValue());
+			}
+		}
+	}
+	
+	// Registers under net.guess:type=Metrics,name=<prefix>. Counters and gauges become long attributes;
+	// each histogram adds count, p50, p99, p999 and max attributes in nanoseconds, as do seconds counters.
+	public synchronized ObjectName registerMBean() throws JMException {
+		if (objectName == null) {
+			ObjectName name = ObjectName.getInstance("net.guess:type=Metrics,name=" + ObjectName.quote(prefix));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), name);
+			objectName = name;
+		}
+		return objectName;
+	}
+	
+	public synchronized void unregisterMBean() throws JMException {
+		if (objectName != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			objectName = null;
+		}
+	}
+	
+	private static String labelsOf(String... labels) {
+		if (labels.length == 0) {
+			return "";
+		}
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be name, value pairs");
+		}
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				key.append(',');
+			}
+			key.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int c = 0; c < value.length(); c++) {
+				char ch = value.charAt(c);
+				switch (ch) {
+					case '\\' -> key.append("\\\\");
+					case '"' -> key.append("\\\"");
+					case '\n' -> key.append("\\n");
+					default -> key.append(ch);
+				}
+			}
+			key.append('"');
+		}
+		return key.toString();
+	}
+	
+	private enum Type {
+		COUNTER("counter"),
+		GAUGE("gauge"),
+		HISTOGRAM("summary");
+		
+		private final String prometheusType;
+		
+		Type(String prometheusType) {
+			this.prometheusType = prometheusType;
+		}
+	}
+	
+	private record Nanos(LongSupplier value) {
+	}
+	
+	private static final class Family {
+		private final String name;
+		private final String help;
+		private final Type type;
+		// Keyed by the rendered label set; values are Counter, LongSupplier, Nanos or Histogram
+		private final Map<String, Object> series = new ConcurrentHashMap<>();
+		
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+}
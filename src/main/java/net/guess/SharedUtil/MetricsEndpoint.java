@@ -0,0 +1,79 @@
+package net.guess.SharedUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Serves one or more metrics registries as Prometheus text on GET /metrics. Binds to the loopback
+ * interface unless given an address, and answers scrapes on a single thread of its own.
+ */
+public class MetricsEndpoint {
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	private final InetSocketAddress address;
+	private final List<Metrics> registries;
+	private HttpServer httpServer;
+	
+	public MetricsEndpoint(int port, Metrics... registries) {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), registries);
+	}
+	
+	public MetricsEndpoint(InetSocketAddress address, Metrics... registries) {
+		this.address = address;
+		this.registries = List.of(registries);
+	}
+	
+	public synchronized void start() throws IOException {
+		if (httpServer != null) {
+			return;
+		}
+		HttpServer server = HttpServer.create(address, 0);
+		server.createContext("/metrics", this::handle);
+		server.start();
+		httpServer = server;
+	}
+	
+	public synchronized void stop() {
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+	}
+	
+	// The bound port, which differs from the requested one when that was 0.
+	public synchronized int getPort() {
+		return httpServer != null ? httpServer.getAddress().getPort() : address.getPort();
+	}
+	
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			String method = exchange.getRequestMethod();
+			if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			StringBuilder text = new StringBuilder(4096);
+			for (Metrics registry : registries) {
+				registry.writePrometheus(text);
+			}
+			byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if ("HEAD".equals(method)) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+}
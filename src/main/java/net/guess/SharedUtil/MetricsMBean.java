@@ -0,0 +1,86 @@
+package net.guess.SharedUtil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+// Read-only JMX view of a Metrics registry. The attribute set follows the registry, so series added
+// or removed for sessions show up on the next read.
+final class MetricsMBean implements DynamicMBean {
+	private final Metrics metrics;
+	
+	MetricsMBean(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	private Map<String, Long> values() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		metrics.forEachSeries((name, metric) -> {
+			if (metric instanceof Histogram histogram) {
+				Histogram.Snapshot snapshot = histogram.snapshot();
+				values.put(name + ".count", snapshot.count());
+				values.put(name + ".p50", snapshot.p50());
+				values.put(name + ".p99", snapshot.p99());
+				values.put(name + ".p999", snapshot.p999());
+				values.put(name + ".max", snapshot.max());
+			} else {
+				values.put(name, Metrics.valueOf(metric));
+			}
+		});
+		return values;
+	}
+	
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = values().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Long> values = values();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (String name : values().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics " + metrics.getPrefix(), attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+	}
+}
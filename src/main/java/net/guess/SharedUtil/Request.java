@@ -0,0 +1,76 @@
+package net.guess.SharedUtil;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request from the other end of a connection, answered exactly once: by reply, by fail, or not at all
+ * if the asker cancels first. Handlers may answer on any thread and at any time; later answers are ignored.
+ */
+public final class Request {
+	private final RequestChannel channel;
+	private final long id;
+	private final Command command;
+	private final AtomicBoolean done = new AtomicBoolean();
+	private volatile boolean cancelled;
+	private volatile CompletableFuture<String> pending;
+	
+	Request(RequestChannel channel, long id, String text) {
+		this.channel = channel;
+		this.id = id;
+		this.command = Command.of(text);
+	}
+	
+	long getId() {
+		return id;
+	}
+	
+	// What is asked for; name() is the first word. Owns its bytes, so it stays valid after the handler returns.
+	public Command command() {
+		return command;
+	}
+	
+	public void reply(String payload) {
+		if (done.compareAndSet(false, true)) {
+			channel.finished(this, payload.isEmpty() ? "RESPONSE " + id : "RESPONSE " + id + " " + payload);
+		}
+	}
+	
+	public void fail(String reason) {
+		if (done.compareAndSet(false, true)) {
+			channel.finished(this, "REQUEST_FAILED " + id + " " + reason);
+		}
+	}
+	
+	// Replies with the future's result once it is done. Cancelling the request cancels the future.
+	public void replyWith(CompletableFuture<String> result) {
+		pending = result;
+		result.whenComplete((payload, e) -> {
+			if (e == null) {
+				reply(payload);
+			} else {
+				Throwable cause = e.getCause() != null ? e.getCause() : e;
+				fail(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+			}
+		});
+		if (isCancelled()) {
+			result.cancel(false);
+		}
+	}
+	
+	// True once the asker gave up or the connection closed; long-running handlers can check it and stop.
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	void cancel() {
+		if (done.compareAndSet(false, true)) {
+			cancelled = true;
+			channel.finished(this, null);
+			CompletableFuture<String> result = pending;
+			if (result != null) {
+				result.cancel(false);
+			}
+		}
+	}
+}
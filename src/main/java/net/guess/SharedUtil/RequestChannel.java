@@ -0,0 +1,177 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The request/response layer of one connection, used the same way by both ends. Every request carries an
+ * id the reply echoes, so any number can be in flight at once and replies may come back in any order:
+ * REQUEST <id> <request>, answered by RESPONSE <id> [payload] or REQUEST_FAILED <id> <reason>, and
+ * CANCEL <id> when the asker gives up. Timeouts run on the shared timing wheel.
+ */
+public final class RequestChannel {
+	// Requests from the other end being served at once; more are refused rather than queued
+	public static final int MAX_SERVING = 1024;
+	
+	private final FrameSink sink;
+	private final TimingWheel timingWheel = TimingWheel.shared();
+	private final AtomicLong nextId = new AtomicLong();
+	// Requests we sent, by id, until their reply arrives
+	private final Map<Long, CompletableFuture<String>> outgoing = new ConcurrentHashMap<>();
+	// Requests the other end sent, by id, until we reply
+	private final Map<Long, Request> serving = new ConcurrentHashMap<>();
+	
+	public RequestChannel(FrameSink sink) {
+		this.sink = sink;
+	}
+	
+	// Whether the message belongs to this layer rather than to the application.
+	public static boolean handles(String message) {
+		return message.startsWith("REQUEST ") || message.startsWith("RESPONSE ") || message.startsWith("REQUEST_FAILED ") || message.startsWith("CANCEL ");
+	}
+	
+	// Sends the request, whose first word names what is asked for, and returns at once. The future completes
+	// with the reply payload, or fails with an IOException carrying the other end's reason if it refused or
+	// the connection went away, or with TimeoutException. Cancelling it tells the other end to stop.
+	public CompletableFuture<String> request(String request, Duration timeout) {
+		CompletableFuture<String> result = new CompletableFuture<>();
+		request(request, timeout, result);
+		return result;
+	}
+	
+	// As above, completing the given future, for callers that need work attached before the reply can arrive.
+	// A reply completes it on the connection's reader thread before the next message is read.
+	public void request(String request, Duration timeout, CompletableFuture<String> result) {
+		if (request.isBlank()) {
+			throw new IllegalArgumentException("Empty request");
+		}
+		long id = nextId.incrementAndGet();
+		outgoing.put(id, result);
+		TimingWheel.Timeout timer = timingWheel.schedule(() -> {
+			// Off the wheel thread, since completing runs whatever the caller chained onto the future
+			CompletableFuture.runAsync(() -> result.completeExceptionally(new TimeoutException("No reply to " + describe(request) + " within " + timeout.toMillis() + " ms")));
+		}, timeout.toNanos(), TimeUnit.NANOSECONDS);
+		result.whenComplete((payload, e) -> {
+			timer.cancel();
+			// Still registered means no reply arrived: timed out, cancelled or completed by the caller
+			if (outgoing.remove(id) != null) {
+				send("CANCEL " + id);
+			}
+		});
+		try {
+			sink.writeFrame(Frames.message("REQUEST " + id + " " + request));
+		} catch (IOException e) {
+			outgoing.remove(id);
+			result.completeExceptionally(e);
+		}
+	}
+	
+	// Handles a message for which handles() is true. Requests are passed to the dispatcher, which replies
+	// through the Request now or later, from any thread.
+	public void onMessage(String message, Consumer<Request> dispatcher) {
+		int idStart = message.indexOf(' ') + 1;
+		int idEnd = message.indexOf(' ', idStart);
+		String kind = message.substring(0, idStart - 1);
+		long id;
+		try {
+			id = Long.parseLong(idEnd < 0 ? message.substring(idStart) : message.substring(idStart, idEnd));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		String rest = idEnd < 0 ? "" : message.substring(idEnd + 1);
+		switch (kind) {
+			case "REQUEST" -> serve(id, rest, dispatcher);
+			case "RESPONSE" -> {
+				CompletableFuture<String> result = outgoing.remove(id);
+				if (result != null) {
+					result.complete(rest);
+				}
+			}
+			case "REQUEST_FAILED" -> {
+				CompletableFuture<String> result = outgoing.remove(id);
+				if (result != null) {
+					result.completeExceptionally(new IOException(rest.isEmpty() ? "Request failed" : rest));
+				}
+			}
+			case "CANCEL" -> {
+				Request request = serving.get(id);
+				if (request != null) {
+					request.cancel();
+				}
+			}
+			default -> {
+			}
+		}
+	}
+	
+	private void serve(long id, String text, Consumer<Request> dispatcher) {
+		if (text.isBlank()) {
+			send("REQUEST_FAILED " + id + " Empty request");
+			return;
+		}
+		if (serving.size() >= MAX_SERVING) {
+			send("REQUEST_FAILED " + id + " Too many requests in flight");
+			return;
+		}
+		Request request = new Request(this, id, text);
+		if (serving.putIfAbsent(id, request) != null) {
+			send("REQUEST_FAILED " + id + " Duplicate request id");
+			return;
+		}
+		try {
+			dispatcher.accept(request);
+		} catch (RuntimeException e) {
+			request.fail(e.toString());
+		}
+	}
+	
+	// Called once per request, by whichever of reply, fail or cancel got there first.
+	void finished(Request request, String reply) {
+		serving.remove(request.getId());
+		if (reply != null) {
+			send(reply);
+		}
+	}
+	
+	// The connection is gone: every request still waiting fails, and requests being served are cancelled
+	// since nobody is left to read their replies. The channel stays usable for the next connection.
+	public void failAll(String reason) {
+		for (Long id : outgoing.keySet()) {
+			CompletableFuture<String> result = outgoing.remove(id);
+			if (result != null) {
+				result.completeExceptionally(new IOException(reason));
+			}
+		}
+		for (Request request : serving.values()) {
+			request.cancel();
+		}
+	}
+	
+	public int getPendingCount() {
+		return outgoing.size();
+	}
+	
+	public int getServingCount() {
+		return serving.size();
+	}
+	
+	// Replies and cancel notices are best effort: if they cannot be written the connection is closing anyway.
+	private void send(String message) {
+		try {
+			sink.writeFrame(Frames.message(message));
+		} catch (IOException ignored) {
+		}
+	}
+	
+	private static String describe(String request) {
+		int end = request.indexOf(' ');
+		return end < 0 ? request : request.substring(0, end);
+	}
+}
@@ -0,0 +1,52 @@
+package net.guess.SharedUtil;
+
+/**
+ * Smoothed round-trip time for one connection. The smoothed value and its variation follow RFC 6298
+ * (gains 1/8 and 1/4); jitter is the RFC 3550 running mean of the change between consecutive samples.
+ * Samples come from a single thread; the getters may be read from any thread. All values are nanoseconds.
+ */
+public final class RttEstimator {
+	private volatile long last = -1;
+	private volatile long smoothed = -1;
+	private volatile long variation;
+	private volatile long jitter;
+	private volatile long samples;
+	
+	public void sample(long rtt) {
+		long previous = last;
+		if (smoothed < 0) {
+			smoothed = rtt;
+			variation = rtt / 2;
+		} else {
+			variation += (Math.abs(smoothed - rtt) - variation) / 4;
+			smoothed += (rtt - smoothed) / 8;
+		}
+		if (previous >= 0) {
+			jitter += (Math.abs(rtt - previous) - jitter) / 16;
+		}
+		last = rtt;
+		samples++;
+	}
+	
+	// The most recent sample, or -1 before the first.
+	public long getLast() {
+		return last;
+	}
+	
+	// -1 before the first sample.
+	public long getSmoothed() {
+		return smoothed;
+	}
+	
+	public long getVariation() {
+		return variation;
+	}
+	
+	public long getJitter() {
+		return jitter;
+	}
+	
+	public long getSampleCount() {
+		return samples;
+	}
+}
@@ -0,0 +1,104 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The receiving half of a stream: the connection's reader thread offers STREAM_DATA payloads and
+ * a worker thread consumes them as an ordinary blocking ReadableByteChannel.
+ */
+public class StreamInputChannel implements ReadableByteChannel {
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+	
+	private final BlockingQueue<ByteBuffer> chunks;
+	private final long maxLength;
+	private long offered;
+	private ByteBuffer current;
+	private volatile String failure;
+	private volatile boolean open = true;
+	
+	// A bounded capacity pushes back on the reader thread; selector threads must use an unbounded one.
+	public StreamInputChannel(int capacity) {
+		this(capacity, Long.MAX_VALUE);
+	}
+	
+	// Unbounded queues should bound the stream instead: a peer that sends more than maxLength bytes fails it.
+	public StreamInputChannel(int capacity, long maxLength) {
+		this.chunks = capacity > 0 ? new LinkedBlockingQueue<>(capacity) : new LinkedBlockingQueue<>();
+		this.maxLength = maxLength;
+	}
+	
+	// Copies the payload, which is only valid during the frame callback. Called by one reader thread at a time.
+	public void offer(ByteBuffer payload) throws InterruptedIOException {
+		if (failure != null) {
+			return;
+		}
+		offered += payload.remaining();
+		if (offered > maxLength) {
+			fail("Stream longer than the expected " + maxLength + " bytes");
+			return;
+		}
+		ByteBuffer copy = ByteBuffer.allocate(payload.remaining()).put(payload).flip();
+		try {
+			chunks.put(copy);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing stream data");
+		}
+	}
+	
+	public void finish() throws InterruptedIOException {
+		try {
+			chunks.put(END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while ending stream");
+		}
+	}
+	
+	// Never blocks: the consumer checks the failure after every take, so END only has to wake it if it is waiting.
+	public void fail(String reason) {
+		failure = reason;
+		chunks.clear();
+		chunks.offer(END);
+	}
+	
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new IOException("Stream closed");
+		}
+		while (current == null || !current.hasRemaining()) {
+			if (current == END) {
+				return -1;
+			}
+			try {
+				current = chunks.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for stream data");
+			}
+			if (failure != null) {
+				throw new IOException(failure);
+			}
+		}
+		int n = Math.min(dst.remaining(), current.remaining());
+		dst.put(current.slice(current.position(), n));
+		current.position(current.position() + n);
+		return n;
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+	
+	@Override
+	public void close() {
+		open = false;
+	}
+}
@@ -0,0 +1,67 @@
+package net.guess.SharedUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Adapts a stream id on a framed connection to a WritableByteChannel, cutting the written bytes
+ * into STREAM_DATA frames of at most {@link Frames#CHUNK_SIZE}. Closing flushes but does not end the stream.
+ */
+public class StreamOutputChannel implements WritableByteChannel {
+	private final FrameSink sink;
+	private final int streamId;
+	private ByteBuffer frame;
+	private boolean open = true;
+	
+	public StreamOutputChannel(FrameSink sink, int streamId) {
+		this.sink = sink;
+		this.streamId = streamId;
+		this.frame = newFrame();
+	}
+	
+	private static ByteBuffer newFrame() {
+		return ByteBuffer.allocate(Frames.HEADER_LENGTH + Frames.CHUNK_SIZE).position(Frames.HEADER_LENGTH);
+	}
+	
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int written = src.remaining();
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), frame.remaining());
+			frame.put(src.slice(src.position(), n));
+			src.position(src.position() + n);
+			if (!frame.hasRemaining()) {
+				flush();
+			}
+		}
+		return written;
+	}
+	
+	public void flush() throws IOException {
+		int payloadLength = frame.position() - Frames.HEADER_LENGTH;
+		if (payloadLength == 0) {
+			return;
+		}
+		frame.putInt(0, payloadLength).put(4, Frames.STREAM_DATA).put(5, (byte) 0).putInt(6, streamId);
+		sink.writeFrame(frame.flip());
+		frame = newFrame();
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (open) {
+			flush();
+			open = false;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package net.guess.SharedUtil;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Hashed timing wheel: one thread serves any number of timers at tick resolution. Scheduling and
+ * cancelling are O(1) and lock-free; timers are only sorted into slots by the wheel thread. Tasks run
+ * on the wheel thread and must be short and never block, so they typically just queue work elsewhere.
+ */
+public final class TimingWheel {
+	private static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int DEFAULT_SLOTS = 512;
+	private static TimingWheel shared;
+	
+	private final long tickNanos;
+	private final ArrayDeque<Timeout>[] slots;
+	private final int mask;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final long startTime = System.nanoTime();
+	private final Thread worker;
+	private volatile boolean stopped;
+	private long tick;
+	
+	@SuppressWarnings("unchecked")
+	public TimingWheel(String name, long tick, TimeUnit unit, int slotCount) {
+		this.tickNanos = Math.max(1, unit.toNanos(tick));
+		int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+		this.slots = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new ArrayDeque<>();
+		}
+		this.mask = size - 1;
+		this.worker = new Thread(this::run, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	// The process-wide wheel used by servers and clients unless they are given their own.
+	public static synchronized TimingWheel shared() {
+		if (shared == null) {
+			shared = new TimingWheel("timing-wheel", DEFAULT_TICK_NANOS, TimeUnit.NANOSECONDS, DEFAULT_SLOTS);
+		}
+		return shared;
+	}
+	
+	// Runs the task once after at least the delay, rounded up to the next tick. Should the task throw, the
+	// exception goes to the wheel thread's uncaught exception handler.
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return schedule(task, delay, unit, null);
+	}
+	
+	// As above, but the task's exceptions go to onFailure, usually an event manager's error trigger.
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit, BiConsumer<String, Exception> onFailure) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay), onFailure);
+		if (stopped) {
+			timeout.cancel();
+			return timeout;
+		}
+		pending.add(timeout);
+		return timeout;
+	}
+	
+	// Pending timers never run once stopped.
+	public void stop() {
+		stopped = true;
+		LockSupport.unpark(worker);
+	}
+	
+	private void run() {
+		while (!stopped) {
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long wait;
+			while ((wait = deadline - System.nanoTime()) > 0 && !stopped) {
+				LockSupport.parkNanos(this, wait);
+			}
+			transferPending();
+			expire(slots[(int) tick & mask]);
+			tick++;
+		}
+	}
+	
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			// The tick at whose end the deadline has passed; anything already late goes in the current slot
+			long due = Math.max(tick, Math.floorDiv(timeout.deadline - startTime + tickNanos - 1, tickNanos) - 1);
+			timeout.rounds = (due - tick) / slots.length;
+			slots[(int) due & mask].add(timeout);
+		}
+	}
+	
+	private void expire(ArrayDeque<Timeout> slot) {
+		for (Iterator<Timeout> iterator = slot.iterator(); iterator.hasNext(); ) {
+			Timeout timeout = iterator.next();
+			if (timeout.cancelled) {
+				iterator.remove();
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				iterator.remove();
+				timeout.fire();
+			}
+		}
+	}
+	
+	public static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private final BiConsumer<String, Exception> onFailure;
+		// Wheel thread only
+		private long rounds;
+		private volatile boolean cancelled;
+		private volatile boolean expired;
+		
+		private Timeout(Runnable task, long deadline, BiConsumer<String, Exception> onFailure) {
+			this.task = task;
+			this.deadline = deadline;
+			this.onFailure = onFailure;
+		}
+		
+		// Has no effect once the task has started.
+		public void cancel() {
+			cancelled = true;
+		}
+		
+		public boolean isCancelled() {
+			return cancelled;
+		}
+		
+		public boolean isExpired() {
+			return expired;
+		}
+		
+		private void fire() {
+			expired = true;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// A failing task must not stop the wheel for every other timer
+				if (onFailure != null) {
+					onFailure.accept("Timer task failed", e);
+				} else {
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package net.guess.ClientUtil;
+
+import net.guess.SharedUtil.FileTransfers;
+import net.guess.SharedUtil.Frames;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferCheckpointTest {
+	private static final long VERSION = 0x1234_5678_9ABCL;
+	
+	@TempDir
+	Path dir;
+	
+	@Test
+	void roundTripsThroughItsFile() throws IOException {
+		Path target = dir.resolve("file.bin");
+		Files.write(FileTransfers.partialFile(target), new byte[16]);
+		new TransferCheckpoint("file.bin", -1L, 1000, 512, 0xCAFEBABE).write(target);
+		
+		TransferCheckpoint read = TransferCheckpoint.read(target);
+		
+		assertEquals(new TransferCheckpoint("file.bin", -1L, 1000, 512, 0xCAFEBABE), read);
+		assertTrue(read.matches(-1L, 1000));
+		assertFalse(read.matches(-1L, 1001));
+		assertFalse(read.matches(0, 1000));
+	}
+	
+	@Test
+	void isIgnoredWithoutItsPartialFile() throws IOException {
+		Path target = dir.resolve("file.bin");
+		new TransferCheckpoint("file.bin", VERSION, 1000, 512, 0).write(target);
+		
+		assertNull(TransferCheckpoint.read(target));
+	}
+	
+	@Test
+	void resumesAnInterruptedTransferFromTheLastWholeChunk() throws IOException {
+		byte[] data = randomBytes(3 * Frames.CHUNK_SIZE + 1000);
+		Path target = dir.resolve("file.bin");
+		// Cut off part way through the third chunk
+		IncomingTransfer first = transferInto(target, data.length);
+		first.openFull();
+		first.onData(ByteBuffer.wrap(data, 0, Frames.CHUNK_SIZE));
+		first.onData(ByteBuffer.wrap(data, Frames.CHUNK_SIZE, Frames.CHUNK_SIZE));
+		first.onData(ByteBuffer.wrap(data, 2 * Frames.CHUNK_SIZE, 500));
+		assertTrue(first.interrupt("Disconnected"));
+		
+		TransferCheckpoint checkpoint = TransferCheckpoint.read(target);
+		assertNotNull(checkpoint);
+		assertEquals(2 * Frames.CHUNK_SIZE, checkpoint.committed());
+		assertTrue(checkpoint.matches(VERSION, data.length));
+		
+		IncomingTransfer resumed = transferInto(target, data.length);
+		assertTrue(resumed.openResume(checkpoint));
+		int offset = (int) checkpoint.committed();
+		resumed.onData(ByteBuffer.wrap(data, offset, data.length - offset));
+		
+		assertEquals(data.length, resumed.finishFull(data.length, crc(data)));
+		assertArrayEquals(data, Files.readAllBytes(target));
+		assertNull(TransferCheckpoint.read(target));
+		assertFalse(Files.exists(TransferCheckpoint.fileFor(target)));
+	}
+	
+	@Test
+	void refusesToResumeOntoAPartialFileThatNoLongerMatches() throws IOException {
+		byte[] data = randomBytes(2 * Frames.CHUNK_SIZE + 10);
+		Path target = dir.resolve("file.bin");
+		IncomingTransfer first = transferInto(target, data.length);
+		first.openFull();
+		first.onData(ByteBuffer.wrap(data, 0, 2 * Frames.CHUNK_SIZE));
+		assertTrue(first.interrupt("Disconnected"));
+		// Same length, different bytes: only the checksum can tell
+		try (FileChannel partial = FileChannel.open(FileTransfers.partialFile(target), StandardOpenOption.WRITE)) {
+			partial.write(ByteBuffer.wrap(new byte[] {(byte) ~data[100]}), 100);
+		}
+		
+		TransferCheckpoint checkpoint = TransferCheckpoint.read(target);
+		assertNotNull(checkpoint);
+		assertFalse(transferInto(target, data.length).openResume(checkpoint));
+	}
+	
+	private static IncomingTransfer transferInto(Path target, long length) {
+		return new IncomingTransfer(1, target.toString(), target.getFileName().toString(), length, VERSION, new CompletableFuture<>());
+	}
+	
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+	
+	private static int crc(byte[] data) {
+		CRC32C crc = new CRC32C();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+}
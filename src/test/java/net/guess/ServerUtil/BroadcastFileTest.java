@@ -0,0 +1,144 @@
+package net.guess.ServerUtil;
+
+import net.guess.ClientUtil.Client;
+import net.guess.SharedUtil.Frames;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BroadcastFileTest {
+	private static final int SESSIONS = 3;
+	
+	@TempDir
+	Path dir;
+	
+	@Test
+	void givesEveryConnectionTheSameFramesFromOneCopy() throws IOException {
+		byte[] data = randomBytes(2 * Frames.CHUNK_SIZE + 1234);
+		BroadcastFile broadcast = new BroadcastFile(FileContent.read(Files.write(dir.resolve("shared.bin"), data)), 7);
+		List<ByteArrayOutputStream> received = new ArrayList<>();
+		for (int i = 0; i < SESSIONS; i++) {
+			received.add(new ByteArrayOutputStream());
+		}
+		
+		// Connections take each chunk in turn and drain it a few bytes at a time, interleaved, so a shared
+		// position would show up as bytes missing from the later ones
+		for (long position = 0; position < data.length; position += Frames.CHUNK_SIZE) {
+			int chunkLength = (int) Math.min(Frames.CHUNK_SIZE, data.length - position);
+			List<ByteBuffer> views = new ArrayList<>();
+			for (int i = 0; i < SESSIONS; i++) {
+				ByteBuffer chunk = broadcast.chunk(position, chunkLength);
+				assertTrue(chunk.isReadOnly());
+				views.add(broadcast.chunkHeader(chunkLength));
+				views.add(chunk);
+			}
+			boolean draining = true;
+			while (draining) {
+				draining = false;
+				for (int i = 0; i < views.size(); i++) {
+					ByteBuffer view = views.get(i);
+					int step = Math.min(view.remaining(), 1000 + i);
+					byte[] bytes = new byte[step];
+					view.get(bytes);
+					received.get(i / 2).write(bytes, 0, step);
+					draining |= view.hasRemaining();
+				}
+			}
+		}
+		
+		byte[] expected = framed(data, 7);
+		for (ByteArrayOutputStream stream : received) {
+			assertArrayEquals(expected, stream.toByteArray());
+		}
+	}
+	
+	@Test
+	void sendsOneReadOfTheFileToEverySession() throws Exception {
+		byte[] data = randomBytes(5 * Frames.CHUNK_SIZE + 99);
+		Path source = Files.write(dir.resolve("broadcast.bin"), data);
+		int port = freePort();
+		Server server = new Server();
+		List<Client> clients = new ArrayList<>();
+		try {
+			CountDownLatch started = new CountDownLatch(1);
+			server.getServerEventManager().addOnServerStart(startedOn -> started.countDown());
+			server.startServerAsync(port);
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < SESSIONS; i++) {
+				Client client = new Client();
+				clients.add(client);
+				client.connectToServer("127.0.0.1", port);
+			}
+			waitFor(() -> server.getClientCount() == SESSIONS && clients.stream().allMatch(Client::isConnected));
+			List<CompletableFuture<Long>> results = new ArrayList<>();
+			for (int i = 0; i < SESSIONS; i++) {
+				results.add(clients.get(i).receiveFileFromServer(dir.resolve("received-" + i + ".bin").toString()));
+			}
+			
+			server.sendFileToClient(source.toString());
+			
+			for (int i = 0; i < SESSIONS; i++) {
+				assertEquals(data.length, results.get(i).get(10, TimeUnit.SECONDS));
+				assertArrayEquals(data, Files.readAllBytes(dir.resolve("received-" + i + ".bin")));
+			}
+			ContentCache cache = server.getContentCache();
+			assertEquals(1, cache.getMissCount());
+			assertEquals(0, cache.getHitCount());
+			assertEquals(1, cache.getEntryCount());
+		} finally {
+			for (Client client : clients) {
+				client.disconnectFromServer();
+			}
+			server.stopServer();
+		}
+	}
+	
+	private static byte[] framed(byte[] data, int streamId) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int position = 0; position < data.length; position += Frames.CHUNK_SIZE) {
+			int chunkLength = Math.min(Frames.CHUNK_SIZE, data.length - position);
+			ByteBuffer header = Frames.header(Frames.STREAM_DATA, (byte) 0, streamId, chunkLength);
+			byte[] headerBytes = new byte[header.remaining()];
+			header.get(headerBytes);
+			out.write(headerBytes, 0, headerBytes.length);
+			out.write(data, position, chunkLength);
+		}
+		return out.toByteArray();
+	}
+	
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "timed out");
+			Thread.sleep(20);
+		}
+	}
+	
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+	
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,70 @@
+package net.guess.ServerUtil;
+
+import net.guess.ClientUtil.Client;
+import net.guess.SharedUtil.Frames;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectSendTest {
+	@TempDir
+	Path dir;
+	
+	@Test
+	void sendsALargeFileToOneClientWithoutCachingIt() throws Exception {
+		byte[] data = new byte[3 * Frames.CHUNK_SIZE + 17];
+		new Random(data.length).nextBytes(data);
+		Path source = Files.write(dir.resolve("large.bin"), data);
+		Path received = dir.resolve("received.bin");
+		int port = freePort();
+		Server server = new Server();
+		server.setDirectSendThreshold(data.length);
+		Client client = new Client();
+		try {
+			CountDownLatch started = new CountDownLatch(1);
+			server.getServerEventManager().addOnServerStart(startedOn -> started.countDown());
+			server.startServerAsync(port);
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			client.connectToServer("127.0.0.1", port);
+			waitFor(() -> server.getClientCount() == 1 && client.isConnected());
+			CompletableFuture<Long> result = client.receiveFileFromServer(received.toString());
+			
+			server.sendFileToClient(source.toString());
+			
+			assertEquals(data.length, result.get(10, TimeUnit.SECONDS));
+			assertArrayEquals(data, Files.readAllBytes(received));
+			ContentCache cache = server.getContentCache();
+			assertEquals(0, cache.getMissCount());
+			assertEquals(0, cache.getEntryCount());
+		} finally {
+			client.disconnectFromServer();
+			server.stopServer();
+		}
+	}
+	
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "timed out");
+			Thread.sleep(20);
+		}
+	}
+	
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package net.guess.ServerUtil;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayRingTest {
+	@Test
+	void replaysWhatCameAfterTheLastSequenceSeen() {
+		ReplayRing ring = new ReplayRing(settings(10, 1024));
+		for (int sequence = 1; sequence <= 5; sequence++) {
+			ring.record(sequence, frame(8));
+		}
+		
+		assertEquals(List.of(4, 5), sequencesOf(ring.after(3)));
+		assertEquals(List.of(), sequencesOf(ring.after(5)));
+		assertEquals(List.of(1, 2, 3, 4, 5), sequencesOf(ring.after(0)));
+	}
+	
+	@Test
+	void dropsTheOldestOnceFull() {
+		ReplayRing ring = new ReplayRing(settings(3, 1024));
+		for (int sequence = 1; sequence <= 5; sequence++) {
+			ring.record(sequence, frame(8));
+		}
+		
+		assertEquals(Set.of(3, 4, 5), ring.sequences());
+		assertEquals(24, ring.getBytes());
+		// 3 was never seen, but 2 was dropped: some of what was missed is gone
+		assertNull(ring.after(1));
+		assertEquals(List.of(3, 4, 5), sequencesOf(ring.after(2)));
+	}
+	
+	@Test
+	void dropsTheOldestOnceOverTheByteLimit() {
+		ReplayRing ring = new ReplayRing(settings(100, 20));
+		ring.record(1, frame(8));
+		ring.record(2, frame(8));
+		ring.record(3, frame(8));
+		
+		assertEquals(Set.of(2, 3), ring.sequences());
+		assertEquals(16, ring.getBytes());
+		assertNull(ring.after(0));
+	}
+	
+	@Test
+	void keepsOrderingAcrossSequenceWraparound() {
+		ReplayRing ring = new ReplayRing(settings(3, 1024));
+		ring.record(Integer.MAX_VALUE - 1, frame(8));
+		ring.record(Integer.MAX_VALUE, frame(8));
+		ring.record(Integer.MIN_VALUE, frame(8));
+		ring.record(Integer.MIN_VALUE + 1, frame(8));
+		
+		assertEquals(List.of(Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1), sequencesOf(ring.after(Integer.MAX_VALUE - 1)));
+		assertEquals(List.of(Integer.MIN_VALUE + 1), sequencesOf(ring.after(Integer.MIN_VALUE)));
+		assertNull(ring.after(Integer.MAX_VALUE - 2));
+	}
+	
+	private static ReplaySettings settings(int maxMessages, long maxBytes) {
+		return new ReplaySettings(maxMessages, maxBytes, Duration.ofSeconds(60));
+	}
+	
+	private static ByteBuffer frame(int length) {
+		return ByteBuffer.allocate(length).asReadOnlyBuffer();
+	}
+	
+	private static List<Integer> sequencesOf(List<ReplayRing.Entry> entries) {
+		return entries.stream().map(ReplayRing.Entry::sequence).toList();
+	}
+}
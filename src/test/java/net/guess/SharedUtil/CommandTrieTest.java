@@ -0,0 +1,61 @@
+package net.guess.SharedUtil;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommandTrieTest {
+	@Test
+	void matchesTheWholeCommandTokenOnly() {
+		CommandTrie<String> trie = new CommandTrie<>();
+		trie.register("FILE", "file");
+		trie.register("FILE_UPDATE", "update");
+		
+		assertEquals("file", trie.match(Command.of("FILE report.csv")));
+		assertEquals("update", trie.match(Command.of("FILE_UPDATE report.csv 1024")));
+		assertEquals("file", trie.match(Command.of("FILE")));
+		assertNull(trie.match(Command.of("FIL")));
+		assertNull(trie.match(Command.of("FILE_UPDATES")));
+		assertNull(trie.match(Command.of("PING")));
+	}
+	
+	@Test
+	void setsTheNameOfAMatchedCommand() {
+		CommandTrie<String> trie = new CommandTrie<>();
+		trie.register("FILE_UPDATE", "update");
+		Command command = Command.of("FILE_UPDATE report.csv 1024");
+		
+		trie.match(command);
+		
+		assertEquals("FILE_UPDATE", command.name());
+		assertEquals("report.csv", command.arg(0));
+		assertEquals(1024, command.longArg(1));
+	}
+	
+	@Test
+	void replacesAndUnregistersHandlers() {
+		CommandTrie<String> trie = new CommandTrie<>();
+		trie.register("FILE", "first");
+		trie.register("FILE_UPDATE", "update");
+		trie.register("FILE", "second");
+		assertEquals("second", trie.match(Command.of("FILE x")));
+		
+		trie.unregister("FILE");
+		
+		assertNull(trie.match(Command.of("FILE x")));
+		assertEquals("update", trie.match(Command.of("FILE_UPDATE x")));
+		// Nothing registered under this prefix, so nothing to remove
+		trie.unregister("PING");
+		assertEquals("update", trie.match(Command.of("FILE_UPDATE x")));
+	}
+	
+	@Test
+	void matchesMultiByteCommandNames() {
+		CommandTrie<String> trie = new CommandTrie<>();
+		trie.register("ÜBER", "umlaut");
+		trie.register("ÜBUNG", "other");
+		
+		assertEquals("umlaut", trie.match(Command.of("ÜBER 1")));
+		assertEquals("other", trie.match(Command.of("ÜBUNG")));
+	}
+}
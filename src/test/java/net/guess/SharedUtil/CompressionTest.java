@@ -0,0 +1,58 @@
+package net.guess.SharedUtil;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionTest {
+	@Test
+	void exportsFrameCountsAndCodecTime() throws IOException {
+		Compression compression = new Compression(new DeflateCodec());
+		Metrics metrics = new Metrics("test");
+		compression.registerMetrics(metrics);
+		byte[] text = "a frame that repeats itself ".repeat(100).getBytes();
+		
+		ByteBuffer compressed = compression.compressFrame(Frames.frame(Frames.MESSAGE, (byte) 0, 0, ByteBuffer.wrap(text)));
+		ByteBuffer payload = compressed.slice(Frames.HEADER_LENGTH, compressed.remaining() - Frames.HEADER_LENGTH);
+		assertArrayEquals(text, bytes(compression.decompress(payload)));
+		compression.compressFrame(Frames.frame(Frames.MESSAGE, (byte) 0, 0, ByteBuffer.wrap(random(1024))));
+		
+		Map<String, String> samples = samples(metrics);
+		String codec = "{codec=\"" + compression.id() + "\"}";
+		assertEquals("1", samples.get("test_compression_frames_total" + codec));
+		assertEquals("1", samples.get("test_compression_skipped_frames_total" + codec));
+		assertEquals("1", samples.get("test_compression_decompressed_frames_total" + codec));
+		assertEquals(Integer.toString(text.length), samples.get("test_compression_bytes_in_total" + codec));
+		Compression.Stats stats = compression.getStats();
+		assertTrue(stats.compressNanos() > 0 && stats.decompressNanos() > 0);
+		assertEquals(stats.compressNanos() / 1e9, Double.parseDouble(samples.get("test_compression_compress_seconds_total" + codec)));
+		assertEquals(stats.decompressNanos() / 1e9, Double.parseDouble(samples.get("test_compression_decompress_seconds_total" + codec)));
+	}
+	
+	private static Map<String, String> samples(Metrics metrics) throws IOException {
+		StringBuilder out = new StringBuilder();
+		metrics.writePrometheus(out);
+		return out.toString().lines()
+				.filter(line -> !line.startsWith("#"))
+				.map(line -> line.split(" "))
+				.collect(Collectors.toMap(sample -> sample[0], sample -> sample[1]));
+	}
+	
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+	
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
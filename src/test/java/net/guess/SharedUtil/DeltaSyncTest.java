@@ -0,0 +1,77 @@
+package net.guess.SharedUtil;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSyncTest {
+	@TempDir
+	Path dir;
+	
+	@Test
+	void rebuildsAChangedFileFromMostlyCopiedBlocks() throws IOException {
+		byte[] original = new byte[256 * 1024];
+		new Random(1).nextBytes(original);
+		byte[] changed = original.clone();
+		// An edit in the middle and a few bytes inserted near the start, which shifts every block after it
+		for (int i = 100_000; i < 100_100; i++) {
+			changed[i] ^= 0x5A;
+		}
+		byte[] inserted = new byte[changed.length + 3];
+		System.arraycopy(changed, 0, inserted, 0, 5000);
+		System.arraycopy(changed, 5000, inserted, 5003, changed.length - 5000);
+		Path basis = Files.write(dir.resolve("basis.bin"), original);
+		Path source = Files.write(dir.resolve("source.bin"), inserted);
+		
+		DeltaSync.Stats stats = roundTrip(basis, source, basis);
+		
+		assertArrayEquals(inserted, Files.readAllBytes(basis));
+		assertEquals(inserted.length, stats.fileLength());
+		assertEquals(inserted.length, stats.literalBytes() + stats.copiedBytes());
+		assertTrue(stats.literalBytes() < inserted.length / 4, "sent " + stats.literalBytes() + " literal bytes");
+		assertFalse(Files.exists(FileTransfers.partialFile(basis)));
+	}
+	
+	@Test
+	void sendsEverythingWhenThereIsNoBasis() throws IOException {
+		byte[] data = new byte[10_000];
+		new Random(2).nextBytes(data);
+		Path source = Files.write(dir.resolve("source.bin"), data);
+		Path target = dir.resolve("target.bin");
+		
+		DeltaSync.Stats stats = roundTrip(target, source, target);
+		
+		assertArrayEquals(data, Files.readAllBytes(target));
+		assertEquals(data.length, stats.literalBytes());
+		assertEquals(0, stats.copiedBytes());
+	}
+	
+	@Test
+	void rejectsASignatureWithMoreBlocksThanTheSourceCouldUse() throws IOException {
+		Path basis = Files.write(dir.resolve("basis.bin"), new byte[64 * 1024]);
+		Path source = Files.write(dir.resolve("source.bin"), new byte[1024]);
+		ByteArrayOutputStream signature = new ByteArrayOutputStream();
+		// Signed against a much longer source than the one being sent
+		DeltaSync.writeSignature(basis, 1 << 30, Channels.newChannel(signature));
+		
+		assertThrows(IOException.class, () -> DeltaSync.sendDelta(source, Channels.newChannel(new ByteArrayInputStream(signature.toByteArray())), Channels.newChannel(new ByteArrayOutputStream())));
+	}
+	
+	private static DeltaSync.Stats roundTrip(Path basis, Path source, Path target) throws IOException {
+		ByteArrayOutputStream signature = new ByteArrayOutputStream();
+		DeltaSync.writeSignature(basis, Files.size(source), Channels.newChannel(signature));
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		DeltaSync.Stats stats = DeltaSync.sendDelta(source, Channels.newChannel(new ByteArrayInputStream(signature.toByteArray())), Channels.newChannel(delta));
+		DeltaSync.applyDelta(basis, Channels.newChannel(new ByteArrayInputStream(delta.toByteArray())), target);
+		return stats;
+	}
+}
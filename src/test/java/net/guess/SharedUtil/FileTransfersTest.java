@@ -0,0 +1,36 @@
+package net.guess.SharedUtil;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTransfersTest {
+	@TempDir
+	Path dir;
+	
+	@Test
+	void opensAnEmptyPartialFileWhenThereIsRoom() throws IOException {
+		Path target = dir.resolve("file.bin");
+		Files.write(FileTransfers.partialFile(target), new byte[100]);
+		
+		try (FileChannel partial = FileTransfers.openPartial(target, 1024)) {
+			assertEquals(0, partial.size());
+		}
+	}
+	
+	@Test
+	void refusesAFileTheDiskCannotHoldBeforeWritingAnything() {
+		Path target = dir.resolve("file.bin");
+		
+		IOException e = assertThrows(IOException.class, () -> FileTransfers.openPartial(target, Long.MAX_VALUE));
+		
+		assertTrue(e.getMessage().startsWith("Not enough disk space"), e.getMessage());
+		assertFalse(Files.exists(FileTransfers.partialFile(target)));
+	}
+}
@@ -0,0 +1,91 @@
+package net.guess.SharedUtil;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+	// A small wheel, so the longer delays below take several rounds
+	private final TimingWheel wheel = new TimingWheel("test-wheel", 5, TimeUnit.MILLISECONDS, 8);
+	
+	@AfterEach
+	void stopWheel() {
+		wheel.stop();
+	}
+	
+	@Test
+	void runsATaskNoEarlierThanItsDelay() throws InterruptedException {
+		CountDownLatch ran = new CountDownLatch(1);
+		long scheduledAt = System.nanoTime();
+		TimingWheel.Timeout timeout = wheel.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+		
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.isCancelled());
+	}
+	
+	@Test
+	void runsTasksInDeadlineOrderAcrossRounds() throws InterruptedException {
+		StringBuffer order = new StringBuffer();
+		CountDownLatch ran = new CountDownLatch(3);
+		wheel.schedule(() -> {
+			order.append('c');
+			ran.countDown();
+		}, 200, TimeUnit.MILLISECONDS);
+		wheel.schedule(() -> {
+			order.append('a');
+			ran.countDown();
+		}, 10, TimeUnit.MILLISECONDS);
+		wheel.schedule(() -> {
+			order.append('b');
+			ran.countDown();
+		}, 90, TimeUnit.MILLISECONDS);
+		
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertEquals("abc", order.toString());
+	}
+	
+	@Test
+	void skipsCancelledTasks() throws InterruptedException {
+		CountDownLatch cancelledRan = new CountDownLatch(1);
+		CountDownLatch laterRan = new CountDownLatch(1);
+		TimingWheel.Timeout cancelled = wheel.schedule(cancelledRan::countDown, 20, TimeUnit.MILLISECONDS);
+		wheel.schedule(laterRan::countDown, 60, TimeUnit.MILLISECONDS);
+		
+		cancelled.cancel();
+		
+		assertTrue(laterRan.await(5, TimeUnit.SECONDS));
+		assertEquals(1, cancelledRan.getCount());
+		assertTrue(cancelled.isCancelled());
+		assertFalse(cancelled.isExpired());
+	}
+	
+	@Test
+	void reportsAFailingTaskAndKeepsTurning() throws InterruptedException {
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		CountDownLatch ran = new CountDownLatch(1);
+		wheel.schedule(() -> {
+			throw new IllegalStateException("boom");
+		}, 10, TimeUnit.MILLISECONDS, (message, e) -> failure.set(e));
+		wheel.schedule(ran::countDown, 40, TimeUnit.MILLISECONDS);
+		
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertInstanceOf(IllegalStateException.class, failure.get());
+	}
+	
+	@Test
+	void cancelsWhatIsScheduledAfterStopping() {
+		wheel.stop();
+		
+		TimingWheel.Timeout timeout = wheel.schedule(() -> {
+		}, 10, TimeUnit.MILLISECONDS);
+		
+		assertTrue(timeout.isCancelled());
+	}
+}